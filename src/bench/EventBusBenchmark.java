@@ -0,0 +1,64 @@
+package bench;
+
+import common.EventBus;
+import common.StatusEvent;
+import server.models.FilesEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of EventBus with single thread standing in for JavaFX application thread
+ * A few publishers post statuses and changes of files of many users as fast as they can, the same as readers of users do,
+ * then counts of published and delivered events and count of frames are printed
+ * Usage: bench.EventBusBenchmark [count of publishers] [count of users] [seconds]
+ * @author Jakub Reszka
+ */
+public class EventBusBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int publishers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        ExecutorService application = Executors.newSingleThreadExecutor();
+        AtomicLong frames = new AtomicLong();
+        AtomicLong copies = new AtomicLong();
+        EventBus bus = new EventBus(task -> application.execute(() -> {
+            frames.incrementAndGet();
+            task.run();
+        }));
+        bus.subscribe(StatusEvent.class, event -> event.getText().length());
+        bus.subscribe(FilesEvent.class, event -> copies.addAndGet(event.getFiles().size()));
+
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            files.add("file" + i);
+        }
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < publishers; ++p) {
+            int offset = p;
+            Thread thread = new Thread(() -> {
+                for (long i = offset; System.nanoTime() < deadline; ++i) {
+                    String username = "user" + (i % users);
+                    bus.publish(new StatusEvent("SAVED: file" + i + " from " + username));
+                    bus.publish(new FilesEvent(username, () -> new ArrayList<>(files)));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Thread.sleep(100);
+        application.shutdown();
+
+        System.out.printf("published %d events/s, delivered %d events/s in %d frames/s, copied %d names/s%n",
+                bus.getPublished() / seconds, bus.getDelivered() / seconds, frames.get() / seconds, copies.get() / seconds);
+    }
+}
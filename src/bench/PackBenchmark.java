@@ -0,0 +1,127 @@
+package bench;
+
+import common.DirectoryBackend;
+import common.FileManager;
+import common.MessageCodec;
+import common.PackWriter;
+import server.models.PackUnpacker;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmark comparing transfer of small files one message per file with packed archive over loopback
+ * The per-file variant repeats what client did before files were packed: a thread, a lock and a wait per file
+ * Usage: bench.PackBenchmark [count of files] [size of file in bytes]
+ * @author Jakub Reszka
+ */
+public class PackBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+        Path source = Files.createTempDirectory("bench-source");
+        List<File> files = new ArrayList<>();
+        byte[] content = new byte[size];
+        for (int i = 0; i < count; ++i) {
+            Path file = source.resolve("file" + i);
+            Files.write(file, content);
+            files.add(file.toFile());
+        }
+
+        report("per-file", count, perFile(files, Files.createTempDirectory("bench-per-file")));
+        report("packed", count, packed(files, Files.createTempDirectory("bench-packed")));
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.printf("%-10s %8d files %10.1f ms %12.0f files/s%n", name, count, nanos / 1e6, count / (nanos / 1e9));
+    }
+
+    /**
+     * Sends every file as separate header=3 message from its own thread, receiver saves files one by one
+     */
+    private static long perFile(List<File> files, Path target) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept();
+                     DataInputStream input = new DataInputStream(socket.getInputStream())) {
+                    for (int i = 0; i < files.size(); ++i) {
+                        input.readByte();
+                        int length = input.readInt();
+                        String name = input.readUTF();
+                        byte[] bytes = new byte[length];
+                        input.readFully(bytes);
+                        FileManager.saveFileFromByteArray(bytes, target.toString(), name);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            receiver.start();
+
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                CountDownLatch sent = new CountDownLatch(files.size());
+                Object lock = new Object();
+                for (File file : files) {
+                    new Thread(() -> {
+                        try {
+                            FileManager.waitTillFileIsReady(file);
+                            byte[] bytes = FileManager.readFileToByteArray(file);
+                            synchronized (lock) {
+                                output.writeByte(3);
+                                output.writeInt(bytes.length);
+                                output.writeUTF(file.getName());
+                                output.write(bytes);
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            sent.countDown();
+                        }
+                    }).start();
+                }
+                sent.await();
+                receiver.join();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Sends all files as one archive, receiver unpacks it with pooled writers
+     */
+    private static long packed(List<File> files, Path target) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept();
+                     DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                    PackUnpacker.unpack(new MessageCodec(input, null), new DirectoryBackend(target), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            receiver.start();
+
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                PackWriter packWriter = new PackWriter(new MessageCodec(null, output));
+                for (File file : files) {
+                    if (FileManager.isFileReady(file)) packWriter.add(file.getName(), file);
+                }
+                packWriter.finish();
+                receiver.join();
+            }
+            return System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import common.FileEntry;
+import server.models.SearchIndex;
+
+import java.util.Random;
+
+/**
+ * Benchmark of search index filled with synthetic files, names consist of a few words from a vocabulary
+ * and some files have short text content, then a third of files is indexed again to measure reclaiming of ids
+ * Usage: bench.SearchBenchmark [count of files] [count of queries]
+ * @author Jakub Reszka
+ */
+public class SearchBenchmark {
+
+    private static final String[] TYPES = {"txt", "pdf", "jpg", "java", "md", "zip", "csv", "png"};
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex(null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            index.index(entry(random, i), i % 10 == 0 ? "report " + word(random) + " " + word(random) : null);
+        }
+        System.out.printf("indexed %d files: %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i += 3) {
+            index.index(entry(random, i), null);
+        }
+        System.out.printf("indexed again %d files: %d ms%n", count / 3, (System.nanoTime() - start) / 1_000_000);
+
+        String[] kinds = {"w%d", "w%d w%d", "w%d*", "w%d type:pdf", "w%d size>500000", "report w%d", "type:md size<1000"};
+        for (String kind : kinds) {
+            long found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; ++i) {
+                String query = String.format(kind, random.nextInt(1000), random.nextInt(1000));
+                found += index.query(query, 0, 100).getEntries().size();
+            }
+            System.out.printf("%-20s %8.3f ms per page of 100, %d found per query%n",
+                    kind, (System.nanoTime() - start) / 1e6 / queries, found / queries);
+        }
+
+        start = System.nanoTime();
+        long cursor = 0;
+        int pages = 0;
+        while (cursor >= 0 && pages < 1000) {
+            cursor = index.query("type:jpg", cursor, 1000).getCursor();
+            pages++;
+        }
+        System.out.printf("paging type:jpg: %d pages of 1000 in %d ms%n", pages, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static FileEntry entry(Random random, int i) {
+        String name = "dir" + (i % 1000) + "/" + word(random) + "_" + word(random) + "_" + i + "." + TYPES[i % TYPES.length];
+        return new FileEntry(name, random.nextInt(1_000_000), 1_600_000_000_000L + i * 1000L, null);
+    }
+
+    private static String word(Random random) {
+        return "w" + random.nextInt(10_000);
+    }
+}
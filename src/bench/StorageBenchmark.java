@@ -0,0 +1,94 @@
+package bench;
+
+import common.DirectoryBackend;
+import common.Durability;
+import common.PooledBuffer;
+import common.SegmentLogBackend;
+import common.StorageBackend;
+import common.WritePipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark comparing storing many small files as files in directory with appending them to segment log
+ * Files are put by a few writers at once, the same as DiskExecutor does, then all files are read and
+ * half of them is overwritten to measure compaction of log
+ * Durability is given with system property filemanager.durability
+ * Usage: bench.StorageBenchmark [count of files] [size of file in bytes] [count of writers]
+ * @author Jakub Reszka
+ */
+public class StorageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        Durability durability = WritePipeline.shared().getDurability();
+
+        Path root = Files.createTempDirectory("bench-storage");
+        System.out.println(count + " files of " + size + " B, " + writers + " writers, durability " + durability);
+        run("directory", new DirectoryBackend(root.resolve("directory")), count, size, writers);
+        SegmentLogBackend log = new SegmentLogBackend(root.resolve("segment.log"), durability);
+        run("segment", log, count, size, writers);
+
+        long start = System.nanoTime();
+        log.compact();
+        System.out.printf("segment compact: %d ms, %s%n", (System.nanoTime() - start) / 1_000_000, log.getStats());
+        log.close();
+    }
+
+    /**
+     * Puts, reads and overwrites files in backend and prints times of each phase
+     */
+    private static void run(String label, StorageBackend backend, int count, int size, int writers) throws Exception {
+        ByteBuffer body = ByteBuffer.allocateDirect(size);
+        while (body.hasRemaining()) body.put((byte) body.position());
+        body.flip();
+
+        long put = put(backend, body, count, writers);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            try (PooledBuffer read = backend.read(name(i))) {
+                if (read.buffer().remaining() != size) throw new IOException("Wrong size of " + name(i));
+            }
+        }
+        long get = System.nanoTime() - start;
+        long overwrite = put(backend, body, count / 2, writers);
+
+        System.out.printf("%-9s put: %6d ms (%8.0f files/s), get: %5d ms, overwrite half: %6d ms%n", label,
+                put / 1_000_000, count * 1e9 / put, get / 1_000_000, overwrite / 1_000_000);
+    }
+
+    /**
+     * Puts files with pool of writers and waits until all of them are durable
+     * @return the time in nanoseconds
+     */
+    private static long put(StorageBackend backend, ByteBuffer body, int count, int writers) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        long start = System.nanoTime();
+        List<Future<CompletableFuture<Boolean>>> puts = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            String name = name(i);
+            puts.add(pool.submit(() -> backend.put(name, body.duplicate())));
+        }
+        for (Future<CompletableFuture<Boolean>> future : puts) {
+            if (!future.get().join()) throw new IOException("Put failed");
+        }
+        long time = System.nanoTime() - start;
+        pool.shutdown();
+        return time;
+    }
+
+    private static String name(int i) {
+        return "dir" + (i % 16) + "/file" + i + ".txt";
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import common.MessageCodec;
+import common.TransportConfig;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Benchmark comparing plain connections with TLS connections of TransportConfig over loopback
+ * Throughput is measured with files sent the same way as User.sendFile does, then connections are opened
+ * one after another as in reconnect storm, once with new TLS context per connection so every handshake is full
+ * and once with shared context so sessions are resumed
+ * Key store is given with system properties filemanager.net.keyStore, filemanager.net.keyStorePassword
+ * and certificate is trusted with filemanager.net.trustStore
+ * Usage: bench.TlsBenchmark [megabytes sent] [count of connections]
+ * @author Jakub Reszka
+ */
+public class TlsBenchmark {
+
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        TransportConfig plain = TransportConfig.fromSystemProperties();
+        TransportConfig secure = secure(TransportConfig.createSecureContext());
+
+        double plainRate = throughput(plain, plain, megabytes);
+        double secureRate = throughput(secure, secure, megabytes);
+        System.out.printf("plain: %7.1f MB/s%n", plainRate);
+        System.out.printf("tls:   %7.1f MB/s (%.1f%% of plain)%n", secureRate, 100 * secureRate / plainRate);
+
+        try (ServerSocket serverSocket = secure.openServerSocket(0)) {
+            runEchoServer(secure, serverSocket);
+            long full = 0;
+            for (int i = 0; i < connections; ++i) {
+                full += connect(secure(TransportConfig.createSecureContext()), serverSocket.getLocalPort());
+            }
+            long resumed = 0;
+            for (int i = 0; i < connections; ++i) {
+                resumed += connect(secure, serverSocket.getLocalPort());
+            }
+            System.out.printf("full handshake:    %6.2f ms per connection%n", full / 1e6 / connections);
+            System.out.printf("resumed handshake: %6.2f ms per connection%n", resumed / 1e6 / connections);
+        }
+    }
+
+    private static TransportConfig secure(javax.net.ssl.SSLContext context) {
+        TransportConfig defaults = TransportConfig.getDefault();
+        return new TransportConfig(defaults.getBufferSize(), defaults.isNoDelay(), 0, 0, defaults.getBacklog(), true, context);
+    }
+
+    /**
+     * Sends files of FILE_SIZE until given amount of data is sent
+     * @return the throughput in megabytes per second
+     */
+    private static double throughput(TransportConfig server, TransportConfig client, int megabytes) throws Exception {
+        int count = megabytes * 1024 * 1024 / FILE_SIZE;
+        try (ServerSocket serverSocket = server.openServerSocket(0)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    server.configure(socket);
+                    MessageCodec codec = new MessageCodec(server.input(socket), server.output(socket));
+                    for (int i = 0; i < count; ++i) {
+                        codec.readHeader();
+                        int length = codec.readInt();
+                        codec.readName();
+                        codec.readBody(length).close();
+                    }
+                    codec.writeBatchAck(0, count, List.of(), List.of());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            receiver.start();
+
+            ByteBuffer body = ByteBuffer.allocateDirect(FILE_SIZE);
+            try (Socket socket = client.openSocket("localhost", serverSocket.getLocalPort(), 0)) {
+                MessageCodec codec = new MessageCodec(client.input(socket), client.output(socket));
+                long start = System.nanoTime();
+                for (int i = 0; i < count; ++i) {
+                    codec.writeFile("file" + i, body);
+                }
+                codec.readHeader();
+                long time = System.nanoTime() - start;
+                receiver.join();
+                return (double) count * FILE_SIZE / (1024 * 1024) / (time / 1e9);
+            }
+        }
+    }
+
+    /**
+     * Answers every connection with one byte, the handshake is performed by the first read
+     */
+    private static void runEchoServer(TransportConfig config, ServerSocket serverSocket) {
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    config.configure(socket);
+                    InputStream input = socket.getInputStream();
+                    OutputStream output = socket.getOutputStream();
+                    output.write(input.read());
+                    input.read();
+                } catch (IOException ignored) { }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Connects to server and exchanges one byte
+     * @return the time of connection in nanoseconds
+     */
+    private static long connect(TransportConfig config, int port) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = config.openSocket("localhost", port, 0)) {
+            OutputStream output = socket.getOutputStream();
+            output.write(1);
+            if (socket.getInputStream().read() != 1) throw new IOException("Echo failed");
+        }
+        return System.nanoTime() - start;
+    }
+}
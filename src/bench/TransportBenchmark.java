@@ -0,0 +1,128 @@
+package bench;
+
+import common.MessageCodec;
+import common.TransportConfig;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark comparing unbuffered socket streams with streams created by TransportConfig over loopback
+ * Every write and read reaching socket's stream is one system call, so they are counted per message
+ * Messages mix what server sends most often: acknowledgements of batches, deltas of files and small files
+ * Usage: bench.TransportBenchmark [count of messages]
+ * @author Jakub Reszka
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+        TransportConfig buffered = TransportConfig.getDefault();
+        TransportConfig unbuffered = new TransportConfig(0, false, 0, 0, buffered.getBacklog(), false);
+
+        run("unbuffered", unbuffered, count);
+        run("buffered", buffered, count);
+    }
+
+    private static void run(String name, TransportConfig config, int count) throws Exception {
+        AtomicLong writes = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        ByteBuffer body = ByteBuffer.wrap(new byte[1024]);
+        List<String> names = List.of("a.txt", "dir/b.txt", "dir/c.txt");
+
+        try (ServerSocket serverSocket = config.openServerSocket(0)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    config.configure(socket);
+                    MessageCodec codec = new MessageCodec(config.input(new CountingInput(socket.getInputStream(), reads)), null);
+                    List<String> target = new ArrayList<>();
+                    for (int i = 0; i < count; ++i) {
+                        byte header = codec.readHeader();
+                        if (header == 9) {
+                            codec.readInt();
+                            codec.readInt();
+                            codec.readInt();
+                        } else if (header == 10) {
+                            codec.readNames(target);
+                            codec.readNames(target);
+                        } else {
+                            codec.readInt();
+                            codec.readName();
+                            codec.readBody(body.remaining()).close();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            receiver.start();
+
+            long start = System.nanoTime();
+            try (Socket socket = config.openSocket("localhost", serverSocket.getLocalPort(), 0)) {
+                MessageCodec codec = new MessageCodec(null, config.output(new CountingOutput(socket.getOutputStream(), writes)));
+                for (int i = 0; i < count; ++i) {
+                    if (i % 3 == 0) codec.writeBatchAck(i, 10, List.of(), List.of());
+                    else if (i % 3 == 1) codec.writeFilesDelta(names, names);
+                    else codec.writeFile("file" + i, body);
+                }
+                receiver.join();
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-10s %8d messages %10.1f ms %10.0f messages/s %6.3f writes/message %6.3f reads/message%n",
+                    name, count, nanos / 1e6, count / (nanos / 1e9), writes.get() / (double) count, reads.get() / (double) count);
+        }
+    }
+
+    /**
+     * Stream counting writes reaching socket
+     */
+    private static class CountingOutput extends FilterOutputStream {
+        private final AtomicLong writes;
+
+        private CountingOutput(OutputStream stream, AtomicLong writes) {
+            super(stream);
+            this.writes = writes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes.incrementAndGet();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes.incrementAndGet();
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Stream counting reads reaching socket
+     */
+    private static class CountingInput extends FilterInputStream {
+        private final AtomicLong reads;
+
+        private CountingInput(InputStream stream, AtomicLong reads) {
+            super(stream);
+            this.reads = reads;
+        }
+
+        @Override
+        public int read() throws IOException {
+            reads.incrementAndGet();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            reads.incrementAndGet();
+            return in.read(b, off, len);
+        }
+    }
+}
@@ -1,14 +1,45 @@
 package client;
 
-import client.gui.Controller;
+import client.models.ListingChangedEvent;
+import client.models.ListingPageEvent;
+import client.models.PeerConnector;
+import client.models.PeerListener;
+import client.models.Prefetcher;
+import client.models.ReadCache;
 import client.models.Sender;
+import client.models.StripedSender;
+import common.BufferPool;
+import common.Diff;
+import common.DiffEngine;
+import common.EventBus;
+import common.FileEntry;
 import common.FileManager;
-import javafx.application.Platform;
+import common.Integrity;
+import common.ListingQuery;
+import common.MessageCodec;
+import common.PackWriter;
+import common.PooledBuffer;
+import common.Snapshot;
+import common.StatusEvent;
+import common.TransportConfig;
+import common.UsersEvent;
+import common.Version;
+import common.WritePipeline;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -18,62 +49,165 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class Client implements Sender {
 
-    private final Controller controller;
+    private static final int MAX_BATCH_FILES = 256;
+    private static final long MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PACK_FILES = 1024;
+    private static final int MAX_REDIRECTS = 4;
+    private static final long STRIPE_THRESHOLD = Long.getLong("filemanager.stripeThreshold", 64L * 1024 * 1024);
+    private static final long SCAN_MIN_MILLIS = 50;
+    private static final long SCAN_MAX_MILLIS = Long.getLong("filemanager.scan.intervalMillis", 1000);
+    private static final long CACHE_BYTES = Long.getLong("filemanager.fetch.cacheBytes", 256L * 1024 * 1024);
+
+    private final EventBus events = EventBus.shared();
     private final String username;
-    private final String host;
+    private String host;
     private final String path;
-    private final int port;
+    private int port;
+    private final Path snapshotPath;
 
     private Thread folderObserver = null;
-    private List<String> filesList = new ArrayList<>();
+    private volatile Snapshot snapshot = null;
+    private volatile Snapshot scanned = null;
+    private volatile boolean snapshotDirty = false;
+    private final Set<String> unsent = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, SentBatch> sentBatches = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sender");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Socket socket = null;
     private DataOutputStream output = null;
     private DataInputStream input = null;
+    private MessageCodec codec = null;
+    private List<String> receivedNames = new ArrayList<>();
+    private List<String> lastUsersList = null;
     private ReentrantLock lock = new ReentrantLock();
+    private AtomicInteger batchCounter = new AtomicInteger();
     private Thread reader = null;
+    private PeerListener peerListener = null;
+    private volatile String sessionToken = null;
+    private AtomicInteger transferCounter = new AtomicInteger();
+    private Integrity integrity = new Integrity();
+    private Map<Integer, String> repairNames = new ConcurrentHashMap<>();
+    private Map<Integer, Long> repairLengths = new ConcurrentHashMap<>();
+    private Map<Integer, Integer> pendingChunks = new ConcurrentHashMap<>();
+    private final Map<String, FileEntry> repairing = new ConcurrentHashMap<>();
+    private final Set<String> repaired = ConcurrentHashMap.newKeySet();
+    private Map<String, List<Version>> versions = new ConcurrentHashMap<>();
+    private volatile List<FileEntry> searchResults = new ArrayList<>();
+    private volatile long searchCursor = -1;
+    private final ReadCache readCache;
+    private final Prefetcher prefetcher;
+    private volatile boolean leaving = false;
 
     /**
      * Constructs client instance with given params
-     * @param controller the controller responsible for GUI
      * @param username the client name
      * @param path the path to local folder
      * @param host the host name
      * @param port the port number
      */
 
-    public Client(Controller controller, String username, String path, String host, int port) {
+    public Client(String username, String path, String host, int port) {
 
-        this.controller = controller;
         this.username = username;
         this.host = host;
         this.port = port;
         this.path = path;
-        this.openSocket();
-        this.createStreams();
-        this.sendGreeting();
+        String folderId = username + "_" + Integer.toHexString(Paths.get(path).toAbsolutePath().hashCode());
+        this.snapshotPath = Paths.get(System.getProperty("user.home"), ".filemanager", folderId + ".snapshot");
+        this.readCache = new ReadCache(Paths.get(System.getProperty("user.home"), ".filemanager", "cache", folderId),
+                CACHE_BYTES, this::requestFetch);
+        this.prefetcher = new Prefetcher(readCache, path, CACHE_BYTES, this::requestRecent);
+        this.connect();
+        this.loadSnapshot();
         this.observeFolder();
         this.runReader();
+        this.openPeerListener();
+        this.prefetcher.changed();
+    }
+
+    /**
+     * Opens listener for direct transfers if system property filemanager.p2p is set
+     * Without listener all files sent to other users are relayed by server
+     */
+    private void openPeerListener() {
+        if (!Boolean.getBoolean("filemanager.p2p")) return;
+        try {
+            peerListener = new PeerListener();
+        } catch (IOException e) {
+            events.publish(new StatusEvent("ERROR: Direct transfers unavailable"));
+        }
+    }
+
+    /**
+     * Loads snapshot of the last synchronized folder state
+     * The first pass of folder observer reconciles it with local folder, so only files changed since the last run are sent
+     * Temporary files left by saves interrupted in the last run are removed
+     */
+    private void loadSnapshot() {
+        WritePipeline.removeTemporaryFiles(Paths.get(path));
+        snapshot = Snapshot.load(snapshotPath, username);
+        scanned = new Snapshot(username);
+        for (FileEntry entry : snapshot.entries()) {
+            scanned.put(entry);
+        }
+    }
+
+    /**
+     * Saves snapshot of local folder, failure only means that more files will be sent on the next start
+     */
+    private void saveSnapshot() {
+        try {
+            snapshot.save(snapshotPath);
+        } catch (IOException e) {
+            events.publish(new StatusEvent("ERROR: Saving snapshot of local folder"));
+        }
     }
 
     /**
      * Starts folder observer thread responsible for observing changes in local folder
+     * Modified and renamed files are sent as deletion of the old file followed by the new file
+     * Folder is compared with scanned state which includes changes handed over to sender, while saved snapshot
+     * contains only changes acknowledged by server, files which weren't sent are scanned as changed again
+     * Pause between scans doubles while folder doesn't change up to filemanager.scan.intervalMillis
+     * and drops to SCAN_MIN_MILLIS after a change
      * The folder observer thread is a daemonic thread
      */
     private void observeFolder() {
         folderObserver = new Thread(new Runnable() {
             @Override
             public void run() {
+                DiffEngine engine = new DiffEngine();
+                Diff diff = new Diff();
+                long pause = SCAN_MIN_MILLIS;
                 while (true) {
-                    List<String> newFileList = FileManager.listDir(path);
-                    Hashtable<String, List<String>> diff = FileManager.compareLists(filesList, newFileList);
+                    for (String name : unsent) {
+                        unsent.remove(name);
+                        FileEntry acknowledged = snapshot.get(name);
+                        if (acknowledged == null) scanned.remove(name);
+                        else scanned.put(acknowledged);
+                    }
+                    if (snapshotDirty) {
+                        snapshotDirty = false;
+                        saveSnapshot();
+                    }
+                    Snapshot current = scanned.reconcile(path);
+                    engine.diff(scanned, current, diff);
+                    scanned = current;
+                    if (diff.hasChanges()) {
+                        sendBatch(join(diff.getDeleted(), diff.getModified(), diff.getRenamedFrom()),
+                                join(diff.getAdded(), diff.getModified(), diff.getRenamedTo()));
+                        pause = SCAN_MIN_MILLIS;
+                    } else {
+                        pause = Math.min(pause * 2, Math.max(SCAN_MIN_MILLIS, SCAN_MAX_MILLIS));
+                    }
                     try {
-                        sendAdded(diff.get("Added"));
-                        sendDeleted(diff.get("Deleted"));
-                    } catch (IOException e) {
-                        throw new StreamException("Error with sending files to server");
+                        Thread.sleep(pause);
+                    } catch (InterruptedException e) {
+                        return;
                     }
-                    filesList.clear();
-                    filesList.addAll(newFileList);
                 }
             }
         });
@@ -81,6 +215,47 @@ public class Client implements Sender {
         folderObserver.start();
     }
 
+    /**
+     * Joins lists of files' names
+     * @param lists the lists to be joined
+     * @return the joined list or null if all lists are empty
+     */
+    @SafeVarargs
+    private static List<String> join(List<String>... lists) {
+        List<String> joined = new ArrayList<>();
+        for (List<String> list : lists) {
+            joined.addAll(list);
+        }
+        return joined.isEmpty() ? null : joined;
+    }
+
+    /**
+     * Connects to server and greets it, server which is node of cluster may redirect client with header=29
+     * to node keeping client's directory, then client connects to that node
+     * The first answer is read before reader thread starts, so no message is sent to node which redirects client
+     */
+    private void connect() {
+        for (int redirects = 0; ; ++redirects) {
+            openSocket();
+            createStreams();
+            sendGreeting();
+            try {
+                byte header = readHeader();
+                if (header != 29) {
+                    readMessage(header);
+                    return;
+                }
+                host = codec.readName();
+                port = codec.readInt();
+                socket.close();
+            } catch (IOException e) {
+                throw new StreamException("Reading stream error");
+            }
+            if (redirects == MAX_REDIRECTS) throw new ClientSocketException("Too many redirects, nodes of cluster disagree");
+            events.publish(new StatusEvent("Redirected to " + host + ":" + port));
+        }
+    }
+
     /**
      *  Creates input and output DataStream between client and server
      */
@@ -88,6 +263,7 @@ public class Client implements Sender {
     private void createStreams() {
         createInputStream();
         createOutputStream();
+        codec = new MessageCodec(input, output);
     }
 
 
@@ -96,7 +272,7 @@ public class Client implements Sender {
      */
     private void createInputStream() {
         try {
-            input = new DataInputStream(socket.getInputStream());
+            input = TransportConfig.getDefault().input(socket);
         } catch (IOException e) {
             throw new StreamException("Couldn't create input stream");
         }
@@ -109,7 +285,7 @@ public class Client implements Sender {
 
     private void createOutputStream() {
         try {
-            output = new DataOutputStream(socket.getOutputStream());
+            output = TransportConfig.getDefault().output(socket);
         } catch (IOException e) {
             throw new StreamException("Couldn't create output stream");
         }
@@ -121,7 +297,7 @@ public class Client implements Sender {
 
     private void openSocket() {
         try {
-            socket = new Socket(host, port);
+            socket = TransportConfig.getDefault().openSocket(host, port, 0);
         } catch (IOException e) {
             throw new ClientSocketException("Client socket binding failed");
         }
@@ -133,20 +309,22 @@ public class Client implements Sender {
      */
 
     private void readFile() throws IOException {
-        int fileLength = input.readInt();
-        String fileName = input.readUTF();
-        byte[] fileBytes = new byte[fileLength];
-        input.readNBytes(fileBytes, 0, fileLength);
-        boolean success = FileManager.saveFileFromByteArray(fileBytes, path, fileName);
+        int fileLength = codec.readInt();
+        String fileName = codec.readName();
+        boolean success;
+        try (PooledBuffer body = codec.readBody(fileLength, integrity)) {
+            success = integrity.isIntact() && FileManager.saveFileFromBuffer(body.buffer(), path, fileName);
+        }
         if(success) {
-            Platform.runLater(() -> controller.changeLabel("SAVED: " + fileName));
+            events.publish(new StatusEvent("SAVED: " + fileName));
           // ZAKOMENTOWANE  filesList.add(fileName);
         }
-        else Platform.runLater(() -> controller.changeLabel("ERROR WHEN SAVING: " + fileName));
+        else events.publish(new StatusEvent("ERROR WHEN SAVING: " + fileName));
     }
 
     /**
      * Sends file to DataOutputStream in the form of header=3, file's length, file's name and file's bytes
+     * File's name is relative to local folder, so files in subdirectories keep their place on server
      * This method is threadsafe thanks to ReentrantLock set on output stream
      * @param file the file handler
      * @throws IOException if an error occurs when writing
@@ -157,14 +335,41 @@ public class Client implements Sender {
             FileManager.waitTillFileIsReady(file);
         } catch (InterruptedException ignored) {
         }
-        byte[] fileBytes = FileManager.readFileToByteArray(file);
+        String fileName = relativeName(file);
+        if (sessionToken != null && file.length() >= STRIPE_THRESHOLD) {
+            sendStriped(file, fileName);
+            return;
+        }
         lock.lock();
-        output.writeByte(3);
-        output.writeInt(fileBytes.length);
-        output.writeUTF(file.getName());
-        output.write(fileBytes, 0, fileBytes.length);
-        lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("SENT: " + file.getName()));
+        try {
+            FileManager.writeFile(codec, fileName, file);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: " + fileName));
+    }
+
+    /**
+     * Sends large file in byte ranges over additional connections authenticated with session token
+     * Server adds file to list of files when the last range arrives and reports it with header=10
+     * @param file the file handler
+     * @param fileName the name of file relative to local folder
+     * @throws IOException if any range couldn't be sent
+     */
+    private void sendStriped(File file, String fileName) throws IOException {
+        StripedSender sender = new StripedSender(host, port, sessionToken);
+        int stripes = sender.send(file, fileName, transferCounter.incrementAndGet());
+        events.publish(new StatusEvent("SENT: " + fileName + " over " + stripes + " connections"));
+    }
+
+    /**
+     * Gets name of file relative to local folder with '/' as separator
+     * @param file the file handler
+     * @return the relative name
+     */
+    private String relativeName(File file) {
+        return Paths.get(path).toAbsolutePath().relativize(file.toPath().toAbsolutePath())
+                .toString().replace(File.separatorChar, '/');
     }
 
     /**
@@ -174,13 +379,12 @@ public class Client implements Sender {
     public void sendGreeting() {
         lock.lock();
         try {
-            output.writeByte(1);
-            output.writeUTF(this.username);
+            codec.writeGreeting(this.username);
         } catch (IOException e) {
             throw new StreamException("ERROR: Sending greeting to server");
         }
         lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("Sent greeting to server"));
+        events.publish(new StatusEvent("Sent greeting to server"));
     }
 
     /**
@@ -188,10 +392,15 @@ public class Client implements Sender {
      */
     @Override
     public void sendGoodbye() throws IOException {
+        leaving = true;
         lock.lock();
-        output.writeByte(2);
-        lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("SENT: Goodbye to server"));
+        try {
+            codec.writeGoodbye();
+        } finally {
+            lock.unlock();
+        }
+        saveSnapshot();
+        events.publish(new StatusEvent("SENT: Goodbye to server"));
     }
 
     /**
@@ -203,17 +412,17 @@ public class Client implements Sender {
         if(deletedFiles == null) return;
 
         lock.lock();
-        output.writeByte(5);
-        output.writeInt(deletedFiles.size());
-        for (String file: deletedFiles) {
-            output.writeUTF(file);
+        try {
+            codec.writeNames(5, deletedFiles);
+        } finally {
+            lock.unlock();
         }
-        lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("SENT: Files to delete to server"));
+        events.publish(new StatusEvent("SENT: Files to delete to server"));
     }
 
     /**
-     * Sends new files which appeared in the local folder to server by multiple execution of sendFile
+     * Sends new files which appeared in the local folder to server one by one, files are sent by sender thread
+     * after changes handed over before
      * @param addedFiles the list of files' names to be added on server
      */
     @Override
@@ -221,21 +430,219 @@ public class Client implements Sender {
 
         if(addedFiles == null) return;
 
-        for (String fileName : addedFiles) {
-            String filePath = Paths.get(path, fileName).toString();
-            File file = new File(filePath);
-            Thread thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        sendFile(file);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        List<FileEntry> entries = scannedEntries(addedFiles);
+        sender.execute(() -> {
+            for (FileEntry entry : entries) {
+                sendSeparately(entry);
+            }
+        });
+    }
+
+    /**
+     * Sends deleted and added files to server grouped in batches by single sender thread, so changes reach server
+     * in the order they were made
+     * Deletions go in the first batch, files too big for a batch are sent separately afterwards
+     * @param deletedFiles the list of files' names to be deleted on server
+     * @param addedFiles the list of files' names to be added on server
+     */
+    @Override
+    public void sendBatch(List<String> deletedFiles, List<String> addedFiles) {
+
+        if(deletedFiles == null && addedFiles == null) return;
+
+        List<String> deleted = deletedFiles == null ? new ArrayList<>() : deletedFiles;
+        List<FileEntry> added = scannedEntries(addedFiles == null ? new ArrayList<>() : addedFiles);
+        sender.execute(() -> writeBatches(deleted, added));
+    }
+
+    /**
+     * Gets entries of files as they were scanned when they were handed over to sender,
+     * these entries are saved in snapshot when server acknowledges the files
+     * @param names the names of files
+     * @return the entries of files which are still scanned
+     */
+    private List<FileEntry> scannedEntries(List<String> names) {
+        List<FileEntry> entries = new ArrayList<>();
+        for (String name : names) {
+            FileEntry entry = scanned.get(name);
+            if (entry != null) entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Splits files into packs of small files and batches limited by count of files and their total size and writes them
+     * Deletions are written first, so modified files are never deleted after being sent again
+     * Files still being written are left for the next scan of folder
+     * @param deletedFiles the list of files' names to be deleted on server
+     * @param addedFiles the entries of files to be added on server
+     */
+    private void writeBatches(List<String> deletedFiles, List<FileEntry> addedFiles) {
+        List<String> deleted = deletedFiles;
+        List<FileEntry> batch = new ArrayList<>();
+        List<FileEntry> pack = new ArrayList<>();
+        List<FileEntry> separately = new ArrayList<>();
+        long batchBytes = 0;
+
+        for (FileEntry entry : addedFiles) {
+            File file = Paths.get(path, entry.getName()).toFile();
+            if (!FileManager.isFileReady(file)) {
+                unsent.add(entry.getName());
+                continue;
+            }
+            if (file.length() > MAX_BATCH_BYTES) {
+                separately.add(entry);
+                continue;
+            }
+            if (PackWriter.fits(file)) {
+                pack.add(entry);
+                continue;
+            }
+            if (batch.size() == MAX_BATCH_FILES || batchBytes + file.length() > MAX_BATCH_BYTES) {
+                writeBatch(deleted, batch);
+                deleted = new ArrayList<>();
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(entry);
+            batchBytes += file.length();
+        }
+        if (!batch.isEmpty() || !deleted.isEmpty()) writeBatch(deleted, batch);
+        for (int i = 0; i < pack.size(); i += MAX_PACK_FILES) {
+            separately.addAll(writePack(pack.subList(i, Math.min(pack.size(), i + MAX_PACK_FILES))));
+        }
+        for (FileEntry entry : separately) {
+            sendSeparately(entry);
+        }
+    }
+
+    /**
+     * Sends file too big for a batch, large files are striped and acknowledged when all ranges are acknowledged,
+     * other files are sent as batch of one file, so server acknowledges them too
+     * @param entry the entry of file to be added on server
+     */
+    private void sendSeparately(FileEntry entry) {
+        File file = Paths.get(path, entry.getName()).toFile();
+        if (!FileManager.isFileReady(file)) {
+            unsent.add(entry.getName());
+            return;
+        }
+        if (sessionToken == null || file.length() < STRIPE_THRESHOLD) {
+            writeBatch(new ArrayList<>(), List.of(entry));
+            return;
+        }
+        try {
+            sendStriped(file, entry.getName());
+            acknowledge(new ArrayList<>(), List.of(entry));
+        } catch (IOException e) {
+            unsent.add(entry.getName());
+            events.publish(new StatusEvent("ERROR WHEN SENDING: " + entry.getName()));
+        }
+    }
+
+    /**
+     * Sends small files to DataOutputStream in the form of header=11, pack's id and archive written by PackWriter
+     * Server answers the same way as for batch
+     * @param entries the entries of files to be added on server
+     * @return the entries of files which couldn't be packed
+     */
+    private List<FileEntry> writePack(List<FileEntry> entries) {
+        List<FileEntry> rejected = new ArrayList<>();
+        List<FileEntry> packed = new ArrayList<>();
+        int packId = batchCounter.incrementAndGet();
+        PackWriter packWriter = new PackWriter(codec);
+        lock.lock();
+        try {
+            codec.getOutput().writeByte(11);
+            codec.getOutput().writeInt(packId);
+            for (FileEntry entry : entries) {
+                File file = Paths.get(path, entry.getName()).toFile();
+                if (packWriter.add(entry.getName(), file)) packed.add(entry);
+                else if (file.exists()) rejected.add(entry);
+            }
+            sentBatches.put(packId, new SentBatch(new ArrayList<>(), packed));
+            packWriter.finish();
+        } catch (IOException e) {
+            sentBatches.remove(packId);
+            retry(new ArrayList<>(), entries);
+            events.publish(new StatusEvent("ERROR WHEN SENDING: Pack " + packId));
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: Pack " + packId + " with " + packWriter.getCount() + " files"));
+        return rejected;
+    }
+
+    /**
+     * Sends batch to DataOutputStream in the form of header=8, batch's id, count of deleted files, their names,
+     * count of files and for every file its length, name and bytes
+     * Server answers with single acknowledgement and single delta of list of files
+     * @param deletedFiles the list of files' names to be deleted on server
+     * @param entries the entries of files to be added on server
+     */
+    private void writeBatch(List<String> deletedFiles, List<FileEntry> entries) {
+        List<String> names = new ArrayList<>();
+        List<FileEntry> sent = new ArrayList<>();
+        List<PooledBuffer> contents = new ArrayList<>();
+        int batchId = batchCounter.incrementAndGet();
+        try {
+            for (FileEntry entry : entries) {
+                try {
+                    contents.add(FileManager.readFileToBuffer(Paths.get(path, entry.getName()).toFile()));
+                    names.add(entry.getName());
+                    sent.add(entry);
+                } catch (IOException e) {
+                    unsent.add(entry.getName());
                 }
-            });
-            thread.setDaemon(true);
-            thread.start();
+            }
+            if (names.isEmpty() && deletedFiles.isEmpty()) return;
+
+            sentBatches.put(batchId, new SentBatch(deletedFiles, sent));
+            lock.lock();
+            try {
+                codec.writeBatch(batchId, deletedFiles, names, contents);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            sentBatches.remove(batchId);
+            retry(deletedFiles, sent);
+            events.publish(new StatusEvent("ERROR WHEN SENDING: Batch " + batchId));
+            return;
+        } finally {
+            for (PooledBuffer content : contents) {
+                content.close();
+            }
+        }
+        events.publish(new StatusEvent("SENT: Batch " + batchId + " with "
+                + names.size() + " files and " + deletedFiles.size() + " deletions"));
+    }
+
+    /**
+     * Saves changes acknowledged by server in snapshot, it's written to disk by folder observer
+     * @param deletedFiles the names of files deleted on server
+     * @param entries the entries of files saved on server
+     */
+    private void acknowledge(List<String> deletedFiles, List<FileEntry> entries) {
+        for (String name : deletedFiles) {
+            snapshot.remove(name);
+        }
+        for (FileEntry entry : entries) {
+            snapshot.put(entry);
+        }
+        snapshotDirty = true;
+    }
+
+    /**
+     * Hands changes which didn't reach server back to folder observer, they're scanned as changed and sent again
+     * @param deletedFiles the names of files which weren't deleted
+     * @param entries the entries of files which weren't saved
+     */
+    private void retry(List<String> deletedFiles, List<FileEntry> entries) {
+        unsent.addAll(deletedFiles);
+        for (FileEntry entry : entries) {
+            unsent.add(entry.getName());
         }
     }
 
@@ -245,7 +652,7 @@ public class Client implements Sender {
      * @throws IOException
      */
     private byte readHeader() throws IOException {
-        return input.readByte();
+        return codec.readHeader();
     }
 
 
@@ -258,49 +665,345 @@ public class Client implements Sender {
 
         if (header == 4) {
             readFilesList();
+            prefetcher.changed();
         } else if (header == 6) {
             readUsersList();
         } else if (header == 3) {
             readFile();
+        } else if (header == 9) {
+            readBatchAck();
+        } else if (header == 10) {
+            readFilesDelta();
+            prefetcher.changed();
+        } else if (header == 13) {
+            readDeliveryReport();
+        } else if (header == 15) {
+            readPeerRendezvous();
+        } else if (header == 17) {
+            sessionToken = codec.readName();
+        } else if (header == 19) {
+            readStripeAck();
+        } else if (header == 20) {
+            readRepairRequest();
+        } else if (header == 22) {
+            readVersions();
+        } else if (header == 25) {
+            readSearchResults();
+        } else if (header == 27) {
+            readListingPage();
+        } else if (header == 28) {
+            readListingChanged();
+            prefetcher.changed();
+        } else if (header == 39) {
+            readFetched();
+        } else if (header == 41) {
+            prefetcher.hints(codec.readEntries(new ArrayList<>()));
+        } else if (header == 42) {
+            readPing();
+        } else if (header == 43) {
+            codec.readLong();
         }
     }
 
     /**
-     * Reads list of users from DataOutputStream and sets it in the GUI
-     * @throws IOException
+     * Reads heartbeat of server and answers it with header=43, server closes connection of client which doesn't answer
+     * @throws IOException if an error occurs when reading or writing
      */
-    private void readUsersList() throws IOException {
-        int usersCount = input.readInt();
+    private void readPing() throws IOException {
+        long sent = codec.readLong();
+        lock.lock();
+        try {
+            codec.writePong(sent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads file fetched from server in the form of file's name, boolean telling if file was found and for found file
+     * its modification time, length and bytes, and saves it in read cache
+     * @throws IOException if an error occurs when reading
+     */
+    private void readFetched() throws IOException {
+        String fileName = codec.readName();
+        if (!codec.readBoolean()) {
+            readCache.fail(fileName, new FileNotFoundException(fileName));
+            return;
+        }
+        long modified = codec.readLong();
+        int fileLength = codec.readInt();
+        try (PooledBuffer body = codec.readBody(fileLength, integrity)) {
+            if (integrity.isIntact()) readCache.receive(fileName, modified, body.buffer());
+            else readCache.fail(fileName, new IOException("Corrupted " + fileName));
+        }
+    }
+
+    /**
+     * Reads request for corrupted chunks of sent file and sends them again as ranges in the background
+     * @throws IOException if an error occurs when reading
+     */
+    private void readRepairRequest() throws IOException {
+        int transferId = codec.readInt();
+        String fileName = codec.readName();
+        long length = codec.readLong();
+        List<Long> corrupted = codec.readOffsets(new ArrayList<>());
+        repairLengths.put(transferId, length);
+        repairNames.put(transferId, fileName);
+        sendChunks(transferId, corrupted);
+    }
 
-        List<String> usersList = new ArrayList<>();
-        for(int i = 0; i < usersCount; ++i) {
-            usersList.add(input.readUTF());
+    /**
+     * Reads acknowledgement of resent chunks, chunks which were corrupted again are sent once more
+     * Chunks of file are forgotten when the whole file is acknowledged
+     * @throws IOException if an error occurs when reading
+     */
+    private void readStripeAck() throws IOException {
+        int transferId = codec.readInt();
+        codec.readLong();
+        List<Long> corrupted = codec.readOffsets(new ArrayList<>());
+        if (!corrupted.isEmpty()) sendChunks(transferId, corrupted);
+        if (pendingChunks.merge(transferId, -1, Integer::sum) == 0) {
+            pendingChunks.remove(transferId);
+            repairLengths.remove(transferId);
+            String fileName = repairNames.remove(transferId);
+            FileEntry entry = repairing.remove(fileName);
+            if (entry != null) acknowledge(new ArrayList<>(), List.of(entry));
+            else repaired.add(fileName);
+            events.publish(new StatusEvent("REPAIRED: " + fileName));
         }
+    }
+
+    /**
+     * Sends chunks of file requested by server in the form of header=18 from daemonic thread
+     * Chunks are read from local folder, so they're sent even if file was changed since, server rejects such file
+     * @param transferId the id of transfer chosen by server
+     * @param offsets the positions of chunks
+     */
+    private void sendChunks(int transferId, List<Long> offsets) {
+        String fileName = repairNames.get(transferId);
+        Long length = repairLengths.get(transferId);
+        if (fileName == null || length == null) return;
+        pendingChunks.merge(transferId, offsets.size(), Integer::sum);
 
-        Platform.runLater(() -> controller.usersList.setAll(usersList));
-        Platform.runLater(() -> controller.changeLabel("RECEIVED: List of users"));
+        Thread thread = new Thread(() -> {
+            try (FileChannel channel = FileChannel.open(Paths.get(path, fileName), StandardOpenOption.READ)) {
+                for (long offset : offsets) {
+                    int chunkLength = (int) Math.min(MessageCodec.CHUNK_SIZE, length - offset);
+                    try (PooledBuffer chunk = BufferPool.shared().acquire(chunkLength)) {
+                        ByteBuffer buffer = chunk.buffer();
+                        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) { }
+                        buffer.flip();
+                        lock.lock();
+                        try {
+                            codec.writeStripe(sessionToken, transferId, fileName, length, offset, buffer);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                events.publish(new StatusEvent("ERROR WHEN SENDING: " + fileName));
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
 
+    /**
+     * Reads details of direct connection with another client and downloads offered file in the background
+     * Result is reported to server in the form of header=16, server relays the file if direct transfer failed
+     * @throws IOException
+     */
+    private void readPeerRendezvous() throws IOException {
+        String sender = codec.readName();
+        String filename = codec.readName();
+        String host = codec.readName();
+        int port = codec.readInt();
+        String token = codec.readName();
+
+        Thread thread = new Thread(() -> {
+            boolean transferred;
+            try {
+                String result = PeerConnector.download(host, port, token, path);
+                transferred = true;
+                events.publish(new StatusEvent(result + " from " + sender));
+            } catch (IOException e) {
+                transferred = false;
+                events.publish(new StatusEvent("RELAYING: " + filename + " from " + sender));
+            }
+            lock.lock();
+            try {
+                codec.writePeerResult(token, transferred);
+            } catch (IOException ignored) {
+            } finally {
+                lock.unlock();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Reads list of files from DataOutputStream and sets it in the GUI
+     * Reads report of multicast containing file's name and delivery status of every receiver
      * @throws IOException
      */
-    private void readFilesList() throws IOException {
+    private void readDeliveryReport() throws IOException {
+        String filename = codec.readName();
+        int count = codec.readInt();
+        List<String> failed = new ArrayList<>();
+        for(int i = 0; i < count; ++i) {
+            String receiver = codec.readName();
+            if (!codec.readBoolean()) failed.add(receiver);
+        }
+        String report = failed.isEmpty()
+                ? "DELIVERED: " + filename + " to " + count + " users"
+                : "DELIVERED: " + filename + " to " + (count - failed.size()) + " of " + count + " users, failed: " + String.join(", ", failed);
+        events.publish(new StatusEvent(report));
+    }
 
-        int filesCount = input.readInt();
+    /**
+     * Reads history of file kept on server, the newest version is the first one
+     * @throws IOException if an error occurs when reading
+     */
+    private void readVersions() throws IOException {
+        String filename = codec.readName();
+        List<Version> history = codec.readVersions(filename, new ArrayList<>());
+        versions.put(filename, history);
+        events.publish(new StatusEvent("VERSIONS: " + filename + " has " + history.size() + " earlier versions"));
+    }
+
+    /**
+     * Reads page of files found by server, cursor of the next page is kept for searchMore
+     * @throws IOException if an error occurs when reading
+     */
+    private void readSearchResults() throws IOException {
+        String query = codec.readName();
+        long cursor = codec.readLong();
+        List<FileEntry> found = codec.readEntries(new ArrayList<>());
+        searchResults = found;
+        searchCursor = cursor;
+        events.publish(new StatusEvent("FOUND: " + found.size() + " files for " + query
+                + (cursor < 0 ? "" : ", more available")));
+    }
+
+    /**
+     * @return the files of the last received page of search results
+     */
+    public List<FileEntry> getSearchResults() {
+        return searchResults;
+    }
 
-        List<String> filesList = new ArrayList<>();
-        for(int i = 0; i < filesCount; ++i) {
-            filesList.add(input.readUTF());
+    /**
+     * @return the cursor of the next page of search results or -1 if there are no more results
+     */
+    public long getSearchCursor() {
+        return searchCursor;
+    }
+
+    /**
+     * Gets history of file received with the last answer of server
+     * @param filename the name of file
+     * @return the versions from the newest or empty list if history wasn't requested yet
+     */
+    public List<Version> getVersions(String filename) {
+        return versions.getOrDefault(filename, new ArrayList<>());
+    }
+
+    /**
+     * Reads acknowledgement of batch containing batch's id, count of saved files, names of failed files
+     * and names of files being repaired
+     * Deletions and saved files of batch are saved in snapshot, only failed files are sent again,
+     * files being repaired are saved in snapshot when their repair ends
+     * @throws IOException
+     */
+    private void readBatchAck() throws IOException {
+        int batchId = codec.readInt();
+        int saved = codec.readInt();
+        Set<String> failed = new HashSet<>(codec.readNames(new ArrayList<>()));
+        Set<String> repairs = new HashSet<>(codec.readNames(new ArrayList<>()));
+        SentBatch batch = sentBatches.remove(batchId);
+        if (batch != null) {
+            List<FileEntry> acknowledged = new ArrayList<>();
+            List<FileEntry> retried = new ArrayList<>();
+            for (FileEntry entry : batch.added) {
+                if (failed.contains(entry.getName())) retried.add(entry);
+                else if (!repairs.contains(entry.getName()) || repaired.remove(entry.getName())) acknowledged.add(entry);
+                else repairing.put(entry.getName(), entry);
+            }
+            acknowledge(batch.deleted, acknowledged);
+            retry(new ArrayList<>(), retried);
+        }
+        events.publish(new StatusEvent("ACK: Batch " + batchId + " saved " + saved + ", failed " + failed.size()
+                + ", repairing " + repairs.size()));
+    }
+
+    /**
+     * Reads changes of list of files on server, shown pages of listing are fetched again and cached copies of
+     * changed files are removed
+     * Server sends it only until listing is requested by pages
+     * @throws IOException
+     */
+    private void readFilesDelta() throws IOException {
+        for (String name : codec.readNames(receivedNames)) {
+            readCache.invalidate(name);
         }
+        for (String name : codec.readNames(receivedNames)) {
+            readCache.invalidate(name);
+        }
+        events.publish(new ListingChangedEvent(-1));
+    }
+
+    /**
+     * Reads list of users from DataOutputStream and sets it in the GUI unless it hasn't changed
+     * @throws IOException
+     */
+    private void readUsersList() throws IOException {
+        if (codec.readNames(receivedNames).equals(lastUsersList)) return;
+        List<String> usersList = new ArrayList<>(receivedNames);
+        lastUsersList = usersList;
+
+        events.publish(new UsersEvent(usersList));
+        events.publish(new StatusEvent("RECEIVED: List of users"));
+
+    }
+
+    /**
+     * Reads list of files from DataOutputStream, names aren't kept, shown pages of listing are fetched again instead
+     * Server sends it only until listing is requested by pages
+     * @throws IOException
+     */
+    private void readFilesList() throws IOException {
+        codec.readNames(receivedNames);
+        events.publish(new ListingChangedEvent(-1));
+        events.publish(new StatusEvent("RECEIVED: List of files"));
+    }
+
+    /**
+     * Reads page of listing in the form of generation, count of all files, cursor of page, cursor of the next page
+     * and files, and passes it to list model of the GUI
+     * @throws IOException if an error occurs when reading
+     */
+    private void readListingPage() throws IOException {
+        int generation = codec.readInt();
+        int total = codec.readInt();
+        codec.readLong();
+        codec.readLong();
+        List<FileEntry> entries = codec.readEntries(new ArrayList<>());
+        events.publish(new ListingPageEvent(generation, total, entries));
+    }
 
-        Platform.runLater(() -> controller.filesList.setAll(filesList));
-        Platform.runLater(() -> controller.changeLabel("RECEIVED: List of files"));
+    /**
+     * Reads notice of changed files on server, shown pages of listing are fetched again
+     * @throws IOException if an error occurs when reading
+     */
+    private void readListingChanged() throws IOException {
+        int generation = codec.readInt();
+        events.publish(new ListingChangedEvent(generation));
     }
 
     /**
      * Starts reader thread responsible for reading DataInputStream
+     * Thread ends quietly when server closes connection after goodbye
      * The reader thread is daemonic thread
      */
     private void runReader() {
@@ -309,6 +1012,7 @@ public class Client implements Sender {
                 try {
                     readStream();
                 } catch (IOException e) {
+                    if (leaving) return;
                     throw new StreamException("Reading stream error");
                 }
             }
@@ -327,16 +1031,176 @@ public class Client implements Sender {
 
     /**
      * Sends file's name to be sent to another user in the form of header=7, file's name, receiver's name
+     * If direct transfers are enabled the file is offered through PeerListener in the form of header=14 instead
      * @param filename the name of file to be sent
      * @param receiver the name of destination client
      * @throws IOException if an error occurs when writing
      */
     public void sendFile(String filename, String receiver) throws IOException {
+        File file = Paths.get(path, filename).toFile();
+        if (peerListener != null && file.isFile()) {
+            String token = peerListener.offer(file);
+            lock.lock();
+            try {
+                codec.writePeerOffer(filename, receiver, peerListener.getPort(), token);
+            } finally {
+                lock.unlock();
+            }
+            events.publish(new StatusEvent("OFFERED: " + filename + " to " + receiver));
+            return;
+        }
         lock.lock();
-        output.writeByte(7);
-        output.writeUTF(filename);
-        output.writeUTF(receiver);
-        lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("SENT: " + filename + " to " + receiver));
+        try {
+            codec.writeFileToClient(filename, receiver);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: " + filename + " to " + receiver));
+    }
+
+    /**
+     * Sends file's name to be sent to many users in the form of header=12, file's name, count of receivers
+     * and receivers' names, server uploads the file to all receivers and answers with delivery report
+     * @param filename the name of file to be sent
+     * @param receivers the names of destination clients
+     * @throws IOException if an error occurs when writing
+     */
+    public void sendFile(String filename, List<String> receivers) throws IOException {
+        lock.lock();
+        try {
+            codec.writeMulticast(filename, receivers);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: " + filename + " to " + receivers.size() + " users"));
+    }
+
+    /**
+     * Requests history of file kept on server, server answers with header=22
+     * @param filename the name of file
+     * @throws IOException if an error occurs when writing
+     */
+    public void requestVersions(String filename) throws IOException {
+        lock.lock();
+        try {
+            codec.writeVersionsRequest(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Requests restoring version of file, server keeps current content in history and sends restored file back
+     * @param filename the name of file
+     * @param id the id of version taken from getVersions
+     * @throws IOException if an error occurs when writing
+     */
+    public void restoreVersion(String filename, long id) throws IOException {
+        lock.lock();
+        try {
+            codec.writeRestoreRequest(filename, id);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("RESTORING: " + filename));
+    }
+
+    /**
+     * Searches files kept on server, server answers with header=25
+     * @param query the query of words, "word*", "type:ext", "size>N", "size<N", "modified>N" or "modified<N"
+     * @param cursor the cursor of the next page taken from getSearchCursor or 0 for the first page
+     * @param limit the maximal count of results
+     * @throws IOException if an error occurs when writing
+     */
+    public void search(String query, long cursor, int limit) throws IOException {
+        lock.lock();
+        try {
+            codec.writeSearch(query, cursor, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Requests page of files kept on server sorted and filtered by server, server answers with header=27
+     * and since then notifies about changes with header=28 instead of sending whole list of files
+     * @param query the order and filter
+     * @param cursor the position of the first file of page
+     * @param limit the maximal count of files
+     * @throws IOException if an error occurs when writing
+     */
+    public void requestListing(ListingQuery query, long cursor, int limit) throws IOException {
+        lock.lock();
+        try {
+            codec.writeListingRequest(query, cursor, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens file kept on server, file present in local folder or in read cache is opened at once,
+     * otherwise it's fetched into read cache
+     * @param filename the name of file
+     * @return the future completed with path of file
+     */
+    public CompletableFuture<Path> openFile(String filename) {
+        Path local = Paths.get(path, filename);
+        if (Files.isRegularFile(local)) return CompletableFuture.completedFuture(local);
+        Path cached = readCache.open(filename);
+        if (cached != null) {
+            events.publish(new StatusEvent("OPENED: " + filename + " from cache"));
+            return CompletableFuture.completedFuture(cached);
+        }
+        events.publish(new StatusEvent("FETCHING: " + filename));
+        return readCache.fetch(filename, true);
+    }
+
+    /**
+     * @return the cache of files fetched from server
+     */
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * Requests file kept on server, server answers with header=39
+     * @param filename the name of file
+     * @throws IOException if an error occurs when writing
+     */
+    private void requestFetch(String filename) throws IOException {
+        lock.lock();
+        try {
+            codec.writeFetch(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Requests the most recently modified files kept on server, server answers with header=41
+     * @param limit the maximal count of files
+     * @throws IOException if an error occurs when writing
+     */
+    private void requestRecent(int limit) throws IOException {
+        lock.lock();
+        try {
+            codec.writeRecentRequest(limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This class represents batch or pack waiting for acknowledgement of server
+     */
+    private static class SentBatch {
+        private final List<String> deleted;
+        private final List<FileEntry> added;
+
+        private SentBatch(List<String> deleted, List<FileEntry> added) {
+            this.deleted = deleted;
+            this.added = added;
+        }
     }
 }
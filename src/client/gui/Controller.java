@@ -2,14 +2,25 @@ package client.gui;
 
 import client.Client;
 import client.models.CredentialsValidator;
+import client.models.FilesListModel;
+import client.models.ListingChangedEvent;
+import client.models.ListingPageEvent;
 import client.models.WrongCredentialsException;
+import common.EventBus;
+import common.ListingQuery;
+import common.StatusEvent;
+import common.UsersEvent;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
+import javafx.scene.input.MouseEvent;
 
+import java.awt.Desktop;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class represents main JavaFX controller for client
@@ -31,10 +42,14 @@ public class Controller {
     public TextField pathTextField;
     @FXML
     public TextField usernameTextField;
+    @FXML
+    public TextField filterTextField;
+    @FXML
+    public Button sortButton;
 
 
     public ObservableList<String> usersList = FXCollections.observableArrayList();
-    public ObservableList<String> filesList = FXCollections.observableArrayList();
+    public FilesListModel filesList = new FilesListModel();
 
     private Client client = null;
 
@@ -61,17 +76,45 @@ public class Controller {
             bottomLabel.setText("ERROR: You have to log in first");
             return;
         }
-        String receiver = usersListView.getSelectionModel().getSelectedItem();
+        List<String> receivers = new ArrayList<>(usersListView.getSelectionModel().getSelectedItems());
         String filename = filesListView.getSelectionModel().getSelectedItem();
-        if(receiver == null || filename == null) {
+        if(receivers.isEmpty() || filename == null || filename.isEmpty()) {
             bottomLabel.setText("ERROR: You have to choose receiver and filename");
             return;
         }
         try {
-            client.sendFile(filename, receiver);
+            if(receivers.size() == 1) client.sendFile(filename, receivers.get(0));
+            else client.sendFile(filename, receivers);
         } catch (IOException ignored) { }
     }
 
+    /**
+     * Opens double-clicked file, file which isn't in local folder or read cache is fetched from server first
+     * File is opened by default application of system in daemonic thread, so the GUI doesn't wait for it
+     * @param mouseEvent the click
+     */
+    public void filesListClicked(MouseEvent mouseEvent) {
+        if (client == null || mouseEvent.getClickCount() < 2) return;
+        String filename = filesListView.getSelectionModel().getSelectedItem();
+        if (filename == null || filename.isEmpty()) return;
+        client.openFile(filename).whenComplete((file, error) -> {
+            if (error != null) {
+                EventBus.shared().publish(new StatusEvent("ERROR: Opening " + filename));
+                return;
+            }
+            if (!Desktop.isDesktopSupported() || !Desktop.getDesktop().isSupported(Desktop.Action.OPEN)) return;
+            Thread thread = new Thread(() -> {
+                try {
+                    Desktop.getDesktop().open(file.toFile());
+                } catch (IOException e) {
+                    EventBus.shared().publish(new StatusEvent("ERROR: Opening " + filename));
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
     /**
      * Runs when the client finishes his work
      */
@@ -90,7 +133,30 @@ public class Controller {
         String username = usernameTextField.getText();
         String path = pathTextField.getText();
         CredentialsValidator.validate(username, path);
-        this.client = new Client(this, username, path, "localhost", 2115);
+        this.client = new Client(username, path, System.getProperty("filemanager.server.host", "localhost"),
+                Integer.getInteger("filemanager.server.port", 2115));
+        filesList.setLoader(client::requestListing);
+    }
+
+    /**
+     * Filters files by text of filter field, files are filtered by server
+     * @param actionEvent not used parameter
+     */
+    public void filterChanged(ActionEvent actionEvent) {
+        ListingQuery query = filesList.getQuery();
+        filesList.setQuery(new ListingQuery(query.getSort(), query.isDescending(), filterTextField.getText()));
+    }
+
+    /**
+     * Switches order of files between name, size and modification time, files are sorted by server
+     * Files ordered by size and time are listed from the greatest
+     * @param actionEvent not used parameter
+     */
+    public void sortButtonPressed(ActionEvent actionEvent) {
+        ListingQuery query = filesList.getQuery();
+        byte sort = (byte) ((query.getSort() + 1) % 3);
+        filesList.setQuery(new ListingQuery(sort, sort != ListingQuery.BY_NAME, query.getFilter()));
+        sortButton.setText(sort == ListingQuery.BY_SIZE ? "Size" : sort == ListingQuery.BY_MODIFIED ? "Date" : "Name");
     }
 
     /**
@@ -103,12 +169,22 @@ public class Controller {
 
 
     /**
-     * Runs after controller's constructor, on default sets ListView items as ObservableLists
+     * Runs after controller's constructor, on default sets ListView items as ObservableLists and subscribes to events of models
+     * Many receivers can be selected at once
      */
     @FXML
     public void initialize() {
         usersListView.setItems(usersList);
+        usersListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         filesListView.setItems(filesList);
+        EventBus events = EventBus.shared();
+        events.subscribe(StatusEvent.class, event -> changeLabel(event.getText()));
+        events.subscribe(UsersEvent.class, event -> usersList.setAll(event.getUsers()));
+        events.subscribe(ListingPageEvent.class, event -> filesList.receive(event.getGeneration(), event.getTotal(), event.getEntries()));
+        events.subscribe(ListingChangedEvent.class, event -> {
+            if (event.getGeneration() < 0) filesList.refresh();
+            else filesList.changed(event.getGeneration());
+        });
     }
 
 }
@@ -0,0 +1,201 @@
+package client.models;
+
+import common.FileEntry;
+import common.ListingQuery;
+import javafx.collections.ObservableListBase;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * This class represents list of files kept on server which is loaded by pages when ListView shows them
+ * Only the least recently shown pages are kept, so memory doesn't depend on count of files
+ * Rows of pages which aren't loaded yet are empty strings
+ * When files change, pages are fetched again only after previous requests are answered, so fast changes
+ * cost one round trip at a time
+ * All methods have to be called by JavaFX application thread
+ * @author Jakub Reszka
+ */
+public class FilesListModel extends ObservableListBase<String> {
+
+    private static final int PAGE_SIZE = Integer.getInteger("filemanager.listing.pageSize", 200);
+    private static final int CACHED_PAGES = Integer.getInteger("filemanager.listing.cachedPages", 8);
+
+    /**
+     * Interface represents sending of request for page of listing
+     */
+    public interface PageLoader {
+        void load(ListingQuery query, long cursor, int limit) throws IOException;
+    }
+
+    /**
+     * Loaded page with generation of listing it was taken from
+     */
+    private static class Page {
+        final int generation;
+        final List<FileEntry> entries;
+
+        Page(int generation, List<FileEntry> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Sent request, server answers requests in order of sending
+     */
+    private static class Request {
+        final ListingQuery query;
+        final int number;
+
+        Request(ListingQuery query, int number) {
+            this.query = query;
+            this.number = number;
+        }
+    }
+
+    private final Map<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final Set<Integer> requested = new HashSet<>();
+    private final Queue<Request> outstanding = new ArrayDeque<>();
+    private PageLoader loader = null;
+    private ListingQuery query = ListingQuery.byName();
+    private int generation = -1;
+    private int latest = -1;
+    private int size = 0;
+    private boolean stale = false;
+
+    /**
+     * Sets loader of pages and loads the first page
+     * @param loader the loader sending requests to server
+     */
+    public void setLoader(PageLoader loader) {
+        this.loader = loader;
+        request(0);
+    }
+
+    /**
+     * Changes order and filter of listing, which is loaded again from the first page
+     * @param query the order and filter
+     */
+    public void setQuery(ListingQuery query) {
+        if (query.equals(this.query)) return;
+        this.query = query;
+        pages.clear();
+        requested.clear();
+        generation = -1;
+        request(0);
+    }
+
+    /**
+     * @return the current order and filter
+     */
+    public ListingQuery getQuery() {
+        return query;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        int number = index / PAGE_SIZE;
+        Page page = pages.get(number);
+        if (page == null || page.generation < latest) request(number);
+        if (page == null || index % PAGE_SIZE >= page.entries.size()) return "";
+        return page.entries.get(index % PAGE_SIZE).getName();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void request(int number) {
+        if (loader == null || !requested.add(number)) return;
+        Request request = new Request(query, number);
+        outstanding.add(request);
+        try {
+            loader.load(query, (long) number * PAGE_SIZE, PAGE_SIZE);
+        } catch (IOException e) {
+            outstanding.remove(request);
+            requested.remove(number);
+        }
+    }
+
+    /**
+     * Applies page received from server, size of list follows count of files in the newest page
+     * @param generation the generation of listing
+     * @param total the count of all listed files
+     * @param entries the files of page
+     */
+    public void receive(int generation, int total, List<FileEntry> entries) {
+        Request request = outstanding.poll();
+        if (request == null || !request.query.equals(query)) return;
+        requested.remove(request.number);
+        latest = Math.max(latest, generation);
+        pages.put(request.number, new Page(generation, entries));
+
+        beginChange();
+        if (total != size) {
+            List<String> removed = Collections.nCopies(size, "");
+            size = total;
+            nextRemove(0, removed);
+            nextAdd(0, total);
+        } else if (generation != this.generation || (stale && outstanding.isEmpty())) {
+            nextReplace(0, size, Collections.nCopies(size, ""));
+        } else {
+            int from = Math.min(request.number * PAGE_SIZE, size);
+            int to = Math.min(from + entries.size(), size);
+            nextReplace(from, to, Collections.nCopies(to - from, ""));
+        }
+        this.generation = generation;
+        if (outstanding.isEmpty()) stale = false;
+        endChange();
+    }
+
+    /**
+     * Marks loaded pages as outdated after files changed on server, shown pages are fetched again
+     * @param generation the new generation of listing
+     */
+    public void changed(int generation) {
+        if (generation <= latest) return;
+        latest = generation;
+        refresh();
+    }
+
+    /**
+     * Fetches shown pages again, if requests are pending it's done after they are answered
+     */
+    public void refresh() {
+        pages.replaceAll((number, page) -> new Page(Integer.MIN_VALUE, page.entries));
+        if (!outstanding.isEmpty()) {
+            stale = true;
+            return;
+        }
+        if (size == 0) return;
+        beginChange();
+        nextReplace(0, size, Collections.nCopies(size, ""));
+        endChange();
+    }
+
+    /**
+     * @return the count of entries kept in memory
+     */
+    public int getLoadedCount() {
+        int count = 0;
+        for (Page page : pages.values()) {
+            count += page.entries.size();
+        }
+        return count;
+    }
+}
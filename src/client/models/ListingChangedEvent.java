@@ -0,0 +1,32 @@
+package client.models;
+
+import common.EventBus;
+
+/**
+ * This class represents event of files changed on server, shown pages of listing have to be fetched again
+ * @author Jakub Reszka
+ */
+public class ListingChangedEvent implements EventBus.Coalesced {
+
+    private final int generation;
+
+    /**
+     * Constructs event with given params
+     * @param generation the new generation of listing or -1 if it isn't known
+     */
+    public ListingChangedEvent(int generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public Object key() {
+        return "listing";
+    }
+}
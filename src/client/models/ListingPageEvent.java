@@ -0,0 +1,49 @@
+package client.models;
+
+import common.FileEntry;
+
+import java.util.List;
+
+/**
+ * This class represents event of page of listing received from server, pages are never coalesced
+ * @author Jakub Reszka
+ */
+public class ListingPageEvent {
+
+    private final int generation;
+    private final int total;
+    private final List<FileEntry> entries;
+
+    /**
+     * Constructs event with given params
+     * @param generation the generation of listing
+     * @param total the count of all listed files
+     * @param entries the files of page
+     */
+    public ListingPageEvent(int generation, int total, List<FileEntry> entries) {
+        this.generation = generation;
+        this.total = total;
+        this.entries = entries;
+    }
+
+    /**
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return total
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return entries
+     */
+    public List<FileEntry> getEntries() {
+        return entries;
+    }
+}
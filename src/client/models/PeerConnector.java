@@ -0,0 +1,49 @@
+package client.models;
+
+import common.FileManager;
+import common.MessageCodec;
+import common.PooledBuffer;
+import common.TransportConfig;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * This class collects files offered by other clients through direct connection
+ * @author Jakub Reszka
+ */
+public abstract class PeerConnector {
+
+    private static final int CONNECT_TIMEOUT = 3_000;
+    private static final int READ_TIMEOUT = 30_000;
+
+    /**
+     * Connects to another client, presents token and saves received file in given folder
+     * @param host the address of sending client
+     * @param port the port of sending client's PeerListener
+     * @param token the token of offer
+     * @param path the path to local folder
+     * @return the name of received file and whether it was saved, in the form of "SAVED: name" or "ERROR WHEN SAVING: name"
+     * @throws IOException if file couldn't be received, then it should be relayed by server
+     */
+    public static String download(String host, int port, String token, String path) throws IOException {
+        try (Socket socket = TransportConfig.getDefault().openSocket(host, port, CONNECT_TIMEOUT)) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream input = TransportConfig.getDefault().input(socket);
+            DataOutputStream output = TransportConfig.getDefault().output(socket);
+            MessageCodec codec = new MessageCodec(input, output);
+
+            output.writeUTF(token);
+            output.flush();
+            if (codec.readHeader() != 3) throw new IOException("Offer of token " + token + " was rejected");
+            int fileLength = codec.readInt();
+            String fileName = codec.readName();
+            try (PooledBuffer body = codec.readBody(fileLength)) {
+                boolean saved = FileManager.saveFileFromBuffer(body.buffer(), path, fileName);
+                return (saved ? "SAVED: " : "ERROR WHEN SAVING: ") + fileName;
+            }
+        }
+    }
+}
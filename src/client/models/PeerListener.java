@@ -0,0 +1,125 @@
+package client.models;
+
+import common.FileManager;
+import common.MessageCodec;
+import common.TransportConfig;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class accepts direct connections from other clients and sends them offered files
+ * Every offer is identified by random one-time token which the connecting client has to present
+ * Offers which weren't collected within OFFER_TIMEOUT are dropped
+ * @author Jakub Reszka
+ */
+public class PeerListener {
+
+    private static final long OFFER_TIMEOUT = 60_000;
+    private static final int READ_TIMEOUT = 30_000;
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Offer> offers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private Thread acceptor = null;
+
+    /**
+     * Constructs listener bound to any free port and starts acceptor thread
+     * @throws IOException if binding fails
+     */
+    public PeerListener() throws IOException {
+        this.serverSocket = TransportConfig.getDefault().openServerSocket(0);
+        this.runAcceptor();
+    }
+
+    /**
+     * Offers file to be collected by another client
+     * @param file the file handle
+     * @return the token which has to be presented by receiver
+     */
+    public String offer(File file) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        offers.values().removeIf(offer -> offer.expires < System.currentTimeMillis());
+        offers.put(token.toString(), new Offer(file, System.currentTimeMillis() + OFFER_TIMEOUT));
+        return token.toString();
+    }
+
+    /**
+     * @return port the listener is bound to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Runs acceptor thread, every accepted connection is served by its own daemonic thread
+     */
+    private void runAcceptor() {
+        acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException ignored) { }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Reads token from connected client and answers with offered file in the form of header=3,
+     * file's length, file's name and file's bytes, or with header=0 if token is unknown
+     * @param socket the socket connected with receiver
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            TransportConfig.getDefault().configure(socket);
+            DataInputStream input = TransportConfig.getDefault().input(socket);
+            DataOutputStream output = TransportConfig.getDefault().output(socket);
+            MessageCodec codec = new MessageCodec(input, output);
+
+            Offer offer = offers.remove(input.readUTF());
+            if (offer == null || offer.expires < System.currentTimeMillis() || !offer.file.isFile()) {
+                output.writeByte(0);
+            } else {
+                FileManager.writeFile(codec, offer.file.getName(), offer.file);
+            }
+            output.flush();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * File offered to another client together with expiration time
+     */
+    private static class Offer {
+        private final File file;
+        private final long expires;
+
+        Offer(File file, long expires) {
+            this.file = file;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package client.models;
+
+import common.FileEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class downloads files which are likely to be opened into ReadCache in the background
+ * When files on server change it asks server for the most recently modified files, changes coming within
+ * filemanager.prefetch.intervalMillis are answered by single request
+ * Candidates are ordered by age multiplied by size, so new small files go first, files present in local folder,
+ * already cached and bigger than filemanager.prefetch.maxFileBytes are skipped and all candidates together
+ * take at most half of cache, so prefetching never evicts opened files
+ * At most filemanager.prefetch.inFlight files are fetched at once, so prefetching doesn't delay opened files
+ * @author Jakub Reszka
+ */
+public class Prefetcher {
+
+    private static final int HINTS = Integer.getInteger("filemanager.prefetch.hints", 64);
+    private static final long MAX_FILE_BYTES = Long.getLong("filemanager.prefetch.maxFileBytes", 8L * 1024 * 1024);
+    private static final int IN_FLIGHT = Integer.getInteger("filemanager.prefetch.inFlight", 2);
+    private static final long INTERVAL_MILLIS = Long.getLong("filemanager.prefetch.intervalMillis", 2000);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Interface represents sending of request for the most recently modified files
+     */
+    public interface Requester {
+        void requestRecent(int limit) throws IOException;
+    }
+
+    private final ReadCache cache;
+    private final String path;
+    private final long budget;
+    private final Requester requester;
+    private final Deque<String> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private boolean scheduled = false;
+
+    /**
+     * Constructs prefetcher with given params
+     * @param cache the cache files are downloaded into
+     * @param path the path to local folder
+     * @param capacity the capacity of cache
+     * @param requester the sender of requests for the most recently modified files
+     */
+    public Prefetcher(ReadCache cache, String path, long capacity, Requester requester) {
+        this.cache = cache;
+        this.path = path;
+        this.budget = capacity / 2;
+        this.requester = requester;
+    }
+
+    /**
+     * Notes that files on server changed, the most recently modified files are requested after interval
+     */
+    public synchronized void changed() {
+        if (scheduled || HINTS <= 0) return;
+        scheduled = true;
+        scheduler.schedule(this::request, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void request() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        try {
+            requester.requestRecent(HINTS);
+        } catch (IOException ignored) {
+            // connection is lost, nothing to prefetch into
+        }
+    }
+
+    /**
+     * Replaces queue of files to be prefetched with the best of the most recently modified files
+     * Cached copies of listed files which changed on server are removed
+     * @param entries the most recently modified files on server
+     */
+    public void hints(List<FileEntry> entries) {
+        long now = System.currentTimeMillis();
+        List<FileEntry> candidates = new ArrayList<>();
+        for (FileEntry entry : entries) {
+            if (cache.contains(entry.getName()) && !cache.isCurrent(entry.getName(), entry.getSize(), entry.getModified())) {
+                cache.invalidate(entry.getName());
+            }
+            if (entry.getSize() > MAX_FILE_BYTES || cache.contains(entry.getName())) continue;
+            File local = Paths.get(path, entry.getName()).toFile();
+            if (local.isFile() && local.length() == entry.getSize()) continue;
+            candidates.add(entry);
+        }
+        candidates.sort(Comparator.comparingDouble(entry ->
+                Math.max(1, now - entry.getModified()) * (1 + (double) entry.getSize() / MAX_FILE_BYTES)));
+        synchronized (this) {
+            queue.clear();
+            long taken = 0;
+            for (FileEntry entry : candidates) {
+                if (taken + entry.getSize() > budget) continue;
+                taken += entry.getSize();
+                queue.add(entry.getName());
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Starts fetching queued files until limit of fetches in flight is reached
+     */
+    private void pump() {
+        while (true) {
+            String name;
+            synchronized (this) {
+                if (inFlight >= IN_FLIGHT || queue.isEmpty()) return;
+                name = queue.poll();
+                inFlight++;
+            }
+            cache.fetch(name, false).whenComplete((Path file, Throwable error) -> {
+                synchronized (this) {
+                    inFlight--;
+                }
+                pump();
+            });
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package client.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class keeps files fetched from server in local directory of bounded size, so opening them again is instant
+ * Cache is segmented LRU: fetched files enter probation segment and move to protected segment when they are opened,
+ * files are evicted from probation first, so prefetched files which are never opened don't push out opened ones,
+ * protected segment takes at most PROTECTED_SHARE of capacity and its least recently opened files go back to probation
+ * Modification time of cached file is the time of file on server, so cached file is valid while server reports the same
+ * size and time
+ * @author Jakub Reszka
+ */
+public class ReadCache {
+
+    private static final double PROTECTED_SHARE = 0.8;
+
+    /**
+     * Interface represents sending of request for file
+     */
+    public interface Fetcher {
+        void fetch(String name) throws IOException;
+    }
+
+    /**
+     * Fetch waiting for answer of server
+     */
+    private static class Pending {
+        final CompletableFuture<Path> result = new CompletableFuture<>();
+        boolean opened;
+
+        Pending(boolean opened) {
+            this.opened = opened;
+        }
+    }
+
+    private final Path directory;
+    private final long capacity;
+    private final Fetcher fetcher;
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> protectedFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Pending> pending = new HashMap<>();
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs cache with given params, files left in directory by previous runs are kept in probation
+     * from the oldest to the newest
+     * @param directory the directory of cached files
+     * @param capacity the maximal count of bytes of cached files
+     * @param fetcher the sender of requests for files
+     */
+    public ReadCache(Path directory, long capacity, Fetcher fetcher) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.capacity = capacity;
+        this.fetcher = fetcher;
+        if (!Files.isDirectory(this.directory)) return;
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            List<Path> found = files.filter(Files::isRegularFile)
+                    .sorted(Comparator.comparingLong(ReadCache::lastModified))
+                    .collect(Collectors.toList());
+            for (Path file : found) {
+                String name = this.directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (name.endsWith(".tmp")) Files.deleteIfExists(file);
+                else insert(probation, name, Files.size(file));
+            }
+        } catch (IOException ignored) { }
+        evict();
+    }
+
+    /**
+     * Gets cached file and marks it as opened
+     * @param name the name of file
+     * @return the path of cached file or null if it isn't cached
+     */
+    public synchronized Path open(String name) {
+        Long size = probation.remove(name);
+        if (size != null) {
+            probationBytes -= size;
+            insert(protectedFiles, name, size);
+            balance();
+        } else if (protectedFiles.get(name) == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return directory.resolve(name);
+    }
+
+    /**
+     * Checks if file is cached in version reported by server, it doesn't change order of eviction
+     * @param name the name of file
+     * @param size the size of file on server
+     * @param modified the modification time of file on server
+     * @return true if cached file has the same size and modification time
+     */
+    public synchronized boolean isCurrent(String name, long size, long modified) {
+        Long cached = probation.containsKey(name) ? probation.get(name) : protectedFiles.get(name);
+        return cached != null && cached == size && lastModified(directory.resolve(name)) == modified;
+    }
+
+    /**
+     * @param name the name of file
+     * @return true if file is cached or being fetched
+     */
+    public synchronized boolean contains(String name) {
+        return probation.containsKey(name) || protectedFiles.containsKey(name) || pending.containsKey(name);
+    }
+
+    /**
+     * Fetches file from server unless it's being fetched already
+     * @param name the name of file
+     * @param opened true if file is fetched because it's opened, false if it's prefetched
+     * @return the future completed with path of cached file
+     */
+    public CompletableFuture<Path> fetch(String name, boolean opened) {
+        Pending request;
+        synchronized (this) {
+            request = pending.get(name);
+            if (request != null) {
+                request.opened |= opened;
+                return request.result;
+            }
+            request = new Pending(opened);
+            pending.put(name, request);
+        }
+        try {
+            fetcher.fetch(name);
+        } catch (IOException e) {
+            synchronized (this) {
+                pending.remove(name);
+            }
+            request.result.completeExceptionally(e);
+        }
+        return request.result;
+    }
+
+    /**
+     * Saves file received from server and completes its fetch
+     * @param name the name of file
+     * @param modified the modification time of file on server
+     * @param body the file's bytes
+     */
+    public void receive(String name, long modified, ByteBuffer body) {
+        Pending request;
+        synchronized (this) {
+            request = pending.remove(name);
+        }
+        Path target = directory.resolve(name).normalize();
+        try {
+            if (!target.startsWith(directory)) throw new IOException("Invalid name " + name);
+            write(target, body, modified);
+        } catch (IOException e) {
+            if (request != null) request.result.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            remove(name);
+            insert(request != null && request.opened ? protectedFiles : probation, name, body.remaining());
+            balance();
+            evict();
+        }
+        if (request != null) request.result.complete(target);
+    }
+
+    /**
+     * Fails fetch of file which server doesn't have or which came corrupted, cached copy of file is removed
+     * @param name the name of file
+     * @param cause the reason of failure
+     */
+    public void fail(String name, IOException cause) {
+        Pending request;
+        synchronized (this) {
+            request = pending.remove(name);
+            invalidate(name);
+        }
+        if (request != null) request.result.completeExceptionally(cause);
+    }
+
+    /**
+     * Removes cached file which changed or was removed on server
+     * @param name the name of file
+     */
+    public synchronized void invalidate(String name) {
+        if (remove(name)) delete(name);
+    }
+
+    private static void write(Path target, ByteBuffer body, long modified) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temporary = Files.createTempFile(target.getParent(), ".fetch", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer source = body.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+            Files.setLastModifiedTime(temporary, FileTime.fromMillis(modified));
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void insert(LinkedHashMap<String, Long> segment, String name, long size) {
+        segment.put(name, size);
+        if (segment == probation) probationBytes += size;
+        else protectedBytes += size;
+    }
+
+    private boolean remove(String name) {
+        Long size = probation.remove(name);
+        if (size != null) {
+            probationBytes -= size;
+            return true;
+        }
+        size = protectedFiles.remove(name);
+        if (size != null) {
+            protectedBytes -= size;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the least recently opened files from protected segment back to probation while it's over its share
+     */
+    private void balance() {
+        Iterator<Map.Entry<String, Long>> eldest = protectedFiles.entrySet().iterator();
+        while (protectedBytes > capacity * PROTECTED_SHARE && protectedFiles.size() > 1) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            protectedBytes -= entry.getValue();
+            insert(probation, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void evict() {
+        while (probationBytes + protectedBytes > capacity && !(probation.isEmpty() && protectedFiles.isEmpty())) {
+            LinkedHashMap<String, Long> segment = probation.isEmpty() ? protectedFiles : probation;
+            String name = segment.keySet().iterator().next();
+            remove(name);
+            delete(name);
+            evictions++;
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException ignored) { }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the count of cached bytes
+     */
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * @return the statistics of cache in the form of hits, misses, evictions and cached bytes
+     */
+    public synchronized String getStats() {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " bytes=" + getBytes();
+    }
+}
@@ -14,6 +14,7 @@ public interface Sender {
     void sendFile(File file) throws IOException;
     void sendDeleted(List<String> deletedFiles) throws IOException;
     void sendAdded(List<String> addedFiles) throws IOException;
+    void sendBatch(List<String> deletedFiles, List<String> addedFiles) throws IOException;
     void sendGreeting() throws IOException;
     void sendGoodbye() throws IOException;
 }
@@ -0,0 +1,203 @@
+package client.models;
+
+import common.BufferPool;
+import common.MessageCodec;
+import common.PooledBuffer;
+import common.TransportConfig;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends large file split into byte ranges over many connections authenticated with the same session
+ * Sending starts with one connection, another one is opened whenever throughput measured over the last ranges
+ * has grown by at least 10%, until the limit of connections is reached, and one connection is closed after its
+ * range whenever throughput has dropped by at least 10%, so connections which only compete are given up
+ * The limit can be set with system property filemanager.stripes
+ * Chunks of ranges which server reports as corrupted are put back to the queue and sent again one by one
+ * Range whose connection failed is put back to the queue and another connection is opened instead,
+ * sending fails after filemanager.stripes.retries failed connections
+ * @author Jakub Reszka
+ */
+public class StripedSender {
+
+    public static final int RANGE_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_STRIPES = Integer.getInteger("filemanager.stripes", 4);
+    private static final int MAX_RETRIES = Integer.getInteger("filemanager.stripes.retries", 3);
+
+    private final String host;
+    private final int port;
+    private final String session;
+
+    private final ConcurrentLinkedQueue<long[]> ranges = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final List<Thread> stripes = new ArrayList<>();
+    private volatile IOException failure = null;
+    private int active = 0;
+    private int retiring = 0;
+    private int failures = 0;
+    private long epochStart;
+    private long epochBytes;
+    private double lastThroughput = 0;
+
+    /**
+     * Constructs sender with given params
+     * @param host the host name
+     * @param port the port number
+     * @param session the session token received from server
+     */
+    public StripedSender(String host, int port, String session) {
+        this.host = host;
+        this.port = port;
+        this.session = session;
+    }
+
+    /**
+     * Sends file and waits until all ranges are acknowledged by server
+     * @param file the file handle
+     * @param fileName the name of file on server
+     * @param transferId the id of transfer unique for session
+     * @return the count of used connections
+     * @throws IOException if any range couldn't be sent
+     */
+    public int send(File file, String fileName, int transferId) throws IOException {
+        long length = file.length();
+        for (long offset = 0; offset < length; offset += RANGE_SIZE) {
+            ranges.add(new long[] {offset, Math.min(RANGE_SIZE, length - offset)});
+        }
+        epochStart = System.nanoTime();
+        addStripe(file, fileName, transferId, length);
+
+        int joined = 0;
+        while (true) {
+            Thread stripe;
+            synchronized (this) {
+                if (joined == stripes.size()) break;
+                stripe = stripes.get(joined);
+            }
+            try {
+                stripe.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending " + fileName, e);
+            }
+            joined++;
+        }
+        if (failure != null) throw failure;
+        if (sent.get() != length) throw new IOException("Not all ranges of " + fileName + " were sent");
+        return joined;
+    }
+
+    /**
+     * Starts new stripe thread with its own connection
+     */
+    private synchronized void addStripe(File file, String fileName, int transferId, long length) {
+        Thread stripe = new Thread(() -> runStripe(file, fileName, transferId, length));
+        stripe.setDaemon(true);
+        stripes.add(stripe);
+        active++;
+        stripe.start();
+    }
+
+    /**
+     * Takes next range unless this stripe should be closed because throughput dropped
+     * @return the range or null if stripe should end
+     */
+    private synchronized long[] take() {
+        if (failure != null) return null;
+        if (retiring > 0 && active > 1) {
+            retiring--;
+            active--;
+            return null;
+        }
+        long[] next = ranges.poll();
+        if (next == null) active--;
+        return next;
+    }
+
+    /**
+     * Puts range of failed connection back to the queue and opens another connection instead,
+     * whole transfer fails when there were too many failed connections
+     */
+    private synchronized void retry(long[] range, IOException cause, File file, String fileName, int transferId, long length) {
+        active--;
+        if (++failures > MAX_RETRIES) {
+            failure = cause;
+            return;
+        }
+        if (range != null) ranges.add(range);
+        if (!ranges.isEmpty()) addStripe(file, fileName, transferId, length);
+    }
+
+    /**
+     * Sends ranges taken from shared queue in the form of header=18, session token, transfer's id, file's name,
+     * file's length, range's offset, range's length and range's bytes, then waits for acknowledgement
+     * which lists corrupted chunks
+     */
+    private void runStripe(File file, String fileName, int transferId, long length) {
+        long[] next = null;
+        boolean ended = false;
+        try (Socket socket = TransportConfig.getDefault().openSocket(host, port, 0);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageCodec codec = new MessageCodec(TransportConfig.getDefault().input(socket),
+                    TransportConfig.getDefault().output(socket));
+
+            List<Long> corrupted = new ArrayList<>();
+            while (!ended) {
+                next = take();
+                if (next == null) {
+                    ended = true;
+                    continue;
+                }
+                long offset = next[0];
+                int rangeLength = (int) next[1];
+                try (PooledBuffer range = BufferPool.shared().acquire(rangeLength)) {
+                    ByteBuffer buffer = range.buffer();
+                    while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) { }
+                    buffer.flip();
+                    codec.writeStripe(session, transferId, fileName, length, offset, buffer);
+                }
+                if (codec.readHeader() != 19 || codec.readInt() != transferId || codec.readLong() != offset)
+                    throw new IOException("Range of " + fileName + " wasn't acknowledged");
+                codec.readOffsets(corrupted);
+                for (long chunk : corrupted) {
+                    int chunkLength = (int) Math.min(MessageCodec.CHUNK_SIZE, length - chunk);
+                    ranges.add(new long[] {chunk, chunkLength});
+                    rangeLength -= chunkLength;
+                }
+                next = null;
+                sent.addAndGet(rangeLength);
+                adapt(file, fileName, transferId, length, rangeLength);
+            }
+        } catch (IOException e) {
+            if (!ended) retry(next, e, file, fileName, transferId, length);
+        }
+    }
+
+    /**
+     * Measures throughput after every few ranges, opens another connection if it has grown
+     * and closes one if it has dropped
+     */
+    private synchronized void adapt(File file, String fileName, int transferId, long length, int rangeLength) {
+        epochBytes += rangeLength;
+        if (epochBytes < (long) RANGE_SIZE * 2 * Math.max(1, active)) return;
+
+        long now = System.nanoTime();
+        double throughput = epochBytes / ((now - epochStart) / 1e9);
+        if (throughput > lastThroughput * 1.1 && active < MAX_STRIPES && !ranges.isEmpty()) {
+            addStripe(file, fileName, transferId, length);
+        } else if (throughput < lastThroughput * 0.9 && active - retiring > 1) {
+            retiring++;
+        }
+        lastThroughput = throughput;
+        epochStart = now;
+        epochBytes = 0;
+    }
+}
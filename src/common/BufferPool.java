@@ -0,0 +1,130 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents pool of off-heap buffers grouped in size classes being powers of two from 4 KB to 16 MB
+ * Bigger buffers are allocated on demand and dropped when they're released, they're counted and tracked the same way
+ * Leak detection can be turned on with system property filemanager.buffers.leakDetection,
+ * then every borrowed buffer remembers where it was acquired and getLeaks lists buffers never released
+ * @author Jakub Reszka
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 24;
+
+    /**
+     * The size of the biggest buffers which are reused
+     */
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+    private static BufferPool sharedPool = null;
+
+    private final ArrayBlockingQueue<PooledBuffer>[] classes;
+    private final boolean leakDetection;
+    private final Map<PooledBuffer, Throwable> borrowed = new IdentityHashMap<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Constructs pool with given params
+     * @param retainedBytes the approximate count of bytes retained by pool in all size classes
+     * @param leakDetection true if acquisitions should be tracked
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long retainedBytes, boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        this.classes = (ArrayBlockingQueue<PooledBuffer>[]) new ArrayBlockingQueue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        long perClass = retainedBytes / classes.length;
+        for (int i = 0; i < classes.length; ++i) {
+            long count = Math.max(2, perClass >> (MIN_SHIFT + i));
+            classes[i] = new ArrayBlockingQueue<>((int) Math.min(count, 1024));
+        }
+    }
+
+    /**
+     * Gets pool shared by whole application retaining up to 64 MB, configured with system properties
+     * @return the shared pool
+     */
+    public static synchronized BufferPool shared() {
+        if (sharedPool == null)
+            sharedPool = new BufferPool(64L * 1024 * 1024, Boolean.getBoolean("filemanager.buffers.leakDetection"));
+        return sharedPool;
+    }
+
+    /**
+     * Acquires buffer of at least given size, returned buffer's limit is equal to size
+     * @param size the requested size
+     * @return the pooled buffer which has to be closed after use
+     */
+    public PooledBuffer acquire(int size) {
+        int index = classIndex(size);
+        PooledBuffer pooled = null;
+        if (index < classes.length) {
+            pooled = classes[index].poll();
+            if (pooled == null) pooled = allocate(1 << (MIN_SHIFT + index));
+        } else {
+            pooled = allocate(size);
+        }
+        pooled.borrow(size);
+        outstanding.incrementAndGet();
+        if (leakDetection) track(pooled, new Throwable("Buffer of " + size + " bytes acquired here"));
+        return pooled;
+    }
+
+    /**
+     * Returns buffer to its size class, buffer is dropped if class is full or buffer is bigger than the biggest class
+     * @param pooled the buffer to be returned
+     */
+    void release(PooledBuffer pooled) {
+        outstanding.decrementAndGet();
+        if (leakDetection) track(pooled, null);
+        int index = classIndex(pooled.capacity());
+        if (index < classes.length) classes[index].offer(pooled);
+    }
+
+    /**
+     * Lists stack traces of acquisitions of buffers which haven't been released yet
+     * Empty list is returned if leak detection is off
+     * @return the list of acquisition traces
+     */
+    public synchronized List<Throwable> getLeaks() {
+        return new ArrayList<>(borrowed.values());
+    }
+
+    /**
+     * @return count of buffers acquired and not released
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return count of bytes allocated by pool since its creation
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    private synchronized void track(PooledBuffer pooled, Throwable trace) {
+        if (trace == null) borrowed.remove(pooled);
+        else borrowed.put(pooled, trace);
+    }
+
+    private PooledBuffer allocate(int capacity) {
+        allocated.addAndGet(capacity);
+        return new PooledBuffer(this, ByteBuffer.allocateDirect(capacity));
+    }
+
+    private static int classIndex(int size) {
+        if (size <= 1 << MIN_SHIFT) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,80 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents differences between two states of folder computed by DiffEngine
+ * Lists are reused between diffs, so they are valid only until the instance is passed to DiffEngine again
+ * @author Jakub Reszka
+ */
+public class Diff {
+
+    private final List<String> added = new ArrayList<>();
+    private final List<String> deleted = new ArrayList<>();
+    private final List<String> modified = new ArrayList<>();
+    private final List<String> unchanged = new ArrayList<>();
+    private final List<String> renamedFrom = new ArrayList<>();
+    private final List<String> renamedTo = new ArrayList<>();
+
+    /**
+     * Clears all lists keeping their capacity
+     */
+    void clear() {
+        added.clear();
+        deleted.clear();
+        modified.clear();
+        unchanged.clear();
+        renamedFrom.clear();
+        renamedTo.clear();
+    }
+
+    /**
+     * @return true if any file was added, deleted, modified or renamed
+     */
+    public boolean hasChanges() {
+        return !added.isEmpty() || !deleted.isEmpty() || !modified.isEmpty() || !renamedFrom.isEmpty();
+    }
+
+    /**
+     * @return names of added files
+     */
+    public List<String> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return names of deleted files
+     */
+    public List<String> getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return names of files whose content has changed
+     */
+    public List<String> getModified() {
+        return modified;
+    }
+
+    /**
+     * @return names of files which haven't changed
+     */
+    public List<String> getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return old names of renamed files, i-th element corresponds to i-th element of getRenamedTo
+     */
+    public List<String> getRenamedFrom() {
+        return renamedFrom;
+    }
+
+    /**
+     * @return new names of renamed files, i-th element corresponds to i-th element of getRenamedFrom
+     */
+    public List<String> getRenamedTo() {
+        return renamedTo;
+    }
+}
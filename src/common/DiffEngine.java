@@ -0,0 +1,115 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * This class computes differences between states of folder in linear time
+ * Snapshots are compared by merging their sorted entries, plain lists of names with hash sets
+ * Internal buffers are reused, so a single instance shouldn't be shared between threads
+ * @author Jakub Reszka
+ */
+public class DiffEngine {
+
+    private final List<FileEntry> addedEntries = new ArrayList<>();
+    private final List<FileEntry> deletedEntries = new ArrayList<>();
+    private final Map<ByteBuffer, FileEntry> deletedByHash = new HashMap<>();
+    private final Set<FileEntry> renamedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> oldNames = new HashSet<>();
+    private final Set<String> newNames = new HashSet<>();
+
+    /**
+     * Compares two snapshots of folder
+     * File is modified if its hash has changed, renamed if deleted file's content appeared under new name
+     * @param oldSnapshot the old snapshot
+     * @param newSnapshot the new snapshot
+     * @param result the diff to be filled, its previous content is cleared
+     * @return the filled diff
+     */
+    public Diff diff(Snapshot oldSnapshot, Snapshot newSnapshot, Diff result) {
+        result.clear();
+        addedEntries.clear();
+        deletedEntries.clear();
+
+        Iterator<FileEntry> oldIterator = oldSnapshot.entries().iterator();
+        Iterator<FileEntry> newIterator = newSnapshot.entries().iterator();
+        FileEntry oldEntry = next(oldIterator);
+        FileEntry newEntry = next(newIterator);
+
+        while (oldEntry != null || newEntry != null) {
+            int order = oldEntry == null ? 1 : newEntry == null ? -1 : oldEntry.getName().compareTo(newEntry.getName());
+            if (order < 0) {
+                deletedEntries.add(oldEntry);
+                oldEntry = next(oldIterator);
+            } else if (order > 0) {
+                addedEntries.add(newEntry);
+                newEntry = next(newIterator);
+            } else {
+                if (oldEntry.sameContent(newEntry)) result.getUnchanged().add(newEntry.getName());
+                else result.getModified().add(newEntry.getName());
+                oldEntry = next(oldIterator);
+                newEntry = next(newIterator);
+            }
+        }
+
+        detectRenames(result);
+        return result;
+    }
+
+    /**
+     * Compares two lists of files' names, only added, deleted and unchanged files can be found
+     * @param oldList the old list of files' names
+     * @param newList the new list of files' names
+     * @param result the diff to be filled, its previous content is cleared
+     * @return the filled diff
+     */
+    public Diff diff(List<String> oldList, List<String> newList, Diff result) {
+        result.clear();
+        oldNames.clear();
+        newNames.clear();
+        oldNames.addAll(oldList);
+        newNames.addAll(newList);
+
+        for (String name : newList) {
+            if (oldNames.contains(name)) result.getUnchanged().add(name);
+            else result.getAdded().add(name);
+        }
+        for (String name : oldList) {
+            if (!newNames.contains(name)) result.getDeleted().add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Pairs deleted and added entries of the same content as renames, the rest is put in result unchanged
+     * @param result the diff to be filled
+     */
+    private void detectRenames(Diff result) {
+        deletedByHash.clear();
+        renamedEntries.clear();
+        if (!addedEntries.isEmpty()) {
+            for (FileEntry entry : deletedEntries) {
+                if (entry.getHash() != null) deletedByHash.put(ByteBuffer.wrap(entry.getHash()), entry);
+            }
+        }
+
+        for (FileEntry entry : addedEntries) {
+            FileEntry from = entry.getHash() == null ? null : deletedByHash.remove(ByteBuffer.wrap(entry.getHash()));
+            if (from != null) {
+                renamedEntries.add(from);
+                result.getRenamedFrom().add(from.getName());
+                result.getRenamedTo().add(entry.getName());
+            } else {
+                result.getAdded().add(entry.getName());
+            }
+        }
+
+        for (FileEntry entry : deletedEntries) {
+            if (!renamedEntries.contains(entry)) result.getDeleted().add(entry.getName());
+        }
+    }
+
+    private static FileEntry next(Iterator<FileEntry> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,128 @@
+package common;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class stores every file as a file in user's directory, subdirectories of names are kept
+ * Files are saved through WritePipeline, so readers never see partially written files
+ * @author Jakub Reszka
+ */
+public class DirectoryBackend implements StorageBackend {
+
+    private final Path root;
+
+    /**
+     * Constructs backend for directory, temporary files left by interrupted writes are removed
+     * @param root the path of directory
+     */
+    public DirectoryBackend(Path root) {
+        this.root = root.normalize();
+        WritePipeline.removeTemporaryFiles(this.root);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String name, ByteBuffer body) {
+        return FileManager.saveFileFromBufferAsync(body, root.toString(), name);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String name, InputStream content, long length) {
+        Path target = resolve(name);
+        if (target == null) return CompletableFuture.completedFuture(false);
+        Path temp = target.resolveSibling("." + target.getFileName() + ".stream" + WritePipeline.TEMP_SUFFIX);
+        try {
+            Files.createDirectories(temp.getParent());
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return WritePipeline.shared().commit(temp, target);
+    }
+
+    /**
+     * Moves file into directory, so large uploads aren't copied
+     */
+    @Override
+    public CompletableFuture<Boolean> putFile(String name, Path file) {
+        Path target = resolve(name);
+        if (target == null) return CompletableFuture.completedFuture(false);
+        try {
+            if (target.getParent() != null) Files.createDirectories(target.getParent());
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return WritePipeline.shared().commit(file, target);
+    }
+
+    @Override
+    public InputStream get(String name) throws IOException {
+        Path file = resolve(name);
+        if (file == null) throw new FileNotFoundException(name);
+        return Files.newInputStream(file);
+    }
+
+    @Override
+    public PooledBuffer read(String name) throws IOException {
+        Path file = resolve(name);
+        if (file == null) throw new FileNotFoundException(name);
+        return FileManager.readFileToBuffer(file.toFile());
+    }
+
+    @Override
+    public boolean delete(String name) {
+        Path file = resolve(name);
+        return file != null && file.toFile().delete();
+    }
+
+    @Override
+    public List<String> list() {
+        return DirectoryScanner.getDefault().list(root.toString());
+    }
+
+    @Override
+    public FileEntry stat(String name) {
+        Path file = resolve(name);
+        if (file == null) return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new FileEntry(name, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Path locate(String name) {
+        return resolve(name);
+    }
+
+    @Override
+    public Snapshot reconcile(Snapshot previous) {
+        return previous.reconcile(root.toString());
+    }
+
+    @Override
+    public String getLocation() {
+        return root.toString();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Resolves name in directory, names leading outside of directory are rejected
+     * @return the path or null if name is invalid
+     */
+    private Path resolve(String name) {
+        Path file = root.resolve(name).normalize();
+        return file.startsWith(root) && !file.equals(root) ? file : null;
+    }
+}
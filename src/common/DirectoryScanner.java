@@ -0,0 +1,197 @@
+package common;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * This class scans directory trees in parallel
+ * Directories are walked by ForkJoin task tree, hashing is done by separate pool which bounds disk queue depth
+ * Names of files found in subdirectories are relative to scanned folder and separated with '/'
+ * @author Jakub Reszka
+ */
+public class DirectoryScanner {
+
+    private static DirectoryScanner defaultScanner = null;
+
+    private final ForkJoinPool walkers;
+    private final ExecutorService hashers;
+
+    /**
+     * Constructs scanner with given configuration
+     * @param config the scanner configuration
+     */
+    public DirectoryScanner(ScannerConfig config) {
+        this.walkers = new ForkJoinPool(config.getParallelism());
+        this.hashers = Executors.newFixedThreadPool(config.getIoDepth(), runnable -> {
+            Thread thread = new Thread(runnable, "hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets scanner shared by whole application, configured with system properties
+     * @return the default scanner
+     */
+    public static synchronized DirectoryScanner getDefault() {
+        if (defaultScanner == null) defaultScanner = new DirectoryScanner(ScannerConfig.fromSystemProperties());
+        return defaultScanner;
+    }
+
+    /**
+     * Lists files in directory given in path including subdirectories
+     * @param path the path to directory
+     * @return list of files' relative names
+     */
+    public List<String> list(String path) {
+        return walk(path, ConcurrentHashMap.newKeySet()).stream()
+                .map(FileEntry::getName)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates snapshot of directory given in path including subdirectories
+     * Files which have the same size and modification time as in previous snapshot are not hashed again
+     * Files and directories which couldn't be read keep their previous entries, so they're never taken for deleted
+     * @param path the path to directory
+     * @param previous the previous snapshot of directory
+     * @return the snapshot of directory
+     */
+    public Snapshot scan(String path, Snapshot previous) {
+        Snapshot current = new Snapshot(previous.getOwner());
+        Set<String> unreadable = ConcurrentHashMap.newKeySet();
+        List<Future<FileEntry>> pending = new ArrayList<>();
+        List<String> hashed = new ArrayList<>();
+
+        for (FileEntry found : walk(path, unreadable)) {
+            FileEntry old = previous.get(found.getName());
+            if (old != null && old.matches(found.getSize(), found.getModified())) {
+                current.put(old);
+            } else {
+                pending.add(hashers.submit(() -> hash(path, found)));
+                hashed.add(found.getName());
+            }
+        }
+
+        for (int i = 0; i < pending.size(); ++i) {
+            try {
+                current.put(pending.get(i).get());
+            } catch (ExecutionException e) {
+                unreadable.add(hashed.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unreadable.addAll(hashed.subList(i, hashed.size()));
+                break;
+            }
+        }
+
+        if (unreadable.isEmpty()) return current;
+        for (FileEntry old : previous.entries()) {
+            if (current.get(old.getName()) == null && isUnreadable(old.getName(), unreadable)) current.put(old);
+        }
+        return current;
+    }
+
+    /**
+     * Checks if file or any directory containing it couldn't be read
+     * @param name the name of file
+     * @param unreadable the names of unreadable files and directories, scanned folder itself is empty name
+     * @return true if file's state is unknown
+     */
+    private static boolean isUnreadable(String name, Set<String> unreadable) {
+        if (unreadable.contains(name) || unreadable.contains("")) return true;
+        for (int separator = name.lastIndexOf('/'); separator > 0; separator = name.lastIndexOf('/', separator - 1)) {
+            if (unreadable.contains(name.substring(0, separator))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Walks directory given in path including subdirectories
+     * @param path the path to directory
+     * @param unreadable the set which gets names of files and directories which couldn't be read
+     * @return entries of found files without hashes
+     */
+    private List<FileEntry> walk(String path, Set<String> unreadable) {
+        Path root = Paths.get(path);
+        if (!Files.isDirectory(root))
+            throw new InvalidPathException("Folder of given path: " + path + " doesn't exist.");
+        return walkers.invoke(new WalkTask(root, root, unreadable));
+    }
+
+    /**
+     * Hashes file found during walk
+     * @param path the path to scanned directory
+     * @param found the entry of found file
+     * @return the entry with hash
+     * @throws IOException if an I/O error occurs
+     */
+    private static FileEntry hash(String path, FileEntry found) throws IOException {
+        byte[] hash = FileManager.hashFile(Paths.get(path, found.getName()).toFile());
+        return new FileEntry(found.getName(), found.getSize(), found.getModified(), hash);
+    }
+
+    /**
+     * Task listing single directory, subdirectories are listed by forked subtasks
+     * Symbolic links are skipped, so cycles in directory tree are impossible
+     * Temporary files of WritePipeline are skipped, so files being saved are never reported
+     * Files and directories which can't be read are reported as unreadable instead of being left out
+     */
+    private static class WalkTask extends RecursiveTask<List<FileEntry>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path directory;
+        private final Set<String> unreadable;
+
+        WalkTask(Path root, Path directory, Set<String> unreadable) {
+            this.root = root;
+            this.directory = directory;
+            this.unreadable = unreadable;
+        }
+
+        @Override
+        protected List<FileEntry> compute() {
+            List<FileEntry> found = new ArrayList<>();
+            List<WalkTask> subtasks = new ArrayList<>();
+
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        unreadable.add(relativeName(child));
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        WalkTask subtask = new WalkTask(root, child, unreadable);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    } else if (attributes.isRegularFile() && !WritePipeline.isTemporary(child.getFileName().toString())) {
+                        found.add(new FileEntry(relativeName(child), attributes.size(),
+                                attributes.lastModifiedTime().toMillis(), null));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                unreadable.add(relativeName(directory));
+            }
+
+            for (WalkTask subtask : subtasks) {
+                found.addAll(subtask.join());
+            }
+            return found;
+        }
+
+        private String relativeName(Path child) {
+            return root.relativize(child).toString().replace(child.getFileSystem().getSeparator(), "/");
+        }
+    }
+}
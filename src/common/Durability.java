@@ -0,0 +1,22 @@
+package common;
+
+/**
+ * This enum represents how durable file has to be before WritePipeline reports it as saved
+ * NONE only renames temporary file, DATA flushes file's data to disk before renaming,
+ * FULL additionally flushes directory, so the rename itself survives a crash
+ * The level can be set with system property filemanager.durability
+ * @author Jakub Reszka
+ */
+public enum Durability {
+    NONE,
+    DATA,
+    FULL;
+
+    /**
+     * Reads durability from system properties, by default file's data is flushed
+     * @return the durability level
+     */
+    public static Durability fromSystemProperties() {
+        return valueOf(System.getProperty("filemanager.durability", "DATA").toUpperCase());
+    }
+}
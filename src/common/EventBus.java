@@ -0,0 +1,159 @@
+package common;
+
+import javafx.application.Platform;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * This class delivers events published by models to subscribers, usually GUI controllers, on chosen thread
+ * Pending events are delivered together at most once per frame, whose length is given with system property
+ * filemanager.ui.frameMillis, so GUI is updated once per frame regardless of how many messages arrive
+ * Coalesced events with the same key replace each other before delivery, so only the newest one is delivered
+ * at position of the first one, other events are delivered in order of publishing
+ * Events without subscribers are dropped when they are published
+ * @author Jakub Reszka
+ */
+public class EventBus {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("filemanager.ui.frameMillis", 16));
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ui-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final EventBus sharedBus = new EventBus(Platform::runLater);
+
+    /**
+     * Interface represents event which makes earlier pending events of the same key outdated
+     */
+    public interface Coalesced {
+        Object key();
+    }
+
+    private final Executor executor;
+    private final Map<Class<?>, List<Consumer<Object>>> subscribers = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private Map<Object, Object> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+    private long lastFlush = System.nanoTime() - FRAME_NANOS;
+    private long published = 0;
+    private long delivered = 0;
+
+    /**
+     * Constructs bus with given params
+     * @param executor the executor of deliveries, JavaFX application thread for GUI
+     */
+    public EventBus(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the bus delivering events on JavaFX application thread shared by whole application
+     */
+    public static EventBus shared() {
+        return sharedBus;
+    }
+
+    /**
+     * Subscribes to events of given class
+     * @param type the class of events
+     * @param subscriber the subscriber called by delivering thread
+     * @param <E> the type of events
+     */
+    @SuppressWarnings("unchecked")
+    public <E> void subscribe(Class<E> type, Consumer<? super E> subscriber) {
+        subscribers.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add((Consumer<Object>) subscriber);
+    }
+
+    /**
+     * Publishes event, it's delivered with the next frame
+     * @param event the event
+     */
+    public void publish(Object event) {
+        if (!subscribers.containsKey(event.getClass())) return;
+        Object key = event instanceof Coalesced ? new Key(event.getClass(), ((Coalesced) event).key()) : new Object();
+        synchronized (lock) {
+            published++;
+            pending.put(key, event);
+            if (scheduled) return;
+            scheduled = true;
+            long delay = lastFlush + FRAME_NANOS - System.nanoTime();
+            if (delay <= 0) executor.execute(this::flush);
+            else timer.schedule(() -> executor.execute(this::flush), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Delivers all pending events, failure of one subscriber doesn't stop delivery of other events
+     */
+    private void flush() {
+        Map<Object, Object> events;
+        synchronized (lock) {
+            events = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+            lastFlush = System.nanoTime();
+            delivered += events.size();
+        }
+        for (Object event : events.values()) {
+            for (Consumer<Object> subscriber : subscribers.getOrDefault(event.getClass(), List.of())) {
+                try {
+                    subscriber.accept(event);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the count of published events
+     */
+    public long getPublished() {
+        synchronized (lock) {
+            return published;
+        }
+    }
+
+    /**
+     * @return the count of delivered events, lower than count of published ones by count of coalesced events
+     */
+    public long getDelivered() {
+        synchronized (lock) {
+            return delivered;
+        }
+    }
+
+    /**
+     * Key of coalesced event, events of different classes never replace each other
+     */
+    private static class Key {
+        private final Class<?> type;
+        private final Object key;
+
+        Key(Class<?> type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).type == type && ((Key) other).key.equals(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + key.hashCode();
+        }
+    }
+}
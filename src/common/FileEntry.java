@@ -0,0 +1,76 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * This class represents immutable description of a single file: name, size, modification time and hash
+ * @author Jakub Reszka
+ */
+public class FileEntry {
+
+    private final String name;
+    private final long size;
+    private final long modified;
+    private final byte[] hash;
+
+    /**
+     * Constructs file entry with given params
+     * @param name the name of file relative to synchronized folder
+     * @param size the size of file in bytes
+     * @param modified the last modification time in milliseconds
+     * @param hash the SHA-256 hash of file's content
+     */
+    public FileEntry(String name, long size, long modified, byte[] hash) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    /**
+     * Checks if file described by this entry has the same size and modification time as given one
+     * @param size the size of file in bytes
+     * @param modified the last modification time in milliseconds
+     * @return true if neither size nor modification time has changed
+     */
+    public boolean matches(long size, long modified) {
+        return this.size == size && this.modified == modified;
+    }
+
+    /**
+     * Checks if both entries describe the same content
+     * @param other the entry to be compared
+     * @return true if hashes are equal
+     */
+    public boolean sameContent(FileEntry other) {
+        return Arrays.equals(hash, other.hash);
+    }
+
+    /**
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return modification time
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * @return hash
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+}
@@ -3,10 +3,15 @@ package common;
 import server.models.User;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -16,6 +21,8 @@ import java.util.stream.Stream;
  */
 public abstract class FileManager {
 
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(FileManager::newDigest);
+
     /**
      * Lists directory given in path including excluding subdirectories
      * @param path the path to directory
@@ -50,35 +57,177 @@ public abstract class FileManager {
         return fileBytesArray;
     }
 
+    /**
+     * Reads file given with file handle into pooled buffer
+     * @param file the handle to file
+     * @return the buffer containing file's data, it has to be closed after use
+     * @throws IOException if an I/O error occurs or file doesn't fit one buffer
+     */
+    public static PooledBuffer readFileToBuffer(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File " + file + " is too large to be read into buffer");
+            PooledBuffer body = BufferPool.shared().acquire((int) size);
+            try {
+                ByteBuffer buffer = body.buffer();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+                buffer.flip();
+                return body;
+            } catch (IOException e) {
+                body.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes file with codec in the form of header=3, file's length, file's name and file's bytes
+     * Files which fit pooled buffer are read into it first, bigger files are streamed in chunks,
+     * so they never take buffer of their whole size
+     * @param codec the codec file is written with
+     * @param name the name under which file is sent
+     * @param file the handle to file
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeFile(MessageCodec codec, String name, File file) throws IOException {
+        long length = file.length();
+        if (length <= BufferPool.MAX_POOLED_SIZE) {
+            try (PooledBuffer body = readFileToBuffer(file)) {
+                codec.writeFile(name, body.buffer());
+            }
+            return;
+        }
+        try (InputStream content = new FileInputStream(file)) {
+            codec.writeFile(name, content, length);
+        }
+    }
+
+    /**
+     * Computes SHA-256 hash of file given with file handle
+     * @param file the handle to file
+     * @return the hash of file's data
+     * @throws IOException if an I/O error occurs
+     */
+    public static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream stream = new FileInputStream(file)) {
+            int count;
+            while ((count = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Computes SHA-256 hash of given bytes
+     * @param bytes the array of bytes
+     * @return the hash of bytes
+     */
+    public static byte[] hashBytes(byte[] bytes) {
+        return hashBytes(bytes, bytes.length);
+    }
+
+    /**
+     * Computes SHA-256 hash of first length bytes of given array
+     * @param bytes the array of bytes
+     * @param length the count of bytes to be hashed
+     * @return the hash of bytes
+     */
+    public static byte[] hashBytes(byte[] bytes, int length) {
+        MessageDigest digest = createDigest();
+        digest.update(bytes, 0, length);
+        return digest.digest();
+    }
+
+    /**
+     * Computes SHA-256 hash of bytes between position and limit of given buffer, buffer's position isn't changed
+     * @param buffer the buffer
+     * @return the hash of bytes
+     */
+    public static byte[] hashBuffer(ByteBuffer buffer) {
+        MessageDigest digest = createDigest();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Gets SHA-256 message digest reused by current thread
+     * @return the message digest
+     */
+    private static MessageDigest createDigest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Creates SHA-256 message digest
+     * @return the message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
     /**
      * Saves file given with byte array in destination's path
+     * Missing subdirectories are created, names leading outside of destination's path are rejected
      * @param fileBytes the array of bytes containing file's data
      * @param path the destination's path
      * @param filename the name of file to be saved
      * @return the success of operation
      */
     public static boolean saveFileFromByteArray(byte[] fileBytes, String path, String filename) {
-        File file = new File(Paths.get(path, filename).toString());
-
-        boolean success = false;
+        return saveFileFromByteArray(fileBytes, fileBytes.length, path, filename);
+    }
 
-        if (file.exists()) return success;
+    /**
+     * Saves file given with first length bytes of byte array in destination's path
+     * @param fileBytes the array of bytes containing file's data
+     * @param length the count of bytes to be saved
+     * @param path the destination's path
+     * @param filename the name of file to be saved
+     * @return the success of operation
+     */
+    public static boolean saveFileFromByteArray(byte[] fileBytes, int length, String path, String filename) {
+        return saveFileFromBuffer(ByteBuffer.wrap(fileBytes, 0, length), path, filename);
+    }
 
-        OutputStream os = null;
-        try {
-            os = new FileOutputStream(file);
-            os.write(fileBytes);
-            os.close();
-            success = true;
-        } catch (IOException e) {
-            success = false;
-        }
+    /**
+     * Saves file given with bytes between position and limit of buffer in destination's path
+     * Missing subdirectories are created, names leading outside of destination's path are rejected
+     * Existing file is replaced atomically when new file is durable, see WritePipeline
+     * @param buffer the buffer containing file's data, its position isn't changed
+     * @param path the destination's path
+     * @param filename the name of file to be saved
+     * @return the success of operation
+     */
+    public static boolean saveFileFromBuffer(ByteBuffer buffer, String path, String filename) {
+        return saveFileFromBufferAsync(buffer, path, filename).join();
+    }
 
-        return success;
+    /**
+     * Saves file like saveFileFromBuffer, but doesn't wait until file is durable
+     * Buffer is no longer needed when this method returns, so many files can wait for the same flush
+     * @param buffer the buffer containing file's data, its position isn't changed
+     * @param path the destination's path
+     * @param filename the name of file to be saved
+     * @return the future completed with success of operation
+     */
+    public static CompletableFuture<Boolean> saveFileFromBufferAsync(ByteBuffer buffer, String path, String filename) {
+        Path target = Paths.get(path, filename).normalize();
+        if (!target.startsWith(Paths.get(path).normalize()) || WritePipeline.isTemporary(filename))
+            return CompletableFuture.completedFuture(false);
+        return WritePipeline.shared().write(buffer, target);
     }
 
     /**
-     * Compares two lists of files' names
+     * Compares two lists of files' names in linear time
      * @param oldList the old list of files' names
      * @param newList the new list of files' names
      * @return the dictionary of keys "Added" and "Deleted" and values as list of filenames
@@ -87,31 +236,33 @@ public abstract class FileManager {
 
         Hashtable<String, List<String>> differences = new Hashtable<>();
 
-        List<String> addedModels = new ArrayList<>(newList);
-        addedModels.removeAll(oldList);
+        Diff diff = new DiffEngine().diff(oldList, newList, new Diff());
 
-        List<String> deletedModels = new ArrayList<>(oldList);
-        deletedModels.removeAll(newList);
-
-        if(!addedModels.isEmpty()) differences.put("Added", addedModels);
-        if(!deletedModels.isEmpty()) differences.put("Deleted", deletedModels);
+        if(!diff.getAdded().isEmpty()) differences.put("Added", new ArrayList<>(diff.getAdded()));
+        if(!diff.getDeleted().isEmpty()) differences.put("Deleted", new ArrayList<>(diff.getDeleted()));
 
         return differences;
     }
 
     /**
-     * Waits until file is ready to be processed
+     * Waits until file is ready to be processed, file which is ready is returned at once
+     * and locked file is checked again every 100 ms
      * @param file the file handle
      * @throws InterruptedException if any thread has interrupted the current thread
      */
-
     public static void waitTillFileIsReady(File file) throws InterruptedException {
-        boolean fileIsLocked = true;
-        while(fileIsLocked) {
-            fileIsLocked = !file.renameTo(file);
+        while (!isFileReady(file)) {
             Thread.sleep(100);
         }
+    }
 
+    /**
+     * Checks without waiting if file is ready to be processed
+     * @param file the file handle
+     * @return true if file isn't locked by another process
+     */
+    public static boolean isFileReady(File file) {
+        return file.renameTo(file);
     }
 
 }
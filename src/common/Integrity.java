@@ -0,0 +1,94 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class represents result of verifying body read by MessageCodec
+ * Body is verified with CRC32C of every chunk and SHA-256 of whole body, both computed while bytes are read
+ * The instance is reused between reads, so it's valid only until it's passed to MessageCodec again,
+ * hashes are read into arrays of the instance and their getters return copies which can be kept
+ * @author Jakub Reszka
+ */
+public class Integrity {
+
+    private final List<Long> corrupted = new ArrayList<>();
+    private long length = 0;
+    private final byte[] hash = new byte[MessageCodec.HASH_SIZE];
+    private final byte[] expected = new byte[MessageCodec.HASH_SIZE];
+    private boolean hashed = false;
+
+    /**
+     * Clears result before next body is read
+     * @param length the length of body
+     */
+    void clear(long length) {
+        this.length = length;
+        this.corrupted.clear();
+        this.hashed = false;
+    }
+
+    /**
+     * @return the array the hash computed from received bytes is written to
+     */
+    byte[] getHashTarget() {
+        return hash;
+    }
+
+    /**
+     * @return the array the hash computed by sender is read to
+     */
+    byte[] getExpectedTarget() {
+        return expected;
+    }
+
+    /**
+     * Marks chunk as corrupted
+     * @param offset the position of chunk in body
+     */
+    void addCorrupted(long offset) {
+        corrupted.add(offset);
+    }
+
+    /**
+     * Compares hashes written to target arrays, if they differ although every chunk matched its checksum,
+     * all chunks are marked as corrupted
+     */
+    void setHashes() {
+        hashed = true;
+        if (corrupted.isEmpty() && !Arrays.equals(hash, expected)) {
+            for (long offset = 0; offset < length; offset += MessageCodec.CHUNK_SIZE) {
+                corrupted.add(offset);
+            }
+        }
+    }
+
+    /**
+     * @return true if every chunk matched its checksum and hash of body matched hash computed by sender
+     */
+    public boolean isIntact() {
+        return hashed && corrupted.isEmpty() && Arrays.equals(hash, expected);
+    }
+
+    /**
+     * @return positions of corrupted chunks in body
+     */
+    public List<Long> getCorrupted() {
+        return corrupted;
+    }
+
+    /**
+     * @return copy of SHA-256 hash computed from received bytes or null if body wasn't read completely
+     */
+    public byte[] getHash() {
+        return hashed ? hash.clone() : null;
+    }
+
+    /**
+     * @return copy of SHA-256 hash computed by sender or null if body wasn't read completely
+     */
+    public byte[] getExpected() {
+        return hashed ? expected.clone() : null;
+    }
+}
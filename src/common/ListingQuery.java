@@ -0,0 +1,93 @@
+package common;
+
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * This class represents order and filter of paged list of files, the same query gives the same order on both sides
+ * Files are ordered by chosen key and then by name, filter matches names containing it regardless of case
+ * @author Jakub Reszka
+ */
+public class ListingQuery {
+
+    public static final byte BY_NAME = 0;
+    public static final byte BY_SIZE = 1;
+    public static final byte BY_MODIFIED = 2;
+
+    private final byte sort;
+    private final boolean descending;
+    private final String filter;
+
+    /**
+     * Constructs query with given params
+     * @param sort the key of order, BY_NAME, BY_SIZE or BY_MODIFIED
+     * @param descending true if the greatest keys go first
+     * @param filter the part of name files have to contain or empty string for all files
+     */
+    public ListingQuery(byte sort, boolean descending, String filter) {
+        if (sort < BY_NAME || sort > BY_MODIFIED) throw new IllegalArgumentException("Unknown order " + sort);
+        this.sort = sort;
+        this.descending = descending;
+        this.filter = filter.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the query listing all files by name
+     */
+    public static ListingQuery byName() {
+        return new ListingQuery(BY_NAME, false, "");
+    }
+
+    /**
+     * @param entry the entry of file
+     * @return true if file's name contains filter
+     */
+    public boolean matches(FileEntry entry) {
+        return filter.isEmpty() || entry.getName().toLowerCase(Locale.ROOT).contains(filter);
+    }
+
+    /**
+     * @return the comparator of entries in order of query
+     */
+    public Comparator<FileEntry> comparator() {
+        Comparator<FileEntry> byName = Comparator.comparing(FileEntry::getName);
+        Comparator<FileEntry> order = sort == BY_SIZE ? Comparator.comparingLong(FileEntry::getSize).thenComparing(byName)
+                : sort == BY_MODIFIED ? Comparator.comparingLong(FileEntry::getModified).thenComparing(byName)
+                : byName;
+        return descending ? order.reversed() : order;
+    }
+
+    /**
+     * @return sort
+     */
+    public byte getSort() {
+        return sort;
+    }
+
+    /**
+     * @return descending
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * @return filter
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ListingQuery)) return false;
+        ListingQuery query = (ListingQuery) other;
+        return sort == query.sort && descending == query.descending && filter.equals(query.filter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sort, descending, filter);
+    }
+}
@@ -0,0 +1,1041 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This class encodes and decodes messages exchanged between client and server
+ * Files' bodies are read into pooled off-heap buffers and names are taken from shared NameTable,
+ * so decoding doesn't allocate in steady state
+ * Every body is written in chunks of CHUNK_SIZE bytes followed by their CRC32C and ends with SHA-256 of whole body,
+ * checksums are computed in the same pass which copies bytes between buffer and stream
+ * Every message is flushed when it's complete, so on buffered streams all its fields leave in as few segments as possible
+ * Decoding methods may be called only by the reader thread, encoding methods only while holding output lock
+ * @author Jakub Reszka
+ */
+public class MessageCodec {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    static final int HASH_SIZE = 32;
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final BufferPool pool;
+    private final NameTable names;
+    private final byte[] readScratch = new byte[CHUNK_SIZE];
+    private final byte[] writeScratch = new byte[CHUNK_SIZE];
+    private final CRC32C readChecksum = new CRC32C();
+    private final CRC32C writeChecksum = new CRC32C();
+    private final MessageDigest readDigest = FileManager.newDigest();
+    private final MessageDigest writeDigest = FileManager.newDigest();
+    private final byte[] writeHash = new byte[HASH_SIZE];
+    private final Integrity integrity = new Integrity();
+
+    /**
+     * Constructs codec working on given streams with shared buffer pool and name table
+     * @param input the stream messages are read from
+     * @param output the stream messages are written to
+     */
+    public MessageCodec(DataInputStream input, DataOutputStream output) {
+        this(input, output, BufferPool.shared(), NameTable.shared());
+    }
+
+    /**
+     * Constructs codec with given params
+     * @param input the stream messages are read from
+     * @param output the stream messages are written to
+     * @param pool the pool of buffers for files' bodies
+     * @param names the table of names
+     */
+    public MessageCodec(DataInputStream input, DataOutputStream output, BufferPool pool, NameTable names) {
+        this.input = input;
+        this.output = output;
+        this.pool = pool;
+        this.names = names;
+    }
+
+    /**
+     * Reads byte which describes message header
+     * @return message header
+     * @throws IOException if an error occurs when reading
+     */
+    public byte readHeader() throws IOException {
+        return input.readByte();
+    }
+
+    /**
+     * @return the integer read from stream
+     * @throws IOException if an error occurs when reading
+     */
+    public int readInt() throws IOException {
+        return input.readInt();
+    }
+
+    /**
+     * @return the boolean read from stream
+     * @throws IOException if an error occurs when reading
+     */
+    public boolean readBoolean() throws IOException {
+        return input.readBoolean();
+    }
+
+    /**
+     * @return the long read from stream
+     * @throws IOException if an error occurs when reading
+     */
+    public long readLong() throws IOException {
+        return input.readLong();
+    }
+
+    /**
+     * Reads name written with writeUTF, the same names are returned as the same instances
+     * @return the name
+     * @throws IOException if an error occurs when reading
+     */
+    public String readName() throws IOException {
+        int length = input.readUnsignedShort();
+        input.readFully(readScratch, 0, length);
+        return names.intern(readScratch, length);
+    }
+
+    /**
+     * Reads count of names followed by names
+     * @param target the list to be filled, its previous content is cleared
+     * @return the filled list
+     * @throws IOException if an error occurs when reading
+     */
+    public List<String> readNames(List<String> target) throws IOException {
+        target.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            target.add(readName());
+        }
+        return target;
+    }
+
+    /**
+     * Reads file's body into pooled buffer and rejects it if it's corrupted
+     * @param length the count of bytes to be read
+     * @return the buffer ready to be read, it has to be closed after use
+     * @throws IOException if an error occurs when reading or body is corrupted
+     */
+    public PooledBuffer readBody(int length) throws IOException {
+        PooledBuffer body = readBody(length, integrity);
+        if (!integrity.isIntact()) {
+            body.close();
+            throw new IOException("Body of " + length + " bytes is corrupted");
+        }
+        return body;
+    }
+
+    /**
+     * Reads file's body into pooled buffer verifying checksum of every chunk and hash of whole body
+     * Corrupted body is returned as well, so chunks which arrived intact can be kept
+     * @param length the count of bytes to be read
+     * @param check the result of verification to be filled
+     * @return the buffer ready to be read, it has to be closed after use
+     * @throws IOException if an error occurs when reading
+     */
+    public PooledBuffer readBody(int length, Integrity check) throws IOException {
+        if (length < 0) throw new IOException("Invalid length of file: " + length);
+        check.clear(length);
+        readDigest.reset();
+        PooledBuffer body = pool.acquire(length);
+        try {
+            ByteBuffer buffer = body.buffer();
+            while (buffer.hasRemaining()) {
+                int offset = buffer.position();
+                int count = Math.min(readScratch.length, buffer.remaining());
+                input.readFully(readScratch, 0, count);
+                readChecksum.reset();
+                readChecksum.update(readScratch, 0, count);
+                readDigest.update(readScratch, 0, count);
+                if ((int) readChecksum.getValue() != input.readInt()) check.addCorrupted(offset);
+                buffer.put(readScratch, 0, count);
+            }
+            buffer.flip();
+            input.readFully(check.getExpectedTarget());
+            digest(readDigest, check.getHashTarget());
+            check.setHashes();
+            return body;
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads count of offsets followed by offsets
+     * @param target the list to be filled, its previous content is cleared
+     * @return the filled list
+     * @throws IOException if an error occurs when reading
+     */
+    public List<Long> readOffsets(List<Long> target) throws IOException {
+        target.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            target.add(input.readLong());
+        }
+        return target;
+    }
+
+    /**
+     * Reads count of versions followed by their ids, times, sizes and hashes
+     * @param filename the name of file versions belong to
+     * @param target the list to be filled, its previous content is cleared
+     * @return the filled list
+     * @throws IOException if an error occurs when reading
+     */
+    public List<Version> readVersions(String filename, List<Version> target) throws IOException {
+        target.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            long id = input.readLong();
+            long created = input.readLong();
+            long size = input.readLong();
+            byte[] hash = new byte[input.readUnsignedByte()];
+            input.readFully(hash);
+            target.add(new Version(id, filename, created, size, hash));
+        }
+        return target;
+    }
+
+    /**
+     * Reads count of files followed by name, size and modification time of every file,
+     * used by pages of search results and of listings
+     * @param target the list which is cleared and filled with entries without hashes
+     * @return the target
+     * @throws IOException if an error occurs when reading
+     */
+    public List<FileEntry> readEntries(List<FileEntry> target) throws IOException {
+        target.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            target.add(new FileEntry(readName(), input.readLong(), input.readLong(), null));
+        }
+        return target;
+    }
+
+    /**
+     * Reads count of files followed by name, size, modification time and hash of every file, used by manifests of replicas
+     * @param target the list which is cleared and filled with entries
+     * @return the target
+     * @throws IOException if an error occurs when reading
+     */
+    public List<FileEntry> readHashedEntries(List<FileEntry> target) throws IOException {
+        target.clear();
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            String name = readName();
+            long size = input.readLong();
+            long modified = input.readLong();
+            byte[] hash = new byte[input.readUnsignedByte()];
+            input.readFully(hash);
+            target.add(new FileEntry(name, size, modified, hash));
+        }
+        return target;
+    }
+
+    /**
+     * Reads count of bytes given by one byte followed by the bytes, used by authentication of links of cluster
+     * @return the bytes
+     * @throws IOException if an error occurs when reading
+     */
+    public byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[input.readUnsignedByte()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads order and filter of listing, unknown order is read as order by name
+     * @return the query
+     * @throws IOException if an error occurs when reading
+     */
+    public ListingQuery readListingQuery() throws IOException {
+        byte sort = input.readByte();
+        boolean descending = input.readBoolean();
+        String filter = input.readUTF();
+        if (sort < ListingQuery.BY_NAME || sort > ListingQuery.BY_MODIFIED) sort = ListingQuery.BY_NAME;
+        return new ListingQuery(sort, descending, filter);
+    }
+
+    /**
+     * Writes greeting in the form of header=1 and username
+     * @param username the name of user
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeGreeting(String username) throws IOException {
+        output.writeByte(1);
+        output.writeUTF(username);
+        output.flush();
+    }
+
+    /**
+     * Writes goodbye in the form of header=2
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeGoodbye() throws IOException {
+        output.writeByte(2);
+        output.flush();
+    }
+
+    /**
+     * Writes file in the form of header=3, file's length, file's name and file's bytes
+     * @param name the name of file
+     * @param body the file's bytes between position and limit, buffer's position isn't changed
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeFile(String name, ByteBuffer body) throws IOException {
+        output.writeByte(3);
+        output.writeInt(body.remaining());
+        output.writeUTF(name);
+        writeBody(body);
+        output.flush();
+    }
+
+    /**
+     * Writes file streamed from given stream in the same form as writeFile, so file is never held in memory as a whole
+     * @param name the name of file
+     * @param content the stream of file's bytes
+     * @param length the count of bytes to be written
+     * @throws IOException if file is too large for the message, stream ends early or an error occurs when writing
+     */
+    public void writeFile(String name, InputStream content, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) throw new IOException("File " + name + " is too large to be sent in one message");
+        output.writeByte(3);
+        output.writeInt((int) length);
+        output.writeUTF(name);
+        writeBody(content, length);
+        output.flush();
+    }
+
+    /**
+     * Writes list of names in the form of header, count of names and names
+     * Used for list of files (header=4), deleted files (header=5) and list of users (header=6)
+     * @param header the type of message
+     * @param list the names to be written
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeNames(int header, Collection<String> list) throws IOException {
+        output.writeByte(header);
+        writeNameList(list);
+        output.flush();
+    }
+
+    private void writeNameList(Collection<String> list) throws IOException {
+        output.writeInt(list.size());
+        for (String name : list) {
+            output.writeUTF(name);
+        }
+    }
+
+    /**
+     * Writes request of sending file to another user in the form of header=7, file's name and receiver's name
+     * @param filename the name of file
+     * @param receiver the name of receiver
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeFileToClient(String filename, String receiver) throws IOException {
+        output.writeByte(7);
+        output.writeUTF(filename);
+        output.writeUTF(receiver);
+        output.flush();
+    }
+
+    /**
+     * Writes request of sending file to many users in the form of header=12, file's name, count of receivers
+     * and receivers' names
+     * @param filename the name of file
+     * @param receivers the names of receivers
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeMulticast(String filename, Collection<String> receivers) throws IOException {
+        output.writeByte(12);
+        output.writeUTF(filename);
+        writeNameList(receivers);
+        output.flush();
+    }
+
+    /**
+     * Writes report of multicast in the form of header=13, file's name, count of receivers
+     * and for every receiver its name and delivery status
+     * @param filename the name of file
+     * @param receivers the names of receivers
+     * @param delivered the delivery status of i-th receiver
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeDeliveryReport(String filename, List<String> receivers, boolean[] delivered) throws IOException {
+        output.writeByte(13);
+        output.writeUTF(filename);
+        output.writeInt(receivers.size());
+        for (int i = 0; i < receivers.size(); ++i) {
+            output.writeUTF(receivers.get(i));
+            output.writeBoolean(delivered[i]);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes offer of direct transfer in the form of header=14, file's name, receiver's name,
+     * port of sender's PeerListener and token of offer
+     * @param filename the name of file
+     * @param receiver the name of receiver
+     * @param port the port of PeerListener
+     * @param token the token of offer
+     * @throws IOException if an error occurs when writing
+     */
+    public void writePeerOffer(String filename, String receiver, int port, String token) throws IOException {
+        output.writeByte(14);
+        output.writeUTF(filename);
+        output.writeUTF(receiver);
+        output.writeInt(port);
+        output.writeUTF(token);
+        output.flush();
+    }
+
+    /**
+     * Writes details of direct connection in the form of header=15, sender's name, file's name,
+     * sender's host, port of sender's PeerListener and token of offer
+     * @param sender the name of sender
+     * @param filename the name of file
+     * @param host the address of sender
+     * @param port the port of PeerListener
+     * @param token the token of offer
+     * @throws IOException if an error occurs when writing
+     */
+    public void writePeerRendezvous(String sender, String filename, String host, int port, String token) throws IOException {
+        output.writeByte(15);
+        output.writeUTF(sender);
+        output.writeUTF(filename);
+        output.writeUTF(host);
+        output.writeInt(port);
+        output.writeUTF(token);
+        output.flush();
+    }
+
+    /**
+     * Writes result of direct transfer in the form of header=16, token of offer and transfer status
+     * @param token the token of offer
+     * @param transferred false if server should relay the file
+     * @throws IOException if an error occurs when writing
+     */
+    public void writePeerResult(String token, boolean transferred) throws IOException {
+        output.writeByte(16);
+        output.writeUTF(token);
+        output.writeBoolean(transferred);
+        output.flush();
+    }
+
+    /**
+     * Writes batch in the form of header=8, batch's id, count of deleted files, their names,
+     * count of files and for every file its length, name and bytes
+     * @param batchId the id of batch
+     * @param deleted the names of deleted files
+     * @param added the names of added files
+     * @param bodies the bodies of added files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeBatch(int batchId, List<String> deleted, List<String> added, List<PooledBuffer> bodies) throws IOException {
+        output.writeByte(8);
+        output.writeInt(batchId);
+        output.writeInt(deleted.size());
+        for (String name : deleted) {
+            output.writeUTF(name);
+        }
+        output.writeInt(added.size());
+        for (int i = 0; i < added.size(); ++i) {
+            ByteBuffer body = bodies.get(i).buffer();
+            output.writeInt(body.remaining());
+            output.writeUTF(added.get(i));
+            writeBody(body);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes acknowledgement of batch in the form of header=9, batch's id, count of saved files, count of failed files
+     * and their names, count of files being repaired and their names
+     * @param batchId the id of batch
+     * @param saved the count of saved files
+     * @param failed the names of files which couldn't be saved
+     * @param repairing the names of corrupted files whose chunks are requested again
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeBatchAck(int batchId, int saved, Collection<String> failed, Collection<String> repairing) throws IOException {
+        output.writeByte(9);
+        output.writeInt(batchId);
+        output.writeInt(saved);
+        output.writeInt(failed.size());
+        for (String name : failed) {
+            output.writeUTF(name);
+        }
+        output.writeInt(repairing.size());
+        for (String name : repairing) {
+            output.writeUTF(name);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes changes of list of files in the form of header=10, count of added files, their names,
+     * count of removed files and their names
+     * @param added the names of added files
+     * @param removed the names of removed files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeFilesDelta(Collection<String> added, Collection<String> removed) throws IOException {
+        output.writeByte(10);
+        output.writeInt(added.size());
+        for (String name : added) {
+            output.writeUTF(name);
+        }
+        output.writeInt(removed.size());
+        for (String name : removed) {
+            output.writeUTF(name);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes token of session in the form of header=17 and token
+     * @param token the token which authenticates additional connections of the same user
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeSessionToken(String token) throws IOException {
+        output.writeByte(17);
+        output.writeUTF(token);
+        output.flush();
+    }
+
+    /**
+     * Writes range of file in the form of header=18, session token, transfer's id, file's name, file's length,
+     * range's offset, range's length and range's bytes
+     * @param token the token of session
+     * @param transferId the id of transfer unique for session
+     * @param filename the name of file
+     * @param length the length of whole file
+     * @param offset the position of range in file
+     * @param body the bytes of range between position and limit
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeStripe(String token, int transferId, String filename, long length, long offset, ByteBuffer body) throws IOException {
+        output.writeByte(18);
+        output.writeUTF(token);
+        output.writeInt(transferId);
+        output.writeUTF(filename);
+        output.writeLong(length);
+        output.writeLong(offset);
+        output.writeInt(body.remaining());
+        writeBody(body);
+        output.flush();
+    }
+
+    /**
+     * Writes acknowledgement of range in the form of header=19, transfer's id, range's offset,
+     * count of corrupted chunks and their offsets in file
+     * @param transferId the id of transfer
+     * @param offset the position of saved range
+     * @param corrupted the positions of chunks which have to be sent again
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeStripeAck(int transferId, long offset, List<Long> corrupted) throws IOException {
+        output.writeByte(19);
+        output.writeInt(transferId);
+        output.writeLong(offset);
+        writeOffsets(corrupted);
+        output.flush();
+    }
+
+    /**
+     * Writes request for corrupted chunks of file in the form of header=20, transfer's id, file's name,
+     * file's length, count of chunks and their offsets, chunks are sent back as ranges with header=18
+     * @param transferId the id of transfer
+     * @param filename the name of file
+     * @param length the length of whole file
+     * @param corrupted the positions of chunks which have to be sent again
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRepairRequest(int transferId, String filename, long length, List<Long> corrupted) throws IOException {
+        output.writeByte(20);
+        output.writeInt(transferId);
+        output.writeUTF(filename);
+        output.writeLong(length);
+        writeOffsets(corrupted);
+        output.flush();
+    }
+
+    /**
+     * Writes request for history of file in the form of header=21 and file's name
+     * @param filename the name of file
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeVersionsRequest(String filename) throws IOException {
+        output.writeByte(21);
+        output.writeUTF(filename);
+        output.flush();
+    }
+
+    /**
+     * Writes history of file in the form of header=22, file's name, count of versions and for every version
+     * its id, time, size, length of hash and hash
+     * @param filename the name of file
+     * @param versions the versions from the newest
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeVersions(String filename, List<Version> versions) throws IOException {
+        output.writeByte(22);
+        output.writeUTF(filename);
+        output.writeInt(versions.size());
+        for (Version version : versions) {
+            output.writeLong(version.getId());
+            output.writeLong(version.getCreated());
+            output.writeLong(version.getSize());
+            output.writeByte(version.getHash().length);
+            output.write(version.getHash());
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes request for restoring version of file in the form of header=23, file's name and version's id
+     * Restored file replaces current one and is sent back with header=3
+     * @param filename the name of file
+     * @param id the id of version
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRestoreRequest(String filename, long id) throws IOException {
+        output.writeByte(23);
+        output.writeUTF(filename);
+        output.writeLong(id);
+        output.flush();
+    }
+
+    /**
+     * Writes search query in the form of header=24, query, cursor and maximal count of results
+     * @param query the query
+     * @param cursor the cursor returned with previous page or 0 for the first page
+     * @param limit the maximal count of results
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeSearch(String query, long cursor, int limit) throws IOException {
+        output.writeByte(24);
+        output.writeUTF(query);
+        output.writeLong(cursor);
+        output.writeInt(limit);
+        output.flush();
+    }
+
+    /**
+     * Writes page of search results in the form of header=25, query, cursor of the next page or -1,
+     * count of files and for every file its name, size and modification time
+     * @param query the query
+     * @param cursor the cursor of the next page or -1 if there are no more results
+     * @param entries the found files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeSearchResults(String query, long cursor, List<FileEntry> entries) throws IOException {
+        output.writeByte(25);
+        output.writeUTF(query);
+        output.writeLong(cursor);
+        writeEntries(entries);
+        output.flush();
+    }
+
+    /**
+     * Writes request for page of listing in the form of header=26, order, whether it's descending, filter,
+     * cursor and maximal count of files
+     * @param query the order and filter of listing
+     * @param cursor the position of the first file of page, 0 for the first page
+     * @param limit the maximal count of files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeListingRequest(ListingQuery query, long cursor, int limit) throws IOException {
+        output.writeByte(26);
+        output.writeByte(query.getSort());
+        output.writeBoolean(query.isDescending());
+        output.writeUTF(query.getFilter());
+        output.writeLong(cursor);
+        output.writeInt(limit);
+        output.flush();
+    }
+
+    /**
+     * Writes page of listing in the form of header=27, generation of listing, count of all listed files,
+     * cursor of page, cursor of the next page or -1, count of files and for every file its name, size
+     * and modification time
+     * @param generation the generation of listing, it changes whenever files change
+     * @param total the count of all files matching filter
+     * @param cursor the position of the first file of page
+     * @param next the position of the next page or -1 if page is the last one
+     * @param entries the files of page
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeListingPage(int generation, int total, long cursor, long next, List<FileEntry> entries) throws IOException {
+        output.writeByte(27);
+        output.writeInt(generation);
+        output.writeInt(total);
+        output.writeLong(cursor);
+        output.writeLong(next);
+        writeEntries(entries);
+        output.flush();
+    }
+
+    /**
+     * Writes notice of changed files in the form of header=28 and new generation of listing,
+     * sent instead of list of files to users which read listing by pages
+     * @param generation the generation of listing
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeListingChanged(int generation) throws IOException {
+        output.writeByte(28);
+        output.writeInt(generation);
+        output.flush();
+    }
+
+    /**
+     * Writes redirection of user to the node of cluster which keeps user's directory in the form of header=29,
+     * node's host and node's port, the connection is closed afterwards
+     * @param host the host of node
+     * @param port the port of node
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRedirect(String host, int port) throws IOException {
+        output.writeByte(29);
+        output.writeUTF(host);
+        output.writeInt(port);
+        output.flush();
+    }
+
+    /**
+     * Writes opening of link between nodes of cluster in the form of header=30 and address of sending node,
+     * the connection carries only messages of cluster afterwards
+     * @param node the address of node in the form of host:port
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeNodeHello(String node) throws IOException {
+        output.writeByte(30);
+        output.writeUTF(node);
+        output.flush();
+    }
+
+    /**
+     * Writes challenge of node accepting link in the form of header=44, count of bytes and random bytes,
+     * node opening link answers with header=45
+     * @param challenge the random bytes, at most 255
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeNodeChallenge(byte[] challenge) throws IOException {
+        output.writeByte(44);
+        output.writeByte(challenge.length);
+        output.write(challenge);
+        output.flush();
+    }
+
+    /**
+     * Writes proof of node opening link in the form of header=45, count of bytes and HMAC of challenge
+     * @param proof the HMAC, at most 255 bytes
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeNodeProof(byte[] proof) throws IOException {
+        output.writeByte(45);
+        output.writeByte(proof.length);
+        output.write(proof);
+        output.flush();
+    }
+
+    /**
+     * Writes users logged on node in the form of header=31, node's address, node's heartbeat, count of users and users' names
+     * @param node the address of node
+     * @param heartbeat the heartbeat of node, newer state has higher heartbeat
+     * @param users the names of users
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeNodeUsers(String node, long heartbeat, Collection<String> users) throws IOException {
+        output.writeByte(31);
+        output.writeUTF(node);
+        output.writeLong(heartbeat);
+        writeNameList(users);
+        output.flush();
+    }
+
+    /**
+     * Writes file relayed to user logged on another node in the form of header=32, receiver's name, file's length,
+     * file's name and file's bytes
+     * @param receiver the name of receiver
+     * @param name the name of file
+     * @param body the file's bytes between position and limit, buffer's position isn't changed
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRelay(String receiver, String name, ByteBuffer body) throws IOException {
+        output.writeByte(32);
+        output.writeUTF(receiver);
+        output.writeInt(body.remaining());
+        output.writeUTF(name);
+        writeBody(body);
+        output.flush();
+    }
+
+    /**
+     * Writes replicated file in the form of header=33, owner's name, number of message, file's length,
+     * file's name and file's bytes
+     * @param owner the name of user owning file
+     * @param seq the number of message sent to follower, messages are numbered in order
+     * @param name the name of file
+     * @param body the file's bytes between position and limit, buffer's position isn't changed
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeReplicaPut(String owner, long seq, String name, ByteBuffer body) throws IOException {
+        output.writeByte(33);
+        output.writeUTF(owner);
+        output.writeLong(seq);
+        output.writeInt(body.remaining());
+        output.writeUTF(name);
+        writeBody(body);
+        output.flush();
+    }
+
+    /**
+     * Writes replicated removal of file in the form of header=34, owner's name, number of message and file's name
+     * @param owner the name of user owning file
+     * @param seq the number of message sent to follower, messages are numbered in order
+     * @param name the name of file
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeReplicaRemove(String owner, long seq, String name) throws IOException {
+        output.writeByte(34);
+        output.writeUTF(owner);
+        output.writeLong(seq);
+        output.writeUTF(name);
+        output.flush();
+    }
+
+    /**
+     * Writes manifest of user's files in the form of header=35, owner's name, number of message,
+     * count of files and for every file its name, size, modification time, length of hash and hash
+     * @param owner the name of user
+     * @param seq the number of message, replica expects the following numbers afterwards
+     * @param entries the files of user
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeReplicaManifest(String owner, long seq, Collection<FileEntry> entries) throws IOException {
+        output.writeByte(35);
+        output.writeUTF(owner);
+        output.writeLong(seq);
+        output.writeInt(entries.size());
+        for (FileEntry entry : entries) {
+            output.writeUTF(entry.getName());
+            output.writeLong(entry.getSize());
+            output.writeLong(entry.getModified());
+            output.writeByte(entry.getHash().length);
+            output.write(entry.getHash());
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes acknowledgement of replica in the form of header=36, owner's name, number of the last applied message
+     * or -1 if replica needs manifest, count of files replica misses and their names
+     * @param owner the name of user
+     * @param seq the number of message
+     * @param wanted the names of files which have to be sent again
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeReplicaAck(String owner, long seq, Collection<String> wanted) throws IOException {
+        output.writeByte(36);
+        output.writeUTF(owner);
+        output.writeLong(seq);
+        writeNameList(wanted);
+        output.flush();
+    }
+
+    /**
+     * Writes request of sending replicated file to user logged on node keeping replica in the form of header=37,
+     * owner's name, file's name and receiver's name
+     * @param owner the name of user owning file
+     * @param name the name of file
+     * @param receiver the name of receiver
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeReplicaSend(String owner, String name, String receiver) throws IOException {
+        output.writeByte(37);
+        output.writeUTF(owner);
+        output.writeUTF(name);
+        output.writeUTF(receiver);
+        output.flush();
+    }
+
+    /**
+     * Writes request of file kept on server in the form of header=38 and file's name, server answers with header=39
+     * @param name the name of file
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeFetch(String name) throws IOException {
+        output.writeByte(38);
+        output.writeUTF(name);
+        output.flush();
+    }
+
+    /**
+     * Writes fetched file in the form of header=39, file's name, boolean telling if file was found and for found file
+     * its modification time, length and bytes
+     * @param name the name of file
+     * @param modified the modification time of file
+     * @param body the file's bytes between position and limit or null if file wasn't found, buffer's position isn't changed
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeFetched(String name, long modified, ByteBuffer body) throws IOException {
+        output.writeByte(39);
+        output.writeUTF(name);
+        output.writeBoolean(body != null);
+        if (body != null) {
+            output.writeLong(modified);
+            output.writeInt(body.remaining());
+            writeBody(body);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes request of the most recently modified files in the form of header=40 and maximal count of files,
+     * server answers with header=41
+     * @param limit the maximal count of files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRecentRequest(int limit) throws IOException {
+        output.writeByte(40);
+        output.writeInt(limit);
+        output.flush();
+    }
+
+    /**
+     * Writes the most recently modified files in the form of header=41, count of files and for every file its name,
+     * size and modification time, files are ordered from the newest
+     * @param entries the files
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeRecentFiles(List<FileEntry> entries) throws IOException {
+        output.writeByte(41);
+        writeEntries(entries);
+        output.flush();
+    }
+
+    /**
+     * Writes heartbeat in the form of header=42 and time of sending, receiver answers with header=43 and the same time
+     * @param sent the time of sending in milliseconds
+     * @throws IOException if an error occurs when writing
+     */
+    public void writePing(long sent) throws IOException {
+        output.writeByte(42);
+        output.writeLong(sent);
+        output.flush();
+    }
+
+    /**
+     * Writes answer to heartbeat in the form of header=43 and time of sending taken from header=42
+     * @param sent the time of sending of answered heartbeat
+     * @throws IOException if an error occurs when writing
+     */
+    public void writePong(long sent) throws IOException {
+        output.writeByte(43);
+        output.writeLong(sent);
+        output.flush();
+    }
+
+    private void writeEntries(List<FileEntry> entries) throws IOException {
+        output.writeInt(entries.size());
+        for (FileEntry entry : entries) {
+            output.writeUTF(entry.getName());
+            output.writeLong(entry.getSize());
+            output.writeLong(entry.getModified());
+        }
+    }
+
+    private void writeOffsets(List<Long> offsets) throws IOException {
+        output.writeInt(offsets.size());
+        for (long offset : offsets) {
+            output.writeLong(offset);
+        }
+    }
+
+    /**
+     * Writes bytes of buffer in chunks followed by their CRC32C and SHA-256 of all bytes, buffer's position isn't changed
+     * Chunks are copied through reused scratch array and checksummed while they are in cache
+     * @param body the bytes between position and limit
+     * @throws IOException if an error occurs when writing
+     */
+    public void writeBody(ByteBuffer body) throws IOException {
+        writeDigest.reset();
+        ByteBuffer source = body.duplicate();
+        while (source.hasRemaining()) {
+            int count = Math.min(writeScratch.length, source.remaining());
+            source.get(writeScratch, 0, count);
+            writeChecksum.reset();
+            writeChecksum.update(writeScratch, 0, count);
+            writeDigest.update(writeScratch, 0, count);
+            output.write(writeScratch, 0, count);
+            output.writeInt((int) writeChecksum.getValue());
+        }
+        digest(writeDigest, writeHash);
+        output.write(writeHash);
+    }
+
+    /**
+     * Writes bytes read from stream in the same form as writeBody
+     * @param content the stream of bytes
+     * @param length the count of bytes to be written
+     * @throws IOException if stream ends early or an error occurs when reading or writing
+     */
+    public void writeBody(InputStream content, long length) throws IOException {
+        writeDigest.reset();
+        for (long left = length; left > 0; ) {
+            int count = content.readNBytes(writeScratch, 0, (int) Math.min(writeScratch.length, left));
+            if (count == 0) throw new EOFException("Stream ended " + left + " bytes early");
+            writeChecksum.reset();
+            writeChecksum.update(writeScratch, 0, count);
+            writeDigest.update(writeScratch, 0, count);
+            output.write(writeScratch, 0, count);
+            output.writeInt((int) writeChecksum.getValue());
+            left -= count;
+        }
+        digest(writeDigest, writeHash);
+        output.write(writeHash);
+    }
+
+    /**
+     * Completes hash into reused array, so no array is allocated for every body
+     * @param digest the digest of body
+     * @param target the array of HASH_SIZE bytes
+     * @throws IOException if hash doesn't fit the array
+     */
+    private static void digest(MessageDigest digest, byte[] target) throws IOException {
+        try {
+            digest.digest(target, 0, HASH_SIZE);
+        } catch (DigestException e) {
+            throw new IOException("Hash doesn't fit " + HASH_SIZE + " bytes", e);
+        }
+    }
+
+    /**
+     * @return stream messages are read from, used by formats streamed in the middle of message
+     */
+    public DataInputStream getInput() {
+        return input;
+    }
+
+    /**
+     * @return stream messages are written to, used by formats streamed in the middle of message
+     */
+    public DataOutputStream getOutput() {
+        return output;
+    }
+}
@@ -0,0 +1,121 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class keeps single instance of every file's or user's name read from network
+ * Names are looked up by their encoded bytes, so repeated names are decoded without allocating new strings
+ * The table is cleared when it grows beyond its limit
+ * @author Jakub Reszka
+ */
+public class NameTable {
+
+    private static final NameTable sharedTable = new NameTable(1 << 20);
+
+    private final int limit;
+    private byte[][] keys;
+    private String[] names;
+    private int size = 0;
+
+    /**
+     * Constructs name table with given params
+     * @param limit the maximal count of names kept
+     */
+    public NameTable(int limit) {
+        this.limit = limit;
+        this.keys = new byte[1024][];
+        this.names = new String[1024];
+    }
+
+    /**
+     * @return the table shared by whole application
+     */
+    public static NameTable shared() {
+        return sharedTable;
+    }
+
+    /**
+     * Gets name encoded as modified UTF-8 in given bytes
+     * @param bytes the array containing encoded name
+     * @param length the count of encoded bytes
+     * @return the single instance of name
+     * @throws IOException if bytes aren't valid modified UTF-8
+     */
+    public synchronized String intern(byte[] bytes, int length) throws IOException {
+        int mask = keys.length - 1;
+        int index = hash(bytes, length) & mask;
+        while (keys[index] != null) {
+            if (matches(keys[index], bytes, length)) return names[index];
+            index = (index + 1) & mask;
+        }
+
+        String name = decode(bytes, length);
+        if (size >= limit) {
+            clear();
+            return name;
+        }
+        byte[] key = new byte[length];
+        System.arraycopy(bytes, 0, key, 0, length);
+        keys[index] = key;
+        names[index] = name;
+        if (++size * 2 > keys.length) grow();
+        return name;
+    }
+
+    private void clear() {
+        keys = new byte[1024][];
+        names = new String[1024];
+        size = 0;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldNames = names;
+        keys = new byte[oldKeys.length * 2][];
+        names = new String[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] == null) continue;
+            int index = hash(oldKeys[i], oldKeys[i].length) & mask;
+            while (keys[index] != null) index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            names[index] = oldNames[i];
+        }
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int length) {
+        if (key.length != length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (key[i] != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; ++i) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Decodes modified UTF-8, names containing only ASCII characters are decoded directly
+     */
+    private static String decode(byte[] bytes, int length) throws IOException {
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; ++i) {
+            ascii = bytes[i] > 0;
+        }
+        if (ascii) return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+
+        byte[] framed = new byte[length + 2];
+        framed[0] = (byte) (length >>> 8);
+        framed[1] = (byte) length;
+        System.arraycopy(bytes, 0, framed, 2, length);
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(framed)));
+    }
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class writes many small files as one archive stream
+ * Every entry is written as marker=1, file's name, file's length and file's body, the archive ends with marker=0
+ * Bodies are written by MessageCodec, so every entry is checksummed like a separate file
+ * Files are read through a single reused buffer, so packing doesn't allocate per file
+ * @author Jakub Reszka
+ */
+public class PackWriter {
+
+    public static final int MAX_ENTRY_SIZE = 16 * 1024;
+
+    private final MessageCodec codec;
+    private final DataOutputStream output;
+    private final byte[] buffer = new byte[MAX_ENTRY_SIZE + 1];
+    private int count = 0;
+
+    /**
+     * Constructs pack writer with given params
+     * @param codec the codec archive is written with
+     */
+    public PackWriter(MessageCodec codec) {
+        this.codec = codec;
+        this.output = codec.getOutput();
+    }
+
+    /**
+     * Checks if file is small enough to be packed
+     * @param file the file handle
+     * @return true if file can be added to archive
+     */
+    public static boolean fits(File file) {
+        return file.length() <= MAX_ENTRY_SIZE;
+    }
+
+    /**
+     * Adds file to archive, file is read completely before anything is written, so failed reads don't break archive
+     * @param name the name under which file is stored
+     * @param file the file handle
+     * @return false if file can't be read or has grown beyond MAX_ENTRY_SIZE
+     * @throws IOException if an error occurs when writing
+     */
+    public boolean add(String name, File file) throws IOException {
+        int length;
+        try (InputStream stream = new FileInputStream(file)) {
+            length = stream.readNBytes(buffer, 0, buffer.length);
+        } catch (IOException e) {
+            return false;
+        }
+        if (length > MAX_ENTRY_SIZE) return false;
+
+        output.writeByte(1);
+        output.writeUTF(name);
+        output.writeInt(length);
+        codec.writeBody(ByteBuffer.wrap(buffer, 0, length));
+        count++;
+        return true;
+    }
+
+    /**
+     * Writes end of archive and flushes whole message
+     * @throws IOException if an error occurs when writing
+     */
+    public void finish() throws IOException {
+        output.writeByte(0);
+        output.flush();
+    }
+
+    /**
+     * @return count of added files
+     */
+    public int getCount() {
+        return count;
+    }
+}
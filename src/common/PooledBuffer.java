@@ -0,0 +1,58 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents buffer borrowed from BufferPool, it has to be closed exactly once to be returned to pool
+ * @author Jakub Reszka
+ */
+public class PooledBuffer implements AutoCloseable {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private volatile boolean released = true;
+
+    /**
+     * Constructs pooled buffer with given params
+     * @param pool the pool which owns buffer
+     * @param buffer the underlying buffer
+     */
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return buffer, its limit is set to requested size
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool
+     * @throws IllegalStateException if buffer was already returned
+     */
+    @Override
+    public void close() {
+        if (released) throw new IllegalStateException("Buffer released twice");
+        released = true;
+        pool.release(this);
+    }
+
+    /**
+     * Marks buffer as borrowed and prepares it for given size
+     * @param size the requested size
+     */
+    void borrow(int size) {
+        released = false;
+        buffer.clear().limit(size);
+    }
+
+    /**
+     * @return capacity of underlying buffer
+     */
+    int capacity() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,48 @@
+package common;
+
+/**
+ * This class represents configuration of DirectoryScanner
+ * Values can be overridden with system properties filemanager.scan.parallelism and filemanager.scan.ioDepth
+ * @author Jakub Reszka
+ */
+public class ScannerConfig {
+
+    private final int parallelism;
+    private final int ioDepth;
+
+    /**
+     * Constructs scanner configuration with given params
+     * @param parallelism the number of threads walking directories
+     * @param ioDepth the maximal number of files hashed at the same time
+     */
+    public ScannerConfig(int parallelism, int ioDepth) {
+        if (parallelism < 1 || ioDepth < 1)
+            throw new IllegalArgumentException("Parallelism and I/O depth have to be positive");
+        this.parallelism = parallelism;
+        this.ioDepth = ioDepth;
+    }
+
+    /**
+     * Creates configuration from system properties, by default all cores are used and 4 files are hashed at once
+     * @return the scanner configuration
+     */
+    public static ScannerConfig fromSystemProperties() {
+        return new ScannerConfig(
+                Integer.getInteger("filemanager.scan.parallelism", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("filemanager.scan.ioDepth", 4));
+    }
+
+    /**
+     * @return parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return I/O depth
+     */
+    public int getIoDepth() {
+        return ioDepth;
+    }
+}
@@ -0,0 +1,341 @@
+package common;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents socket whose streams are encrypted with TLS by SSLEngine
+ * Engine doesn't own the socket, so the same code can later be driven by non-blocking channels
+ * Handshake is performed by the first thread which reads or writes, so accepting thread is never blocked by it
+ * Reading and writing may run concurrently, handshake messages which arrive later, such as session tickets
+ * or key updates, are answered by reading thread
+ * @author Jakub Reszka
+ */
+public class SecureSocket extends Socket {
+
+    private final SSLContext context;
+    private final boolean client;
+    private final TransportConfig config;
+
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Object handshakeMonitor = new Object();
+
+    private SSLEngine engine = null;
+    private InputStream rawInput = null;
+    private OutputStream rawOutput = null;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private volatile boolean handshaken = false;
+    private boolean inboundDone = false;
+    private InputStream input = null;
+    private OutputStream output = null;
+
+    /**
+     * Constructs unconnected socket
+     * @param context the context engines are created with
+     * @param client true for connecting side, false for accepted connections
+     * @param config the configuration which selects protocols and ciphers
+     */
+    SecureSocket(SSLContext context, boolean client, TransportConfig config) {
+        this.context = context;
+        this.client = client;
+        this.config = config;
+    }
+
+    /**
+     * Creates engine when socket is connected, client's engine is bound to server's host and port,
+     * so later connections to the same server resume the session instead of full handshake
+     */
+    private synchronized SSLEngine engine() throws IOException {
+        if (engine != null) return engine;
+        if (!isConnected()) throw new IOException("Socket is not connected");
+        SSLEngine created = client
+                ? context.createSSLEngine(((InetSocketAddress) getRemoteSocketAddress()).getHostString(), getPort())
+                : context.createSSLEngine();
+        created.setUseClientMode(client);
+        SSLParameters parameters = created.getSSLParameters();
+        config.configure(parameters, created.getSupportedCipherSuites(), client);
+        created.setSSLParameters(parameters);
+
+        SSLSession session = created.getSession();
+        netIn = ByteBuffer.allocate(Math.max(session.getPacketBufferSize(), config.getBufferSize()));
+        netOut = ByteBuffer.allocate(Math.max(session.getPacketBufferSize(), config.getBufferSize() + session.getPacketBufferSize()));
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+        rawInput = super.getInputStream();
+        rawOutput = super.getOutputStream();
+        engine = created;
+        return engine;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        engine();
+        if (input == null) input = new SecureInput();
+        return input;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        engine();
+        if (output == null) output = new SecureOutput();
+        return output;
+    }
+
+    /**
+     * Performs handshake if it wasn't performed yet, both locks are held, so no data is exchanged meanwhile
+     * @throws IOException if handshake fails
+     */
+    public void startHandshake() throws IOException {
+        if (handshaken) return;
+        synchronized (handshakeMonitor) {
+            if (handshaken) return;
+            SSLEngine engine = engine();
+            readLock.lock();
+            writeLock.lock();
+            try {
+                engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                        && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    switch (status) {
+                        case NEED_WRAP:
+                            status = wrap(ByteBuffer.allocate(0));
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            status = unwrap();
+                            if (inboundDone) throw new EOFException("Connection closed during handshake");
+                            break;
+                        case NEED_TASK:
+                            status = runTasks();
+                            break;
+                        default:
+                            status = engine.getHandshakeStatus();
+                    }
+                }
+                handshaken = true;
+            } finally {
+                writeLock.unlock();
+                readLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the session negotiated by handshake
+     * @throws IOException if handshake fails
+     */
+    public SSLSession getSession() throws IOException {
+        startHandshake();
+        return engine.getSession();
+    }
+
+    /**
+     * Runs delegated tasks of engine, such as verification of certificates
+     */
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    /**
+     * Encrypts all remaining bytes of source and sends them, records are gathered so buffer of stream
+     * is sent with a single write, write lock has to be held
+     */
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer source) throws IOException {
+        SSLEngineResult result;
+        do {
+            result = engine.wrap(source, netOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    sendNetOut();
+                    break;
+                case CLOSED:
+                    sendNetOut();
+                    if (source.hasRemaining()) throw new SSLException("Connection is closed");
+                    return result.getHandshakeStatus();
+                default:
+                    if (netOut.remaining() < engine.getSession().getPacketBufferSize()) sendNetOut();
+            }
+        } while (source.hasRemaining() || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+        sendNetOut();
+        return result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK ? runTasks() : result.getHandshakeStatus();
+    }
+
+    private void sendNetOut() throws IOException {
+        if (netOut.position() == 0) return;
+        rawOutput.write(netOut.array(), 0, netOut.position());
+        rawOutput.flush();
+        netOut.clear();
+    }
+
+    /**
+     * Decrypts next record into application buffer reading from socket as needed, read lock has to be held
+     * Handshake messages which need an answer are answered under write lock
+     */
+    private SSLEngineResult.HandshakeStatus unwrap() throws IOException {
+        appIn.compact();
+        try {
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                switch (result.getStatus()) {
+                    case OK:
+                        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) status = runTasks();
+                        if (!handshaken) return status;
+                        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            writeLock.lock();
+                            try {
+                                status = wrap(ByteBuffer.allocate(0));
+                            } finally {
+                                writeLock.unlock();
+                            }
+                        }
+                        // handshake message after handshake, such as session ticket, carries no data
+                        if (result.bytesProduced() == 0) continue;
+                        return status;
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.remaining() == 0) netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        if (!readRecord()) return status;
+                        break;
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        break;
+                    case CLOSED:
+                        inboundDone = true;
+                        return status;
+                }
+            }
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * Reads bytes from socket into network buffer
+     * @return false if socket reached end of stream
+     */
+    private boolean readRecord() throws IOException {
+        int count = rawInput.read(netIn.array(), netIn.position(), netIn.remaining());
+        if (count < 0) {
+            inboundDone = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) { }
+            return false;
+        }
+        netIn.position(netIn.position() + count);
+        return true;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Sends close_notify if no other thread is writing and closes socket
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (engine != null && handshaken && writeLock.tryLock()) {
+            try {
+                engine.closeOutbound();
+                wrap(ByteBuffer.allocate(0));
+            } catch (IOException ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Stream of decrypted data
+     */
+    private class SecureInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            startHandshake();
+            readLock.lock();
+            try {
+                while (!appIn.hasRemaining()) {
+                    if (inboundDone) return -1;
+                    unwrap();
+                }
+                int count = Math.min(length, appIn.remaining());
+                appIn.get(bytes, offset, count);
+                return count;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            return appIn.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            SecureSocket.this.close();
+        }
+    }
+
+    /**
+     * Stream which encrypts written data, every write is sent at once, so it should be buffered
+     */
+    private class SecureOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            startHandshake();
+            writeLock.lock();
+            try {
+                wrap(ByteBuffer.wrap(bytes, offset, length));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SecureSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,644 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * This class stores all files of user in a single append-only log, so many small files cost one file on disk
+ * and concurrent writers share flushes of the log
+ * Log starts with magic number followed by records in the form of
+ * type (1 put, 2 delete, 3 padding), name, modified, length, data, CRC32C of the whole record
+ * Space of record is reserved under lock and content is streamed into it outside of lock, so puts of many files
+ * are written at once, record is published in index when it's written and log is flushed only up to the point
+ * before which all records are written, content which fails while being streamed is replaced with padding record
+ * Torn record at the end of log is cut off when log is opened, log is compacted when it contains
+ * more than filemanager.segment.compactBytes of overwritten data and more overwritten than live data
+ * @author Jakub Reszka
+ */
+public class SegmentLogBackend implements StorageBackend {
+
+    private static final int MAGIC = 0x464D4C31;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte PADDING = 3;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long COMPACT_BYTES = Long.getLong("filemanager.segment.compactBytes", 64L * 1024 * 1024);
+
+    private final Path file;
+    private final Durability durability;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong versions = new AtomicLong();
+    private final Object syncMonitor = new Object();
+    private final Object appendMonitor = new Object();
+    private final TreeMap<Long, Long> writtenRecords = new TreeMap<>();
+
+    private volatile FileChannel channel;
+    private volatile long end;
+    private long written;
+    private long synced;
+    private long generation = 0;
+    private long garbage = 0;
+    private long forces = 0;
+
+    /**
+     * Location of file's data in log
+     */
+    private static class Location {
+        final long start;
+        final int headerSize;
+        final long length;
+        final long modified;
+        final long version;
+
+        Location(long start, int headerSize, long length, long modified, long version) {
+            this.start = start;
+            this.headerSize = headerSize;
+            this.length = length;
+            this.modified = modified;
+            this.version = version;
+        }
+
+        long data() {
+            return start + headerSize;
+        }
+
+        long size() {
+            return headerSize + length + 4;
+        }
+    }
+
+    /**
+     * Opens log given in path, log is created if it doesn't exist
+     * @param file the path to log
+     * @param durability the durability of writes
+     * @throws IOException if log can't be opened
+     */
+    public SegmentLogBackend(Path file, Durability durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Files.deleteIfExists(compactFile());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /**
+     * Rebuilds index from log, log is truncated at first torn or damaged record
+     */
+    private void recover() throws IOException {
+        if (channel.size() < 4) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(4).putInt(MAGIC).flip(), 0);
+            channel.force(true);
+            end = written = synced = 4;
+            return;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        if (magic.getInt(0) != MAGIC) throw new IOException(file + " is not a storage log");
+
+        long size = channel.size();
+        long position = 4;
+        channel.position(position);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), CHUNK_SIZE));
+        CRC32C crc = new CRC32C();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (position < size) {
+            try {
+                crc.reset();
+                byte type = input.readByte();
+                String name = input.readUTF();
+                long modified = input.readLong();
+                long length = input.readLong();
+                byte[] header = header(type, name, modified, length);
+                if (type != PUT && type != DELETE && type != PADDING || length < 0 || position + header.length + length + 4 > size) break;
+                crc.update(header);
+                for (long left = length; left > 0; ) {
+                    int count = (int) Math.min(chunk.length, left);
+                    input.readFully(chunk, 0, count);
+                    crc.update(chunk, 0, count);
+                    left -= count;
+                }
+                if (input.readInt() != (int) crc.getValue()) break;
+
+                Location location = new Location(position, header.length, length, modified, versions.incrementAndGet());
+                Location previous = type == PUT ? index.put(name, location) : type == DELETE ? index.remove(name) : null;
+                if (previous != null) garbage += previous.size();
+                if (type != PUT) garbage += location.size();
+                position += location.size();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        end = written = synced = position;
+    }
+
+    /**
+     * Serializes header of record
+     */
+    private static byte[] header(byte type, String name, long modified, long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + name.length());
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(type);
+        output.writeUTF(name);
+        output.writeLong(modified);
+        output.writeLong(length);
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String name, ByteBuffer body) {
+        return put(name, new BufferStream(body.duplicate()), body.remaining());
+    }
+
+    /**
+     * Streams content into space reserved at the end of log while holding read lock, so other puts and reads go on
+     * and only compaction waits, file is published in index when its record is written
+     * File which was put later replaces the file in index, so index matches order of records in log
+     */
+    @Override
+    public CompletableFuture<Boolean> put(String name, InputStream content, long length) {
+        if (!valid(name)) return CompletableFuture.completedFuture(false);
+        long recordEnd;
+        long writtenGeneration;
+        boolean stored;
+        lock.readLock().lock();
+        try {
+            long modified = System.currentTimeMillis();
+            byte[] header = header(PUT, name, modified, length);
+            long start = reserve(header.length + length + 4);
+            recordEnd = start + header.length + length + 4;
+            writtenGeneration = generation;
+            try {
+                Location location = append(header, name, modified, content, length, start);
+                publish(name, location);
+                stored = true;
+            } catch (IOException e) {
+                pad(start, recordEnd - start);
+                stored = false;
+            }
+            markWritten(start, recordEnd);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+        boolean durable = sync(writtenGeneration, recordEnd);
+        compactIfNeeded();
+        return CompletableFuture.completedFuture(stored && durable);
+    }
+
+    /**
+     * Reserves space for record at the end of log, read or write lock has to be held
+     * @param size the size of record
+     * @return the position of record
+     */
+    private long reserve(long size) {
+        synchronized (appendMonitor) {
+            long start = end;
+            end = start + size;
+            return start;
+        }
+    }
+
+    /**
+     * Notes that record is written and moves the point before which all records are written
+     * @param start the position of record
+     * @param recordEnd the end of record
+     */
+    private void markWritten(long start, long recordEnd) {
+        synchronized (appendMonitor) {
+            writtenRecords.put(start, recordEnd);
+            Map.Entry<Long, Long> first;
+            while ((first = writtenRecords.firstEntry()) != null && first.getKey() == written) {
+                written = first.getValue();
+                writtenRecords.pollFirstEntry();
+            }
+            appendMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all records before given position are written
+     * @param position the end of record
+     * @return the point before which all records are written
+     */
+    private long awaitWritten(long position) {
+        synchronized (appendMonitor) {
+            while (written < position) {
+                try {
+                    appendMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return written;
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Puts file in index unless newer record of the same file is already there, read lock has to be held
+     * @param name the name of file
+     * @param location the location of written record
+     */
+    private void publish(String name, Location location) {
+        synchronized (appendMonitor) {
+            Location previous = index.get(name);
+            if (previous != null && previous.start > location.start) {
+                garbage += location.size();
+                return;
+            }
+            index.put(name, location);
+            if (previous != null) garbage += previous.size();
+        }
+    }
+
+    /**
+     * Fills reserved space of record whose content failed with padding record, so records after it stay readable
+     * @param start the position of record
+     * @param size the size of reserved space
+     */
+    private void pad(long start, long size) {
+        try {
+            byte[] header = header(PADDING, "", 0, size - header(PADDING, "", 0, 0).length - 4);
+            append(header, "", 0, InputStream.nullInputStream(), size - header.length - 4, start);
+        } catch (IOException ignored) {
+            // log can't be written, record is torn and log is cut there when it's opened again
+        }
+        synchronized (appendMonitor) {
+            garbage += size;
+        }
+    }
+
+    /**
+     * Appends record with given header at given position of log
+     * Content shorter than length is padded with zeros when record is padding
+     * @return the location of record
+     */
+    private Location append(byte[] header, String name, long modified, InputStream content, long length, long start) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(header);
+        long position = start;
+        position += writeFully(ByteBuffer.wrap(header), position);
+
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        boolean padding = header[0] == PADDING;
+        for (long left = length; left > 0; ) {
+            int count = padding ? (int) Math.min(chunk.length, left) : content.read(chunk, 0, (int) Math.min(chunk.length, left));
+            if (count < 0) throw new EOFException("Content of " + name + " ended early");
+            crc.update(chunk, 0, count);
+            position += writeFully(ByteBuffer.wrap(chunk, 0, count), position);
+            left -= count;
+        }
+        writeFully(ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip(), position);
+        return new Location(start, header.length, length, modified, versions.incrementAndGet());
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return count;
+    }
+
+    /**
+     * Flushes log at least up to given position, writers waiting together share one flush
+     * Log is flushed only up to the point before which all records are written, so flushed log never has hole
+     * Positions written before compaction are durable once compaction has flushed the new log
+     * @param generation the count of compactions when record was written
+     * @param position the end of record
+     * @return false if log couldn't be flushed
+     */
+    private boolean sync(long generation, long position) {
+        if (durability == Durability.NONE) return true;
+        synchronized (syncMonitor) {
+            while (this.generation == generation && synced < position) {
+                long target = awaitWritten(position);
+                try {
+                    channel.force(durability == Durability.FULL);
+                    ++forces;
+                    synced = target;
+                } catch (ClosedChannelException e) {
+                    // log was closed and flushed by close
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flushes everything written so far regardless of durability, used when many puts have to become durable together
+     * @throws IOException if log couldn't be flushed
+     */
+    public void flush() throws IOException {
+        synchronized (syncMonitor) {
+            long target = awaitWritten(0);
+            if (synced < target) {
+                channel.force(false);
+                ++forces;
+                synced = target;
+            }
+        }
+    }
+
+    @Override
+    public InputStream get(String name) throws IOException {
+        Location location = index.get(name);
+        if (location == null) throw new FileNotFoundException(name);
+        return new ObjectStream(name, location);
+    }
+
+    @Override
+    public PooledBuffer read(String name) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(name);
+            if (location == null) throw new FileNotFoundException(name);
+            PooledBuffer body = BufferPool.shared().acquire((int) location.length);
+            try {
+                ByteBuffer buffer = body.buffer();
+                long position = location.data();
+                while (buffer.hasRemaining()) {
+                    int count = channel.read(buffer, position);
+                    if (count < 0) throw new EOFException(name);
+                    position += count;
+                }
+                buffer.flip();
+                return body;
+            } catch (IOException e) {
+                body.close();
+                throw e;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        long recordEnd;
+        long writtenGeneration;
+        lock.writeLock().lock();
+        try {
+            if (!index.containsKey(name)) return false;
+            writtenGeneration = generation;
+            long modified = System.currentTimeMillis();
+            long start = end;
+            try {
+                byte[] header = header(DELETE, name, modified, 0);
+                Location tombstone = append(header, name, modified, InputStream.nullInputStream(), 0, start);
+                reserve(tombstone.size());
+                garbage += index.remove(name).size() + tombstone.size();
+                recordEnd = start + tombstone.size();
+                markWritten(start, recordEnd);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(start);
+                } catch (IOException ignored) { }
+                return false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        boolean durable = sync(writtenGeneration, recordEnd);
+        compactIfNeeded();
+        return durable;
+    }
+
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>(index.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public FileEntry stat(String name) {
+        Location location = index.get(name);
+        return location == null ? null : new FileEntry(name, location.length, location.modified, null);
+    }
+
+    @Override
+    public Snapshot reconcile(Snapshot previous) {
+        Snapshot snapshot = new Snapshot(previous.getOwner());
+        for (String name : list()) {
+            Location location = index.get(name);
+            if (location == null) continue;
+            FileEntry known = previous.get(name);
+            if (known != null && known.getHash() != null && known.matches(location.length, location.modified)) {
+                snapshot.put(known);
+                continue;
+            }
+            try (InputStream content = get(name)) {
+                MessageDigest digest = FileManager.newDigest();
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int count;
+                while ((count = content.read(chunk)) > 0) {
+                    digest.update(chunk, 0, count);
+                }
+                snapshot.put(new FileEntry(name, location.length, location.modified, digest.digest()));
+            } catch (IOException ignored) { }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Compacts log when overwritten and deleted data takes more space than threshold and than live data
+     */
+    private void compactIfNeeded() {
+        lock.writeLock().lock();
+        try {
+            if (garbage < COMPACT_BYTES || garbage < end - garbage) return;
+            compact();
+        } catch (IOException ignored) {
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies live records to new log which atomically replaces current one
+     * @throws IOException if log couldn't be compacted, then current log is kept
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<Map.Entry<String, Location>> live = new ArrayList<>(index.entrySet());
+            live.sort(Comparator.comparingLong(entry -> entry.getValue().start));
+            Map<String, Location> moved = new HashMap<>();
+            Path temp = compactFile();
+            try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                output.write(ByteBuffer.allocate(4).putInt(MAGIC).flip());
+                long position = 4;
+                for (Map.Entry<String, Location> entry : live) {
+                    Location location = entry.getValue();
+                    for (long done = 0; done < location.size(); ) {
+                        done += channel.transferTo(location.start + done, location.size() - done, output);
+                    }
+                    moved.put(entry.getKey(), new Location(position, location.headerSize, location.length, location.modified, location.version));
+                    position += location.size();
+                }
+                output.force(true);
+            }
+            synchronized (syncMonitor) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (durability == Durability.FULL) forceDirectory();
+                channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                index.putAll(moved);
+                end = written = synced = channel.size();
+                ++generation;
+            }
+            garbage = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void forceDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel handle = FileChannel.open(directory, StandardOpenOption.READ)) {
+            handle.force(true);
+        } catch (IOException ignored) { }
+    }
+
+    private Path compactFile() {
+        return Paths.get(file.toString() + ".compact");
+    }
+
+    /**
+     * Names have to be relative and can't lead outside of user's directory, the same as in DirectoryBackend
+     */
+    private static boolean valid(String name) {
+        if (name == null || name.isEmpty() || name.getBytes(StandardCharsets.UTF_8).length > 65535) return false;
+        Path path = Paths.get(name).normalize();
+        return !path.isAbsolute() && !path.startsWith("..");
+    }
+
+    @Override
+    public String getLocation() {
+        return file.toString();
+    }
+
+    /**
+     * @return the statistics of log in the form of "live=N garbage=N forces=N"
+     */
+    public String getStats() {
+        lock.readLock().lock();
+        try {
+            synchronized (appendMonitor) {
+                return "live=" + (end - 4 - garbage) + " garbage=" + garbage + " forces=" + forces;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (durability != Durability.NONE) channel.force(true);
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stream of stored file which reads log at file's current location, so compaction doesn't break it
+     * Reading fails if file was replaced or deleted after the stream was opened
+     */
+    private class ObjectStream extends InputStream {
+
+        private final String name;
+        private final long version;
+        private final long length;
+        private long position = 0;
+
+        ObjectStream(String name, Location location) {
+            this.name = name;
+            this.version = location.version;
+            this.length = location.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (position >= length) return -1;
+            lock.readLock().lock();
+            try {
+                Location location = index.get(name);
+                if (location == null || location.version != version) throw new IOException(name + " changed while being read");
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(count, length - position));
+                int read = channel.read(buffer, location.data() + position);
+                if (read < 0) throw new EOFException(name);
+                position += read;
+                return read;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+
+    /**
+     * Stream of bytes between position and limit of buffer
+     */
+    private static class BufferStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (!buffer.hasRemaining()) return -1;
+            count = Math.min(count, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package common;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * This class represents state of synchronized folder which can be stored on disk in compact binary form
+ * Entries are kept sorted by name, so saved snapshots are stable
+ * @author Jakub Reszka
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x464D5331;
+
+    private final String owner;
+    private final ConcurrentSkipListMap<String, FileEntry> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructs empty snapshot
+     * @param owner the name of user whose folder is described by snapshot
+     */
+    public Snapshot(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Loads snapshot from given file, missing or damaged file results in empty snapshot
+     * @param file the path to snapshot file
+     * @param owner the owner used when snapshot can't be loaded
+     * @return the loaded snapshot
+     */
+    public static Snapshot load(Path file, String owner) {
+        if (!Files.exists(file)) return new Snapshot(owner);
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC) return new Snapshot(owner);
+            Snapshot snapshot = new Snapshot(input.readUTF());
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                String name = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                byte[] hash = new byte[input.readUnsignedByte()];
+                input.readFully(hash);
+                snapshot.put(new FileEntry(name, size, modified, hash));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            return new Snapshot(owner);
+        }
+    }
+
+    /**
+     * Reads only the owner of snapshot stored in given file
+     * @param file the path to snapshot file
+     * @return the owner or null if file isn't valid snapshot
+     */
+    public static String readOwner(Path file) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC) return null;
+            return input.readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves snapshot to given file, the file is replaced atomically so a crash never leaves it half written
+     * @param file the path to snapshot file
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(Path file) throws IOException {
+        save(file, false);
+    }
+
+    /**
+     * Saves snapshot to given file, the file is replaced atomically so a crash never leaves it half written
+     * @param file the path to snapshot file
+     * @param durable true if content has to be flushed to disk before the file is replaced
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(Path file, boolean durable) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path temp = Paths.get(file.toString() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            List<FileEntry> copy = new ArrayList<>(entries.values());
+            output.writeInt(MAGIC);
+            output.writeUTF(owner == null ? "" : owner);
+            output.writeInt(copy.size());
+            for (FileEntry entry : copy) {
+                output.writeUTF(entry.getName());
+                output.writeLong(entry.getSize());
+                output.writeLong(entry.getModified());
+                output.writeByte(entry.getHash().length);
+                output.write(entry.getHash());
+            }
+        }
+        if (durable) {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates new snapshot describing current content of folder including subdirectories
+     * Files which have the same size and modification time as in this snapshot are not hashed again,
+     * the remaining files are hashed in parallel
+     * @param folder the path to folder
+     * @return the snapshot of folder
+     */
+    public Snapshot reconcile(String folder) {
+        return DirectoryScanner.getDefault().scan(folder, this);
+    }
+
+    /**
+     * Puts entry in snapshot replacing previous entry of the same name
+     * @param entry the file entry
+     */
+    public void put(FileEntry entry) {
+        entries.put(entry.getName(), entry);
+    }
+
+    /**
+     * Removes entry of given name
+     * @param name the name of file
+     */
+    public void remove(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * @param name the name of file
+     * @return the entry or null if there is no such file in snapshot
+     */
+    public FileEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return sorted list of files' names
+     */
+    public List<String> names() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * @return sorted entries
+     */
+    public Collection<FileEntry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * @return owner
+     */
+    public String getOwner() {
+        return owner;
+    }
+}
@@ -0,0 +1,30 @@
+package common;
+
+/**
+ * This class represents event of status shown at the bottom of window, only the newest status is shown
+ * @author Jakub Reszka
+ */
+public class StatusEvent implements EventBus.Coalesced {
+
+    private final String text;
+
+    /**
+     * Constructs event with given params
+     * @param text the text of status
+     */
+    public StatusEvent(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @return text
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public Object key() {
+        return "status";
+    }
+}
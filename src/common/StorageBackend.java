@@ -0,0 +1,125 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interface represents storage of user's files on server, files are identified by names relative to user's directory
+ * Backend is chosen with system property filemanager.storage: "directory" keeps every file as a file (default),
+ * "segment" appends all files of user to a single log file
+ * @author Jakub Reszka
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * Opens backend chosen with system property filemanager.storage for user's directory
+     * @param path the path of user's directory
+     * @return the storage backend
+     * @throws IOException if backend can't be opened
+     */
+    static StorageBackend open(String path) throws IOException {
+        if ("segment".equals(System.getProperty("filemanager.storage", "directory")))
+            return new SegmentLogBackend(Paths.get(path + ".log"), WritePipeline.shared().getDurability());
+        return new DirectoryBackend(Paths.get(path));
+    }
+
+    /**
+     * Stores bytes between position and limit of buffer, existing file is replaced, buffer's position isn't changed
+     * Buffer is no longer needed when this method returns
+     * @return the future completed with success of operation when file is durable
+     */
+    CompletableFuture<Boolean> put(String name, ByteBuffer body);
+
+    /**
+     * Stores length bytes read from stream, existing file is replaced
+     * @return the future completed with success of operation when file is durable
+     */
+    CompletableFuture<Boolean> put(String name, InputStream content, long length);
+
+    /**
+     * Stores content of file and removes the file, by default file is streamed
+     * @return the future completed with success of operation when file is durable
+     */
+    default CompletableFuture<Boolean> putFile(String name, Path file) {
+        try (InputStream content = Files.newInputStream(file)) {
+            CompletableFuture<Boolean> stored = put(name, content, Files.size(file));
+            return stored.thenApply(success -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) { }
+                return success;
+            });
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Opens stream of stored file
+     * @throws IOException if file doesn't exist or can't be read
+     */
+    InputStream get(String name) throws IOException;
+
+    /**
+     * Reads whole stored file into pooled buffer, by default file is streamed
+     * @return the buffer ready to be read, it has to be closed after use
+     * @throws IOException if file doesn't exist or can't be read
+     */
+    default PooledBuffer read(String name) throws IOException {
+        FileEntry entry = stat(name);
+        if (entry == null) throw new java.io.FileNotFoundException(name);
+        try (InputStream content = get(name)) {
+            PooledBuffer body = BufferPool.shared().acquire((int) entry.getSize());
+            byte[] chunk = new byte[64 * 1024];
+            int count;
+            while (body.buffer().hasRemaining() && (count = content.read(chunk, 0, Math.min(chunk.length, body.buffer().remaining()))) > 0) {
+                body.buffer().put(chunk, 0, count);
+            }
+            body.buffer().flip();
+            return body;
+        }
+    }
+
+    /**
+     * Removes stored file
+     * @return true if file existed and was removed
+     */
+    boolean delete(String name);
+
+    /**
+     * @return names of all stored files
+     */
+    List<String> list();
+
+    /**
+     * @return entry of stored file without hash or null if file doesn't exist
+     */
+    FileEntry stat(String name);
+
+    /**
+     * Gets path of stored file if backend keeps files as files, so they can be cached or sent without copying
+     * @return the path or null if file isn't kept as file
+     */
+    default Path locate(String name) {
+        return null;
+    }
+
+    /**
+     * Creates snapshot of stored files, files unchanged since previous snapshot aren't hashed again
+     * @param previous the previous snapshot
+     * @return the current snapshot
+     */
+    Snapshot reconcile(Snapshot previous);
+
+    /**
+     * @return location of backend, names of files prefixed with it identify files across backends
+     */
+    String getLocation();
+}
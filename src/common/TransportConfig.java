@@ -0,0 +1,318 @@
+package common;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class represents configuration of sockets and streams connecting clients with server
+ * Streams are buffered, so fields of message are gathered in memory and sent when MessageCodec flushes complete message
+ * Values can be overridden with system properties filemanager.net.bufferSize, filemanager.net.noDelay,
+ * filemanager.net.sendBuffer, filemanager.net.receiveBuffer, filemanager.net.backlog and filemanager.net.keepAlive
+ * Socket buffers set to 0 are left to the operating system
+ * Connections are encrypted with TLS when filemanager.net.tls is set, server's key is read from PKCS12 key store
+ * filemanager.net.keyStore and certificates of servers are verified with filemanager.net.trustStore or JVM's trust store
+ * Sessions are cached for filemanager.net.tlsSessionTimeout seconds, so reconnecting clients and additional
+ * connections of striped transfers resume them instead of full handshake
+ * @author Jakub Reszka
+ */
+public class TransportConfig {
+
+    private static final TransportConfig defaults = fromSystemProperties();
+
+    private final int bufferSize;
+    private final boolean noDelay;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+    private final int backlog;
+    private final boolean keepAlive;
+    private final SSLContext tls;
+
+    /**
+     * Cipher suites in order of preference, AES-GCM is computed by AES and carry-less multiplication intrinsics of JVM
+     */
+    private static final List<String> CIPHERS = List.of(
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384");
+
+    /**
+     * Constructs transport configuration with given params
+     * @param bufferSize the size of stream buffers, 0 disables buffering
+     * @param noDelay the TCP_NODELAY option, flushed messages are sent without waiting for acknowledgements
+     * @param sendBuffer the size of socket's send buffer or 0
+     * @param receiveBuffer the size of socket's receive buffer or 0
+     * @param backlog the maximal number of connections waiting for acceptance
+     * @param keepAlive the SO_KEEPALIVE option
+     */
+    public TransportConfig(int bufferSize, boolean noDelay, int sendBuffer, int receiveBuffer, int backlog, boolean keepAlive) {
+        this(bufferSize, noDelay, sendBuffer, receiveBuffer, backlog, keepAlive, null);
+    }
+
+    /**
+     * Constructs transport configuration with given params
+     * @param bufferSize the size of stream buffers, 0 disables buffering
+     * @param noDelay the TCP_NODELAY option, flushed messages are sent without waiting for acknowledgements
+     * @param sendBuffer the size of socket's send buffer or 0
+     * @param receiveBuffer the size of socket's receive buffer or 0
+     * @param backlog the maximal number of connections waiting for acceptance
+     * @param keepAlive the SO_KEEPALIVE option
+     * @param tls the context of TLS connections or null for plain connections
+     */
+    public TransportConfig(int bufferSize, boolean noDelay, int sendBuffer, int receiveBuffer, int backlog, boolean keepAlive,
+                           SSLContext tls) {
+        if (bufferSize < 0 || sendBuffer < 0 || receiveBuffer < 0 || backlog < 1)
+            throw new IllegalArgumentException("Sizes can't be negative and backlog has to be positive");
+        this.bufferSize = bufferSize;
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.backlog = backlog;
+        this.keepAlive = keepAlive;
+        this.tls = tls;
+    }
+
+    /**
+     * Creates configuration from system properties, by default streams have 128KB buffers which hold two checksummed
+     * chunks of body, TCP_NODELAY and keepalive are on and socket buffers are left to the operating system
+     * @return the transport configuration
+     */
+    public static TransportConfig fromSystemProperties() {
+        return new TransportConfig(
+                Integer.getInteger("filemanager.net.bufferSize", 128 * 1024),
+                Boolean.parseBoolean(System.getProperty("filemanager.net.noDelay", "true")),
+                Integer.getInteger("filemanager.net.sendBuffer", 0),
+                Integer.getInteger("filemanager.net.receiveBuffer", 0),
+                Integer.getInteger("filemanager.net.backlog", 128),
+                Boolean.parseBoolean(System.getProperty("filemanager.net.keepAlive", "true")),
+                Boolean.getBoolean("filemanager.net.tls") ? createSecureContext() : null);
+    }
+
+    /**
+     * Creates TLS context from key store and trust store given with system properties
+     * Every context has its own cache of sessions
+     * @return the TLS context
+     * @throws IllegalStateException if stores can't be loaded
+     */
+    public static SSLContext createSecureContext() {
+        try {
+            KeyManager[] keys = null;
+            KeyStore keyStore = loadStore("filemanager.net.keyStore");
+            if (keyStore != null) {
+                KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                factory.init(keyStore, password("filemanager.net.keyStore"));
+                keys = factory.getKeyManagers();
+            }
+            TrustManager[] trust = null;
+            KeyStore trustStore = loadStore("filemanager.net.trustStore");
+            if (trustStore != null) {
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(trustStore);
+                trust = factory.getTrustManagers();
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys, trust, null);
+            int timeout = Integer.getInteger("filemanager.net.tlsSessionTimeout", 86400);
+            int cacheSize = Integer.getInteger("filemanager.net.tlsSessionCache", 20480);
+            context.getClientSessionContext().setSessionTimeout(timeout);
+            context.getServerSessionContext().setSessionTimeout(timeout);
+            context.getServerSessionContext().setSessionCacheSize(cacheSize);
+            return context;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("TLS couldn't be configured", e);
+        }
+    }
+
+    /**
+     * Loads PKCS12 store given with system property, its password is given with property of the same name
+     * followed by "Password"
+     * @return the store or null if property isn't set
+     */
+    private static KeyStore loadStore(String property) throws GeneralSecurityException, IOException {
+        String file = System.getProperty(property);
+        if (file == null) return null;
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream stream = Files.newInputStream(Paths.get(file))) {
+            store.load(stream, password(property));
+        }
+        return store;
+    }
+
+    private static char[] password(String property) {
+        return System.getProperty(property + "Password", "").toCharArray();
+    }
+
+    /**
+     * Sets protocols and cipher suites of TLS connection, only TLS 1.3 and 1.2 with AES-GCM are allowed
+     * unless suites are given with system property filemanager.net.tlsCiphers
+     * Clients verify that server's certificate matches its host name unless filemanager.net.tlsVerifyHost is false
+     * @param parameters the parameters of engine
+     * @param supported the cipher suites supported by engine
+     * @param client true for connecting side
+     */
+    void configure(SSLParameters parameters, String[] supported, boolean client) {
+        List<String> preferred = System.getProperty("filemanager.net.tlsCiphers") == null
+                ? CIPHERS : Arrays.asList(System.getProperty("filemanager.net.tlsCiphers").split(","));
+        List<String> available = Arrays.asList(supported);
+        List<String> ciphers = new ArrayList<>();
+        for (String cipher : preferred) {
+            if (available.contains(cipher.trim())) ciphers.add(cipher.trim());
+        }
+        parameters.setProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+        parameters.setCipherSuites(ciphers.toArray(new String[0]));
+        parameters.setUseCipherSuitesOrder(true);
+        if (client && Boolean.parseBoolean(System.getProperty("filemanager.net.tlsVerifyHost", "true")))
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    }
+
+    /**
+     * @return configuration read from system properties at startup
+     */
+    public static TransportConfig getDefault() {
+        return defaults;
+    }
+
+    /**
+     * Opens server socket bound to port, receive buffer is set before binding so it applies to window scaling
+     * If TLS is on, accepted sockets are SecureSockets which perform handshake on first read or write
+     * @param port the port number, 0 for any free port
+     * @return the server socket
+     * @throws IOException if socket can't be bound
+     */
+    public ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = tls == null ? new ServerSocket() : new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                if (isClosed()) throw new SocketException("Socket is closed");
+                Socket socket = new SecureSocket(tls, false, TransportConfig.this);
+                implAccept(socket);
+                return socket;
+            }
+        };
+        try {
+            if (receiveBuffer > 0) serverSocket.setReceiveBufferSize(receiveBuffer);
+            serverSocket.bind(new InetSocketAddress(port), backlog);
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens socket connected to host, options are set before connecting
+     * If TLS is on, the socket is SecureSocket which performs handshake on first read or write
+     * @param host the host name
+     * @param port the port number
+     * @param timeout the timeout of connecting in milliseconds, 0 for no timeout
+     * @return the connected socket
+     * @throws IOException if connection can't be established
+     */
+    public Socket openSocket(String host, int port, int timeout) throws IOException {
+        Socket socket = tls == null ? new Socket() : new SecureSocket(tls, true, this);
+        try {
+            configure(socket);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets options of socket, accepted sockets inherit receive buffer from server socket
+     * @param socket the socket
+     * @throws SocketException if an option can't be set
+     */
+    public void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(noDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBuffer > 0) socket.setSendBufferSize(sendBuffer);
+        if (receiveBuffer > 0) socket.setReceiveBufferSize(receiveBuffer);
+    }
+
+    /**
+     * Creates buffered input stream of socket
+     * @param socket the socket
+     * @return the data input stream
+     * @throws IOException if stream can't be created
+     */
+    public DataInputStream input(Socket socket) throws IOException {
+        return input(socket.getInputStream());
+    }
+
+    /**
+     * Creates buffered data input stream on top of given stream
+     * @param stream the raw stream
+     * @return the data input stream
+     */
+    public DataInputStream input(InputStream stream) {
+        return new DataInputStream(bufferSize > 0 ? new BufferedInputStream(stream, bufferSize) : stream);
+    }
+
+    /**
+     * Creates buffered output stream of socket, written data is sent when stream is flushed or its buffer is full
+     * @param socket the socket
+     * @return the data output stream
+     * @throws IOException if stream can't be created
+     */
+    public DataOutputStream output(Socket socket) throws IOException {
+        return output(socket.getOutputStream());
+    }
+
+    /**
+     * Creates buffered data output stream on top of given stream
+     * @param stream the raw stream
+     * @return the data output stream
+     */
+    public DataOutputStream output(OutputStream stream) {
+        return new DataOutputStream(bufferSize > 0 ? new BufferedOutputStream(stream, bufferSize) : stream);
+    }
+
+    /**
+     * @return size of stream buffers
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return TCP_NODELAY option
+     */
+    public boolean isNoDelay() {
+        return noDelay;
+    }
+
+    /**
+     * @return true if connections are encrypted with TLS
+     */
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    /**
+     * @return backlog of server socket
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+}
@@ -0,0 +1,32 @@
+package common;
+
+import java.util.List;
+
+/**
+ * This class represents event of changed list of logged users, only the newest list is shown
+ * @author Jakub Reszka
+ */
+public class UsersEvent implements EventBus.Coalesced {
+
+    private final List<String> users;
+
+    /**
+     * Constructs event with given params
+     * @param users the names of logged users
+     */
+    public UsersEvent(List<String> users) {
+        this.users = users;
+    }
+
+    /**
+     * @return users
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    @Override
+    public Object key() {
+        return "users";
+    }
+}
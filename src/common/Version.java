@@ -0,0 +1,65 @@
+package common;
+
+/**
+ * This class represents immutable description of earlier version of file kept in history on server
+ * @author Jakub Reszka
+ */
+public class Version {
+
+    private final long id;
+    private final String name;
+    private final long created;
+    private final long size;
+    private final byte[] hash;
+
+    /**
+     * Constructs version with given params
+     * @param id the id of version unique for user
+     * @param name the name of file relative to synchronized folder
+     * @param created the time in milliseconds when version was replaced or deleted
+     * @param size the size of version in bytes
+     * @param hash the SHA-256 hash of version's content
+     */
+    public Version(long id, String name, long created, long size, byte[] hash) {
+        this.id = id;
+        this.name = name;
+        this.created = created;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * @return id of version
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return name of file
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return time in milliseconds when version stopped being current
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return size of version in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return SHA-256 hash of version's content
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,280 @@
+package common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * This class saves files so that reader never sees partially written file
+ * File is written into temporary file next to destination, flushed to disk according to durability level
+ * and atomically renamed over destination, so existing files are replaced
+ * Files are committed in groups: all files which arrived while previous group was committed form the next group,
+ * Java has no call flushing many files at once, so flushes of the group are issued in parallel by
+ * filemanager.durability.flushThreads threads and file system joins them into fewer journal commits,
+ * files are renamed once all of them are durable and every touched directory is flushed once per group
+ * @author Jakub Reszka
+ */
+public class WritePipeline {
+
+    public static final String TEMP_SUFFIX = ".fmtmp";
+
+    private static final int FLUSH_THREADS = Integer.getInteger("filemanager.durability.flushThreads", 8);
+
+    private static final WritePipeline shared = new WritePipeline(Durability.fromSystemProperties());
+
+    private final Durability durability;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private List<Commit> group = new ArrayList<>();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private ExecutorService flushers = null;
+
+    /**
+     * Constructs pipeline with given durability and starts its committer thread if files have to be flushed
+     * @param durability the durability level
+     */
+    public WritePipeline(Durability durability) {
+        this.durability = durability;
+        if (durability != Durability.NONE) {
+            flushers = Executors.newFixedThreadPool(Math.max(1, FLUSH_THREADS), runnable -> {
+                Thread flusher = new Thread(runnable, "write-flusher");
+                flusher.setDaemon(true);
+                return flusher;
+            });
+            Thread committer = new Thread(this::runCommitter, "write-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * @return pipeline shared by whole application with durability taken from system properties
+     */
+    public static WritePipeline shared() {
+        return shared;
+    }
+
+    /**
+     * Writes bytes between position and limit of buffer into temporary file and commits it
+     * Buffer is no longer needed when this method returns, buffer's position isn't changed
+     * @param body the buffer containing file's data
+     * @param target the destination's path
+     * @return the future completed with success of operation when file is durable
+     */
+    public CompletableFuture<Boolean> write(ByteBuffer body, Path target) {
+        Path temp = null;
+        try {
+            if (target.getParent() != null) Files.createDirectories(target.getParent());
+            temp = temporaryFile(target);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer source = body.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+        } catch (IOException e) {
+            delete(temp);
+            return CompletableFuture.completedFuture(false);
+        }
+        return commit(temp, target);
+    }
+
+    /**
+     * Commits already written temporary file, it replaces destination when it's durable
+     * @param temp the path of temporary file on the same file system as destination
+     * @param target the destination's path
+     * @return the future completed with success of operation when file is durable
+     */
+    public CompletableFuture<Boolean> commit(Path temp, Path target) {
+        Commit commit = new Commit(temp, target);
+        if (durability == Durability.NONE) {
+            commit.result.complete(move(temp, target));
+            commits.incrementAndGet();
+            return commit.result;
+        }
+        lock.lock();
+        try {
+            group.add(commit);
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        return commit.result;
+    }
+
+    /**
+     * Takes all waiting files as one group, flushes them in parallel, renames them and flushes their directories once
+     */
+    private void runCommitter() {
+        while (true) {
+            List<Commit> current;
+            lock.lock();
+            try {
+                while (group.isEmpty()) {
+                    pending.awaitUninterruptibly();
+                }
+                current = group;
+                group = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+
+            List<Path> temps = new ArrayList<>();
+            for (Commit commit : current) {
+                temps.add(commit.temp);
+            }
+            boolean[] flushed = flushAll(temps);
+
+            Set<Path> directories = new LinkedHashSet<>();
+            for (int i = 0; i < current.size(); ++i) {
+                Commit commit = current.get(i);
+                commit.moved = flushed[i] && move(commit.temp, commit.target);
+                if (commit.moved && commit.target.getParent() != null) directories.add(commit.target.getParent());
+                else if (!commit.moved) delete(commit.temp);
+            }
+            if (durability == Durability.FULL) {
+                flushAll(new ArrayList<>(directories));
+            }
+            for (Commit commit : current) {
+                commit.result.complete(commit.moved);
+            }
+            commits.addAndGet(current.size());
+            groups.incrementAndGet();
+        }
+    }
+
+    /**
+     * Flushes files or directories in parallel and waits until all of them are flushed
+     * Single path is flushed by committer itself
+     * @param paths the paths to files or directories
+     * @return the success of flush of every path
+     */
+    private boolean[] flushAll(List<Path> paths) {
+        boolean[] flushed = new boolean[paths.size()];
+        if (paths.size() == 1) {
+            flushed[0] = flush(paths.get(0));
+            return flushed;
+        }
+        List<CompletableFuture<Boolean>> flushes = new ArrayList<>();
+        for (Path path : paths) {
+            flushes.add(CompletableFuture.supplyAsync(() -> flush(path), flushers));
+        }
+        for (int i = 0; i < flushes.size(); ++i) {
+            flushed[i] = flushes.get(i).join();
+        }
+        return flushed;
+    }
+
+    /**
+     * Forces file's or directory's content to disk
+     * Directories can't be opened on some platforms, then only files are flushed
+     * @param path the path to file or directory
+     * @return false if file couldn't be flushed
+     */
+    private static boolean flush(Path path) {
+        boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            return directory;
+        }
+    }
+
+    /**
+     * Atomically renames temporary file over destination, falls back to plain rename if file system can't do it atomically
+     * @return the success of operation
+     */
+    private static boolean move(Path temp, Path target) {
+        try {
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            delete(temp);
+            return false;
+        }
+    }
+
+    /**
+     * Creates name of temporary file in destination's directory, it's hidden and unique for concurrent writes
+     */
+    private static Path temporaryFile(Path target) {
+        String name = "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX;
+        return target.resolveSibling(name);
+    }
+
+    private static void delete(Path path) {
+        if (path == null) return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Checks if file is temporary file of pipeline
+     * @param name the name of file
+     * @return true if file should be skipped by scanners
+     */
+    public static boolean isTemporary(String name) {
+        return name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Removes temporary files left in directory by writes interrupted by crash
+     * @param directory the path to directory
+     */
+    public static void removeTemporaryFiles(Path directory) {
+        if (!Files.isDirectory(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(file -> isTemporary(file.getFileName().toString())).forEach(WritePipeline::delete);
+        } catch (IOException | UncheckedIOException ignored) { }
+    }
+
+    /**
+     * @return durability level
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return summary of committed files and groups they were flushed in
+     */
+    public String getStats() {
+        return "durability=" + durability + " commits=" + commits.get() + " groups=" + groups.get();
+    }
+
+    /**
+     * This class represents single file waiting for commit
+     */
+    private static class Commit {
+        private final Path temp;
+        private final Path target;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private boolean moved = false;
+
+        private Commit(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package server;
 
-import server.gui.Controller;
+import common.EventBus;
+import common.Snapshot;
+import common.TransportConfig;
+import common.UsersEvent;
+import server.models.Cluster;
+import server.models.PeerOffer;
 import server.models.User;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *  The class Server represents a server used to manage users
@@ -18,8 +35,11 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Server {
 
+    private static final long HEARTBEAT_MILLIS = Long.getLong("filemanager.heartbeat.intervalMillis", 10_000);
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("filemanager.heartbeat.timeoutMillis", 3 * HEARTBEAT_MILLIS);
+    private static final int FAN_OUT_THREADS = Integer.getInteger("filemanager.fanOut.threads", 16);
+    private static final int FAN_OUT_QUEUE = Integer.getInteger("filemanager.fanOut.queue", 256);
     private final int port; // Connection port
-    private final Controller controller;
     private final String path;
 
 
@@ -27,21 +47,121 @@ public class Server {
     private Thread clientAcceptor = null;
 
     private List<User> users = new ArrayList<>();
+    private Map<String, Path> snapshotFiles = new ConcurrentHashMap<>();
+    private Map<String, PeerOffer> peerOffers = new ConcurrentHashMap<>();
+    private Map<String, User> sessions = new ConcurrentHashMap<>();
     private ReentrantLock lock = new ReentrantLock();
+    private Thread snapshotWriter = null;
+    private Thread reaper = null;
+    private Cluster cluster = null;
+    private ExecutorService fanOut = executor("fan-out", FAN_OUT_THREADS, FAN_OUT_QUEUE, new ThreadPoolExecutor.CallerRunsPolicy());
+    private ExecutorService heartbeats = executor("heartbeat", 2, 1024, new ThreadPoolExecutor.DiscardPolicy());
 
 
     /**
      * Constructs server instance with given params
-     * @param controller the controller responsible for GUI
      * @param port the port number
      * @param path the path of server's main directory
      */
-    public Server(Controller controller, int port, String path) {
+    public Server(int port, String path) {
         this.port = port;
-        this.controller = controller;
         this.path = path;
+        this.loadSnapshots();
         this.openSocket();
+        this.cluster = Cluster.configure(port, path, this);
         this.runClientAcceptor();
+        this.runSnapshotWriter();
+        this.runReaper();
+    }
+
+    /**
+     * Finds snapshots of users' directories stored in server's main directory in the form of client_N.snapshot
+     * Only owners are read here, whole snapshot is loaded when its owner logs in
+     */
+    private void loadSnapshots() {
+        if (!Files.isDirectory(Paths.get(path))) return;
+        try (Stream<Path> files = Files.list(Paths.get(path))) {
+            List<Path> snapshots = files
+                    .filter(file -> file.getFileName().toString().endsWith(".snapshot"))
+                    .collect(Collectors.toList());
+            snapshots.parallelStream().forEach(file -> {
+                String owner = Snapshot.readOwner(file);
+                if (owner != null && !owner.isEmpty()) snapshotFiles.put(owner, file);
+            });
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Runs snapshot writer thread responsible for saving changed snapshots of users' directories every 5s
+     * This thread is daemonic
+     */
+    private void runSnapshotWriter() {
+        snapshotWriter = new Thread(() -> {
+            while(!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                lock.lock();
+                List<User> copy = new ArrayList<>(users);
+                lock.unlock();
+                for (User user : copy) {
+                    user.saveSnapshot();
+                }
+            }
+        });
+        snapshotWriter.setDaemon(true);
+        snapshotWriter.start();
+    }
+
+    /**
+     * Runs reaper thread responsible for heartbeats and closing connections of clients which disappeared without goodbye
+     * User which sent nothing for filemanager.heartbeat.intervalMillis gets heartbeat, connection which sent nothing
+     * for filemanager.heartbeat.timeoutMillis is closed and its resources are released, links of cluster are closed
+     * the same way when their node stops sending
+     * Heartbeats are written by their own threads, so connection whose client stopped reading doesn't hold reaper
+     * nor transfers of files, closing connection also ends such write and heartbeats which don't fit queue are skipped
+     * This thread is daemonic
+     */
+    private void runReaper() {
+        reaper = new Thread(() -> {
+            while(!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(Math.max(100, Math.min(HEARTBEAT_MILLIS, IDLE_TIMEOUT_MILLIS) / 2));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                lock.lock();
+                List<User> copy = new ArrayList<>(users);
+                lock.unlock();
+                for (User user : copy) {
+                    long idle = user.getIdleMillis();
+                    if (idle >= IDLE_TIMEOUT_MILLIS) user.disconnect("TIMED OUT");
+                    else if (idle >= HEARTBEAT_MILLIS) heartbeats.execute(user::sendPing);
+                }
+            }
+        }, "reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Gets snapshot file of directory which belonged to user in previous sessions
+     * @param username the name of user
+     * @return the path to snapshot file or null if user is unknown
+     */
+    public Path getSnapshotFile(String username) {
+        return snapshotFiles.get(username);
+    }
+
+    /**
+     * Registers snapshot file of user's directory
+     * @param username the name of user
+     * @param file the path to snapshot file
+     */
+    public void registerSnapshotFile(String username, Path file) {
+        snapshotFiles.put(username, file);
     }
 
     /**
@@ -49,7 +169,7 @@ public class Server {
      */
     private void openSocket() {
         try {
-            connection = new ServerSocket(port);
+            connection = TransportConfig.getDefault().openServerSocket(port);
         } catch (IOException e) {
             throw new ServerSocketException("Server socket binding failed");
         }
@@ -67,7 +187,7 @@ public class Server {
                 } catch (IOException e) {
                     throw new ServerSocketException("Client accepting failed");
                 }
-                User user = new User(controller, path, socket, this);
+                User user = new User(path, socket, this);
                 lock.lock();
                 users.add(user);
                 lock.unlock();
@@ -79,16 +199,30 @@ public class Server {
 
     /**
      * Sends broadcast message to all currently logged users containing list of available users
+     * and publishes the list for GUI, users which haven't sent greeting yet are skipped
+     * In cluster users of this node are gossiped to other nodes and users of other nodes are included in the list
      */
 
     public void sendBroadcastUsersList() {
 
-        List<String> userNamesList = new ArrayList<>();
+        lock.lock();
+        List<User> loggedUsers = new ArrayList<>();
         for(User user: users) {
+            if(user.getUsername() != null) loggedUsers.add(user);
+        }
+        lock.unlock();
+
+        List<String> userNamesList = new ArrayList<>();
+        for(User user: loggedUsers) {
             userNamesList.add(user.getUsername());
         }
+        EventBus.shared().publish(new UsersEvent(new ArrayList<>(userNamesList)));
+        if (cluster != null) {
+            cluster.setLocalUsers(userNamesList);
+            userNamesList.addAll(cluster.getRemoteUsers());
+        }
 
-        for(User user: users) {
+        for(User user: loggedUsers) {
             List<String> temp = new ArrayList<>(userNamesList);
             temp.remove(user.getUsername());
             try {
@@ -97,13 +231,119 @@ public class Server {
         }
     }
 
+    /**
+     * Removes connection which isn't identified by username, such as additional connection of striped transfer
+     * @param user the connection to be removed
+     */
+    public void removeConnection(User user) {
+        lock.lock();
+        users.remove(user);
+        lock.unlock();
+    }
+
+    /**
+     * Registers session token of user, additional connections authenticate with it
+     * @param token the token of session
+     * @param user the user
+     */
+    public void registerSession(String token, User user) {
+        sessions.put(token, user);
+    }
+
+    /**
+     * Removes session token of user
+     * @param token the token of session
+     */
+    public void removeSession(String token) {
+        sessions.remove(token);
+    }
+
+    /**
+     * Gets user which owns session
+     * @param token the token of session
+     * @return the user or null if token is unknown
+     */
+    public User getUserBySession(String token) {
+        return sessions.get(token);
+    }
+
+    /**
+     * Remembers offer of direct transfer until receiver reports its result
+     * @param token the token of offer
+     * @param offer the offer
+     */
+    public void registerPeerOffer(String token, PeerOffer offer) {
+        peerOffers.put(token, offer);
+    }
+
+    /**
+     * Removes offer of direct transfer
+     * @param token the token of offer
+     * @return the offer or null if token is unknown
+     */
+    public PeerOffer takePeerOffer(String token) {
+        return peerOffers.remove(token);
+    }
+
+    /**
+     * Creates pool of daemonic threads with bounded queue, threads end when they are idle
+     * @param name the name of threads
+     * @param threads the maximal count of threads
+     * @param queue the maximal count of waiting tasks
+     * @param rejection the policy applied to tasks which don't fit queue
+     * @return the executor
+     */
+    private static ExecutorService executor(String name, int threads, int queue, RejectedExecutionHandler rejection) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }, rejection);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Executor used to send files to many users concurrently, it has filemanager.fanOut.threads threads and queue of
+     * filemanager.fanOut.queue tasks, task which doesn't fit queue is run by thread which submitted it
+     * @return executor used to send files to many users concurrently
+     */
+    public ExecutorService getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @return the cluster this server is node of or null if clustering isn't configured
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
 
     /**
-     * Removes user given with username from list of users
      * @param username the name of user
+     * @return true if user is logged on this server or on another node of cluster
+     */
+    public boolean isReachable(String username) {
+        return getUserByName(username) != null || (cluster != null && cluster.locate(username) != null);
+    }
+
+    /**
+     * Sends file to user logged on this server or relays it to node of cluster on which user is logged
+     * @param receiver the name of receiver
+     * @param name the name of file
+     * @param body the file's bytes, buffer's position isn't changed
+     * @throws IOException if user isn't logged on any node or sending fails
      */
-    public void removeFromUsersList(String username) {
-        users.removeIf(user -> user.getUsername() == username);
+    public void sendFile(String receiver, String name, ByteBuffer body) throws IOException {
+        User user = getUserByName(receiver);
+        if (user != null) {
+            user.sendFile(name, body);
+        } else if (cluster != null) {
+            cluster.relay(receiver, name, body);
+        } else {
+            throw new IOException("User " + receiver + " isn't logged");
+        }
     }
 
     /**
@@ -112,11 +352,16 @@ public class Server {
      * @return the reference to user
      */
     public User getUserByName(String username) {
-        for(User user: users) {
-            if(user.getUsername().equals(username)) {
-                return user;
+        lock.lock();
+        try {
+            for(User user: users) {
+                if(username.equals(user.getUsername())) {
+                    return user;
+                }
             }
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 }
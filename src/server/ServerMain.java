@@ -1,6 +1,5 @@
 package server;
 
-import server.gui.Controller;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -11,6 +10,8 @@ import java.nio.file.Paths;
 
 /**
  * Class used to start server's application and JavaFX GUI
+ * Port and directory are given with system properties filemanager.server.port and filemanager.server.path,
+ * so many nodes of cluster can run on one machine
  * @author Jakub Reszka
  */
 public class ServerMain extends Application {
@@ -19,14 +20,13 @@ public class ServerMain extends Application {
     public void start(Stage primaryStage) throws Exception{
         FXMLLoader loader = new FXMLLoader(getClass().getResource("gui/layout.fxml"));
         Parent root  = loader.load();
-        Controller controller = loader.getController();
         primaryStage.setTitle("@SERVER - File Manager v1.0");
         primaryStage.setScene(new Scene(root, 482, 540));
         primaryStage.setResizable(false);
         primaryStage.show();
-        String path = Paths.get(System.getProperty("user.dir"), "Cloud").toString();
-        Server server = new Server(controller, 2115, path);
-        //Server server = new Server(controller, 2115, "E:\\FileServer\\Cloud");
+        String path = System.getProperty("filemanager.server.path", Paths.get(System.getProperty("user.dir"), "Cloud").toString());
+        Server server = new Server(Integer.getInteger("filemanager.server.port", 2115), path);
+        //Server server = new Server(2115, "E:\\FileServer\\Cloud");
 }
 
 
@@ -1,14 +1,16 @@
 package server.gui;
 
-import javafx.application.Platform;
+import common.EventBus;
+import common.StatusEvent;
+import common.UsersEvent;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
+import server.models.FilesEvent;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -29,8 +31,6 @@ public class Controller {
     @FXML
     public Label bottomLabel;
 
-    private Thread filesListRefresher = null;
-
     /**
      * Changes text of the bottom label
      * @param text the text to be set
@@ -40,21 +40,31 @@ public class Controller {
     }
 
     /**
-     * Runs after controller's constructor, on default sets ListView items as ObservableLists and starts refresher thread
+     * Runs after controller's constructor, on default sets ListView items as ObservableLists,
+     * shows files of selected user and subscribes to events of models
      */
     @FXML
     public void initialize() {
         usersListView.setItems(usersList);
-        runRefresher();
+        usersListView.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<String>() {
+            @Override
+            public void changed(ObservableValue<? extends String> observableValue, String s, String t1) {
+                if(t1 != null)
+                    filesListView.setItems(filesList.computeIfAbsent(t1, key -> FXCollections.observableArrayList()));
+            }
+        });
+        EventBus events = EventBus.shared();
+        events.subscribe(StatusEvent.class, event -> changeLabel(event.getText()));
+        events.subscribe(UsersEvent.class, event -> updateUsersList(event.getUsers()));
+        events.subscribe(FilesEvent.class, event -> updateFilesList(event.getUsername(), event.getFiles()));
     }
 
     /**
-     * Adds user to users list, and updates GUI
-     * @param username the name of user to be added
+     * Sets list of logged users, lists of files are kept for users who left
+     * @param users the names of logged users
      */
-    public void addUserToUsersList(String username) {
-        usersList.add(username);
-        filesList.put(username, FXCollections.observableArrayList());
+    public void updateUsersList(List<String> users) {
+        usersList.setAll(users);
     }
 
     /**
@@ -63,45 +73,6 @@ public class Controller {
      * @param newList the new list of files
      */
     public void updateFilesList(String username, List<String> newList) {
-        filesList.get(username).setAll(newList);
-    }
-
-    /**
-     * Removes user to users list
-     * @param username the name of user to be removed
-     */
-    public void removeUserFromUsersList(String username) {
-        usersList.remove(username);
-    }
-
-    /**
-     * Runs refresher thread responsible for refreshing list of files in GUI every 100ms
-     * This thread is daemonic
-     */
-    private void runRefresher() {
-        filesListRefresher = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(true) {
-                Platform.runLater(() ->
-
-                        usersListView.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<String>() {
-                            @Override
-                            public void changed(ObservableValue<? extends String> observableValue, String s, String t1) {
-                                if(t1 != null)
-                                    filesListView.setItems(filesList.get(t1));
-                            }
-                        })
-                    );
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ignored) { }
-                }
-            }
-        });
-        filesListRefresher.setDaemon(true);;
-        filesListRefresher.start();
+        filesList.computeIfAbsent(username, key -> FXCollections.observableArrayList()).setAll(newList);
     }
-
 }
-
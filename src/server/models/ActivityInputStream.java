@@ -0,0 +1,44 @@
+package server.models;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class remembers when bytes were read from connection the last time
+ * Activity is tracked on bytes instead of messages, so client uploading large file slowly isn't taken for idle one
+ * @author Jakub Reszka
+ */
+public class ActivityInputStream extends FilterInputStream {
+
+    private volatile long lastRead = System.nanoTime();
+
+    /**
+     * Constructs stream with given params
+     * @param stream the stream of connection
+     */
+    public ActivityInputStream(InputStream stream) {
+        super(stream);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = super.read();
+        if (read >= 0) lastRead = System.nanoTime();
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int read = super.read(bytes, offset, length);
+        if (read > 0) lastRead = System.nanoTime();
+        return read;
+    }
+
+    /**
+     * @return the count of milliseconds since bytes were read the last time
+     */
+    public long getIdleMillis() {
+        return (System.nanoTime() - lastRead) / 1_000_000;
+    }
+}
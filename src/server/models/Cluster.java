@@ -0,0 +1,564 @@
+package server.models;
+
+import common.EventBus;
+import common.FileEntry;
+import common.Integrity;
+import common.MessageCodec;
+import common.PooledBuffer;
+import common.StatusEvent;
+import common.StorageBackend;
+import common.TransportConfig;
+import server.Server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.Socket;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * This class connects server with other nodes of cluster which share users between them
+ * Cluster is configured with system property filemanager.cluster.nodes containing addresses of all nodes
+ * in the form of host:port separated by commas and filemanager.cluster.self containing address of this node,
+ * every node has to be given the same list
+ * Users are placed on nodes with consistent hashing of usernames, user greeting another node is redirected to its node,
+ * so directory of every user is kept by one node, user of failed node is served by the next alive node on ring
+ * which creates its directory from replica, changes made there aren't moved back when failed node returns
+ * Nodes send messages to each other over links opened to clients' port of other node, every node writes only
+ * to links it opened, so each direction has its own connection
+ * Link is accepted only from configured node which proves knowledge of secret given with filemanager.cluster.secret:
+ * accepting node sends random challenge and opening node answers with HMAC-SHA256 of challenge and its address,
+ * link which isn't used for filemanager.cluster.failMillis / 2 gets state of cluster, so links are never idle
+ * and are closed by reaper of server when their node stops
+ * Logged users of every node are gossiped: every filemanager.cluster.gossipMillis node sends state of all nodes it knows
+ * to filemanager.cluster.fanout random nodes and it sends its own state to all nodes when its users change,
+ * state of node not refreshed for filemanager.cluster.failMillis is dropped, so users of failed node disappear
+ * Files sent to users logged on another node are relayed over link to that node
+ * Directory of every user is replicated to filemanager.replication.factor nodes following its node on ring,
+ * see ReplicationLog, replicas are kept in directory replicas of server's main directory
+ * @author Jakub Reszka
+ */
+public class Cluster {
+
+    private static final long GOSSIP_MILLIS = Long.getLong("filemanager.cluster.gossipMillis", 1000);
+    private static final long FAIL_MILLIS = Long.getLong("filemanager.cluster.failMillis", 5 * GOSSIP_MILLIS);
+    private static final int FANOUT = Integer.getInteger("filemanager.cluster.fanout", 2);
+    private static final int VIRTUAL_NODES = Integer.getInteger("filemanager.cluster.virtualNodes", 128);
+    private static final int REPLICATION_FACTOR = Integer.getInteger("filemanager.replication.factor", 1);
+    private static final int CHALLENGE_BYTES = 32;
+
+    private final EventBus events = EventBus.shared();
+    private final String self;
+    private final Server server;
+    private final HashRing ring;
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final Path replicasRoot;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService gossip = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long started = System.nanoTime();
+    private Member local;
+
+    /**
+     * State of node as known by this node
+     */
+    private static class Member {
+        final String node;
+        final long heartbeat;
+        final List<String> users;
+        final long seen;
+
+        Member(String node, long heartbeat, List<String> users, long seen) {
+            this.node = node;
+            this.heartbeat = heartbeat;
+            this.users = users;
+            this.seen = seen;
+        }
+
+        boolean isAlive(long now) {
+            return now - seen < TimeUnit.MILLISECONDS.toNanos(FAIL_MILLIS);
+        }
+    }
+
+    /**
+     * Interface represents writing of message to link
+     */
+    interface LinkWriter {
+        void write(MessageCodec codec) throws IOException;
+    }
+
+    /**
+     * Connection opened by this node to another node, it's opened again on the next message after it fails
+     */
+    private class Link {
+        final String node;
+        final ReentrantLock lock = new ReentrantLock();
+        Socket socket = null;
+        MessageCodec codec = null;
+        volatile long lastSent = 0;
+
+        Link(String node) {
+            this.node = node;
+        }
+
+        void send(LinkWriter writer) throws IOException {
+            lock.lock();
+            try {
+                if (codec == null) connect();
+                writer.write(codec);
+                lastSent = System.nanoTime();
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void connect() throws IOException {
+            int separator = node.lastIndexOf(':');
+            TransportConfig config = TransportConfig.getDefault();
+            socket = config.openSocket(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)),
+                    (int) GOSSIP_MILLIS);
+            codec = new MessageCodec(config.input(socket), config.output(socket));
+            // node which doesn't answer handshake mustn't hold sending thread
+            socket.setSoTimeout((int) Math.max(FAIL_MILLIS, 1000));
+            codec.writeNodeHello(self);
+            if (codec.readHeader() != 44) throw new IOException("Node " + node + " refused link");
+            codec.writeNodeProof(proof(codec.readBytes(), self));
+            socket.setSoTimeout(0);
+        }
+
+        private void disconnect() {
+            codec = null;
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) { }
+            socket = null;
+        }
+    }
+
+    /**
+     * Constructs cluster with given params and starts gossiping
+     * @param self the address of this node in the form of host:port
+     * @param nodes the addresses of all nodes
+     * @param secret the secret shared by all nodes
+     * @param path the path of server's main directory
+     * @param server the server of this node
+     */
+    public Cluster(String self, List<String> nodes, String secret, String path, Server server) {
+        if (!nodes.contains(self)) throw new IllegalArgumentException("Node " + self + " isn't one of nodes " + nodes);
+        if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("Cluster needs secret shared by nodes");
+        this.self = self;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.server = server;
+        this.replicasRoot = Paths.get(path, "replicas");
+        this.ring = new HashRing(nodes, VIRTUAL_NODES);
+        // heartbeats start from time of start, so state of restarted node is newer than state gossiped before its failure
+        this.local = new Member(self, System.currentTimeMillis() << 20, List.of(), 0);
+        for (String node : nodes) {
+            if (!node.equals(self)) links.put(node, new Link(node));
+        }
+        gossip.scheduleWithFixedDelay(this::gossipRound, GOSSIP_MILLIS, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates cluster from system properties filemanager.cluster.nodes, filemanager.cluster.self
+     * and filemanager.cluster.secret
+     * @param port the port of this node, used when own address isn't given
+     * @param path the path of server's main directory
+     * @param server the server of this node
+     * @return the cluster or null if clustering isn't configured
+     */
+    public static Cluster configure(int port, String path, Server server) {
+        String nodes = System.getProperty("filemanager.cluster.nodes");
+        if (nodes == null || nodes.isBlank()) return null;
+        List<String> addresses = Arrays.stream(nodes.split(",")).map(String::trim).filter(node -> !node.isEmpty()).toList();
+        return new Cluster(System.getProperty("filemanager.cluster.self", "localhost:" + port), addresses,
+                System.getProperty("filemanager.cluster.secret"), path, server);
+    }
+
+    /**
+     * Authenticates link opened by another node, link is accepted only from configured node answering challenge
+     * with HMAC made with secret of cluster
+     * @param node the address of node given in its hello
+     * @param codec the codec of link
+     * @throws IOException if node is unknown, proof is wrong or an error occurs when reading or writing
+     */
+    public void accept(String node, MessageCodec codec) throws IOException {
+        if (!links.containsKey(node)) throw new IOException("Link from unknown node " + node);
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        codec.writeNodeChallenge(challenge);
+        if (codec.readHeader() != 45 || !MessageDigest.isEqual(codec.readBytes(), proof(challenge, node))) {
+            throw new IOException("Node " + node + " failed authentication");
+        }
+    }
+
+    /**
+     * Computes HMAC-SHA256 of challenge followed by address of node opening link
+     */
+    private byte[] proof(byte[] challenge, String node) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(challenge);
+            return mac.doFinal(node.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HMAC unavailable", e);
+        }
+    }
+
+    /**
+     * @return the address of this node
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Gets node which serves user, it's the first node following username on ring which isn't known to be failed
+     * Node not heard of within filemanager.cluster.failMillis since start of this node counts as failed
+     * @param username the name of user
+     * @return the address of node in the form of host:port
+     */
+    public String homeOf(String username) {
+        long now = System.nanoTime();
+        for (String node : ring.owners(username, links.size() + 1)) {
+            if (node.equals(self) || isAlive(node, now)) return node;
+        }
+        return self;
+    }
+
+    private boolean isAlive(String node, long now) {
+        Member member = members.get(node);
+        if (member != null) return member.isAlive(now);
+        return now - started < TimeUnit.MILLISECONDS.toNanos(FAIL_MILLIS);
+    }
+
+    /**
+     * Gets replica of directory of user whose node failed, so this node can serve the user
+     * @param username the name of user
+     * @return the replica or null if this node is owner of user's directory
+     */
+    Replica takeOver(String username) {
+        return ring.owner(username).equals(self) ? null : replica(username);
+    }
+
+    /**
+     * Updates users logged on this node, other nodes are told about the change at once
+     * @param users the names of users
+     */
+    public void setLocalUsers(List<String> users) {
+        Member changed;
+        synchronized (this) {
+            if (users.equals(local.users)) return;
+            local = new Member(self, local.heartbeat + 1, List.copyOf(users), 0);
+            changed = local;
+        }
+        gossip.execute(() -> {
+            for (Link link : links.values()) {
+                send(link, List.of(changed));
+            }
+        });
+    }
+
+    /**
+     * @return the names of users logged on other alive nodes
+     */
+    public List<String> getRemoteUsers() {
+        long now = System.nanoTime();
+        List<String> users = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.isAlive(now)) users.addAll(member.users);
+        }
+        return users;
+    }
+
+    /**
+     * Finds node on which user is logged
+     * @param username the name of user
+     * @return the address of node or null if user isn't logged on any other alive node
+     */
+    public String locate(String username) {
+        long now = System.nanoTime();
+        for (Member member : members.values()) {
+            if (member.isAlive(now) && member.users.contains(username)) return member.node;
+        }
+        return null;
+    }
+
+    /**
+     * Relays file to user logged on another node
+     * @param receiver the name of receiver
+     * @param name the name of file
+     * @param body the file's bytes, buffer's position isn't changed
+     * @throws IOException if receiver isn't logged on any other node or link fails
+     */
+    public void relay(String receiver, String name, ByteBuffer body) throws IOException {
+        String node = locate(receiver);
+        if (node == null) throw new IOException("User " + receiver + " isn't logged on any node");
+        send(node, codec -> codec.writeRelay(receiver, name, body));
+    }
+
+    /**
+     * Writes message to link opened to node
+     * @param node the address of node
+     * @param writer the writer of message
+     * @throws IOException if node is unknown or link fails
+     */
+    void send(String node, LinkWriter writer) throws IOException {
+        Link link = links.get(node);
+        if (link == null) throw new IOException("Unknown node " + node);
+        link.send(writer);
+    }
+
+    /**
+     * Starts replication of user's directory kept by this node
+     * @param username the name of user
+     * @param storage the storage of user's files
+     * @param monitor the monitor held when changes are logged
+     * @param entries the supplier of current files of user
+     * @return the log of replication or null if user has no followers
+     */
+    public ReplicationLog replicate(String username, StorageBackend storage, Object monitor,
+                                    Supplier<Collection<FileEntry>> entries) {
+        List<String> followers = new ArrayList<>(ring.owners(username, 1 + REPLICATION_FACTOR));
+        followers.remove(self);
+        if (followers.isEmpty() || REPLICATION_FACTOR <= 0) return null;
+        return new ReplicationLog(username, this, followers, storage, monitor, entries);
+    }
+
+    /**
+     * Reads message sent by another node over link
+     * @param node the address of sending node
+     * @param codec the codec of link
+     * @throws IOException if an error occurs when reading or message is unknown
+     */
+    public void readMessage(String node, MessageCodec codec) throws IOException {
+        byte header = codec.readHeader();
+        if (header == 31) {
+            readNodeUsers(codec);
+        } else if (header == 32) {
+            readRelay(codec);
+        } else if (header == 33) {
+            readReplicaPut(node, codec);
+        } else if (header == 34) {
+            readReplicaRemove(node, codec);
+        } else if (header == 35) {
+            readReplicaManifest(node, codec);
+        } else if (header == 36) {
+            readReplicaAck(node, codec);
+        } else if (header == 37) {
+            readReplicaSend(node, codec);
+        } else {
+            throw new IOException("Unknown message of cluster: " + header);
+        }
+    }
+
+    /**
+     * Merges state of node, users of this node are told about change of cluster-wide list of users
+     */
+    private void readNodeUsers(MessageCodec codec) throws IOException {
+        String node = codec.readName();
+        long heartbeat = codec.readLong();
+        List<String> users = codec.readNames(new ArrayList<>());
+        if (node.equals(self) || !links.containsKey(node)) return;
+
+        long now = System.nanoTime();
+        Member known = members.get(node);
+        if (known != null && known.heartbeat >= heartbeat) return;
+        members.put(node, new Member(node, heartbeat, users, now));
+        if (known == null || !known.isAlive(now) || !known.users.equals(users)) server.sendBroadcastUsersList();
+    }
+
+    /**
+     * Reads relayed file and sends it to receiver if it's still logged on this node
+     */
+    private void readRelay(MessageCodec codec) throws IOException {
+        String receiver = codec.readName();
+        int length = codec.readInt();
+        String name = codec.readName();
+        Integrity integrity = new Integrity();
+        try (PooledBuffer body = codec.readBody(length, integrity)) {
+            User user = server.getUserByName(receiver);
+            if (user != null && integrity.isIntact()) {
+                user.sendFile(name, body.buffer());
+            } else {
+                events.publish(new StatusEvent("ERROR: Relayed " + name + " not delivered to " + receiver));
+            }
+        }
+    }
+
+    private Replica replica(String owner) {
+        return replicas.computeIfAbsent(owner, key -> new Replica(replicasRoot, key));
+    }
+
+    /**
+     * Reads replicated file, change out of order makes replica ask for manifest
+     */
+    private void readReplicaPut(String node, MessageCodec codec) throws IOException {
+        String owner = codec.readName();
+        long seq = codec.readLong();
+        int length = codec.readInt();
+        String name = codec.readName();
+        Integrity integrity = new Integrity();
+        Replica replica = replica(owner);
+        try (PooledBuffer body = codec.readBody(length, integrity)) {
+            if (!integrity.isIntact() || !replica.put(seq, name, body.buffer())) {
+                sendReplicaAck(node, owner, -1, List.of());
+                return;
+            }
+        }
+        acknowledge(node, owner, replica);
+    }
+
+    private void readReplicaRemove(String node, MessageCodec codec) throws IOException {
+        String owner = codec.readName();
+        long seq = codec.readLong();
+        String name = codec.readName();
+        Replica replica = replica(owner);
+        if (replica.remove(seq, name)) acknowledge(node, owner, replica);
+        else sendReplicaAck(node, owner, -1, List.of());
+    }
+
+    /**
+     * Reads manifest of user's files and answers with files missed by replica
+     */
+    private void readReplicaManifest(String node, MessageCodec codec) throws IOException {
+        String owner = codec.readName();
+        long seq = codec.readLong();
+        List<FileEntry> entries = codec.readHashedEntries(new ArrayList<>());
+        List<String> wanted = replica(owner).applyManifest(seq, entries);
+        sendReplicaAck(node, owner, seq, wanted);
+    }
+
+    /**
+     * Reads acknowledgement of follower and passes it to replication of user if user is still logged
+     */
+    private void readReplicaAck(String node, MessageCodec codec) throws IOException {
+        String owner = codec.readName();
+        long seq = codec.readLong();
+        List<String> wanted = codec.readNames(new ArrayList<>());
+        User user = server.getUserByName(owner);
+        ReplicationLog replication = user == null ? null : user.getReplication();
+        if (replication != null) replication.acknowledge(node, seq, wanted);
+    }
+
+    /**
+     * Reads request of sending file from replica to user logged on this node, missing file makes replica ask for manifest
+     */
+    private void readReplicaSend(String node, MessageCodec codec) throws IOException {
+        String owner = codec.readName();
+        String name = codec.readName();
+        String receiver = codec.readName();
+        File file = replica(owner).locate(name);
+        User user = server.getUserByName(receiver);
+        if (file != null && user != null) {
+            user.sendFile(file);
+            events.publish(new StatusEvent("SENT FROM REPLICA: " + name + " of " + owner + " to " + receiver));
+        } else {
+            events.publish(new StatusEvent("ERROR: Replicated " + name + " not delivered to " + receiver));
+            if (file == null) sendReplicaAck(node, owner, -1, List.of());
+        }
+    }
+
+    /**
+     * Acknowledges changes applied by replica, changes applied before acknowledgement is sent are acknowledged together
+     * Acknowledgements are sent by gossiping thread, so readers of links never wait for other links
+     */
+    private void acknowledge(String node, String owner, Replica replica) {
+        if (!replica.scheduleAck()) return;
+        gossip.execute(() -> {
+            try {
+                long seq = replica.takeAck();
+                send(node, codec -> codec.writeReplicaAck(owner, seq, List.of()));
+            } catch (IOException ignored) {
+                // owner's node finds broken link and sends manifest
+            }
+        });
+    }
+
+    private void sendReplicaAck(String node, String owner, long seq, List<String> wanted) {
+        gossip.execute(() -> {
+            try {
+                send(node, codec -> codec.writeReplicaAck(owner, seq, wanted));
+            } catch (IOException ignored) { }
+        });
+    }
+
+    /**
+     * Sends state of all alive nodes to random nodes and to nodes whose links are idle
+     * and drops nodes which weren't heard of for too long
+     */
+    private void gossipRound() {
+        long now = System.nanoTime();
+        List<Member> alive = new ArrayList<>();
+        synchronized (this) {
+            local = new Member(self, local.heartbeat + 1, local.users, 0);
+            alive.add(local);
+        }
+        boolean failed = false;
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            if (member.isAlive(now)) {
+                alive.add(member);
+            } else if (!member.users.isEmpty()) {
+                // users of failed node are removed once, its state comes back with the next heartbeat
+                members.put(entry.getKey(), new Member(member.node, member.heartbeat, List.of(), member.seen));
+                failed = true;
+            }
+        }
+        if (failed) server.sendBroadcastUsersList();
+        for (Replica replica : replicas.values()) {
+            replica.save();
+        }
+
+        List<Link> targets = new ArrayList<>(links.values());
+        Collections.shuffle(targets, ThreadLocalRandom.current());
+        for (int i = 0; i < targets.size(); ++i) {
+            Link link = targets.get(i);
+            boolean idle = now - link.lastSent >= TimeUnit.MILLISECONDS.toNanos(FAIL_MILLIS / 2);
+            if (i < FANOUT || idle) send(link, alive);
+        }
+    }
+
+    private void send(Link link, List<Member> states) {
+        try {
+            link.send(codec -> {
+                for (Member member : states) {
+                    codec.writeNodeUsers(member.node, member.heartbeat, member.users);
+                }
+            });
+        } catch (IOException ignored) {
+            // node is down, the next round tries again
+        }
+    }
+}
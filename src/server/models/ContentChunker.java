@@ -0,0 +1,80 @@
+package server.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * This class splits content into chunks whose boundaries depend on content, not on offsets, so inserting bytes
+ * into file changes only chunks around the insertion and the remaining chunks are deduplicated
+ * Boundaries are found with gear rolling hash whose highest bits depend on the last 64 bytes, chunks have from MIN_SIZE to MAX_SIZE bytes and AVERAGE_SIZE on average
+ * @author Jakub Reszka
+ */
+public abstract class ContentChunker {
+
+    public static final int MIN_SIZE = 2 * 1024;
+    public static final int AVERAGE_SIZE = 8 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private static final long MASK = (long) (AVERAGE_SIZE - 1) << (64 - Integer.numberOfTrailingZeros(AVERAGE_SIZE));
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x464D4743L);
+        for (int i = 0; i < GEAR.length; ++i) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Receiver of chunks
+     */
+    public interface Sink {
+        /**
+         * @param bytes the array holding chunk, it's reused for the next chunk
+         * @param length the length of chunk
+         */
+        void accept(byte[] bytes, int length) throws IOException;
+    }
+
+    /**
+     * Reads stream to its end and passes its chunks to sink
+     * @param stream the content
+     * @param sink the receiver of chunks
+     * @return the count of read bytes
+     * @throws IOException if an error occurs when reading or sink fails
+     */
+    public static long split(InputStream stream, Sink sink) throws IOException {
+        byte[] window = new byte[2 * MAX_SIZE];
+        int filled = 0;
+        long total = 0;
+        boolean ended = false;
+        while (true) {
+            while (!ended && filled < window.length) {
+                int count = stream.read(window, filled, window.length - filled);
+                if (count < 0) ended = true;
+                else filled += count;
+            }
+            if (filled == 0) return total;
+            int length = boundary(window, filled);
+            sink.accept(window, length);
+            total += length;
+            System.arraycopy(window, length, window, 0, filled - length);
+            filled -= length;
+        }
+    }
+
+    /**
+     * Finds end of the first chunk in window
+     */
+    private static int boundary(byte[] window, int filled) {
+        if (filled <= MIN_SIZE) return filled;
+        int limit = Math.min(filled, MAX_SIZE);
+        long hash = 0;
+        for (int i = MIN_SIZE; i < limit; ++i) {
+            hash = (hash << 1) + GEAR[window[i] & 0xFF];
+            if ((hash & MASK) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,149 @@
+package server.models;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * This class runs disk operations of all users on pool of writer threads, so reader threads never wait for disk
+ * Reader hands operation over through bounded queue and waits only if the queue is full, which limits memory held by
+ * received bodies; operations on the same path run in order of submission, operations on different paths in parallel
+ * Returned futures are completed by callback threads, so work chained on them, such as answers sent to users, never runs
+ * on threads of WritePipeline and never holds up flushes of other users
+ * The size of pool and queue can be set with system properties filemanager.disk.writers and filemanager.disk.queue
+ * @author Jakub Reszka
+ */
+public class DiskExecutor {
+
+    private static final DiskExecutor shared = new DiskExecutor(
+            Integer.getInteger("filemanager.disk.writers", 4), Integer.getInteger("filemanager.disk.queue", 256));
+
+    private final ExecutorService writers;
+    private final ExecutorService callbacks;
+    private final Semaphore slots;
+    private final int capacity;
+    private final Map<String, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * Constructs executor with given params
+     * @param writers the number of writer threads
+     * @param capacity the maximal number of operations waiting for writers
+     */
+    public DiskExecutor(int writers, int capacity) {
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity);
+        this.writers = Executors.newFixedThreadPool(writers, runnable -> {
+            Thread thread = new Thread(runnable, "disk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.callbacks = Executors.newFixedThreadPool(writers, runnable -> {
+            Thread thread = new Thread(runnable, "disk-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return executor shared by all users
+     */
+    public static DiskExecutor shared() {
+        return shared;
+    }
+
+    /**
+     * Submits operation on path
+     * @param key the path operation works on
+     * @param operation the operation
+     * @return the future completed with result of operation
+     * @throws IOException if waiting for free slot was interrupted
+     */
+    public <T> CompletableFuture<T> submit(String key, Supplier<T> operation) throws IOException {
+        return submitAsync(key, () -> CompletableFuture.completedFuture(operation.get()));
+    }
+
+    /**
+     * Submits operation on path which finishes asynchronously, such as write waiting for flush
+     * The slot is freed when operation returns, next operation on the same path starts when returned future completes
+     * Future returned by operation may be completed by thread of WritePipeline, the result is completed by callback thread
+     * @param key the path operation works on
+     * @param operation the operation
+     * @return the future completed with result of future returned by operation
+     * @throws IOException if waiting for free slot was interrupted
+     */
+    public <T> CompletableFuture<T> submitAsync(String key, Supplier<CompletableFuture<T>> operation) throws IOException {
+        acquireSlot();
+        submitted.incrementAndGet();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<?> previous = tails.put(key, result);
+
+        Runnable task = () -> {
+            CompletableFuture<T> running;
+            try {
+                running = operation.get();
+            } catch (RuntimeException e) {
+                running = CompletableFuture.failedFuture(e);
+            } finally {
+                slots.release();
+            }
+            running.whenCompleteAsync((value, error) -> {
+                tails.remove(key, result);
+                completed.incrementAndGet();
+                if (error != null) result.completeExceptionally(error);
+                else result.complete(value);
+            }, callbacks);
+        };
+        if (previous == null) writers.execute(task);
+        else previous.whenComplete((value, error) -> writers.execute(task));
+        return result;
+    }
+
+    /**
+     * Waits until one of slots is free, waits are counted as stalls
+     * @throws IOException if waiting was interrupted
+     */
+    private void acquireSlot() throws IOException {
+        if (slots.tryAcquire()) return;
+        stalls.incrementAndGet();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for disk", e);
+        }
+    }
+
+    /**
+     * @return count of operations handed over but not started yet or still running
+     */
+    public int getQueueDepth() {
+        return capacity - slots.availablePermits();
+    }
+
+    /**
+     * @return count of operations which haven't completed yet, including those waiting for flush
+     */
+    public long getPending() {
+        return submitted.get() - completed.get();
+    }
+
+    /**
+     * @return count of times reader had to wait because queue was full
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * @return summary of queue depth, pending operations and stalls
+     */
+    public String getStats() {
+        return "depth=" + getQueueDepth() + "/" + capacity + " pending=" + getPending()
+                + " completed=" + completed.get() + " stalls=" + stalls.get();
+    }
+}
@@ -0,0 +1,209 @@
+package server.models;
+
+import common.FileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents server's cache of recently sent files, evicting the least recently used files over its size
+ * Entries are keyed by file's path and remain valid as long as file's modification time and size haven't changed
+ * Concurrent misses of the same file are loaded from disk once
+ * Size and storage can be set with system properties filemanager.cache.bytes and filemanager.cache.offHeap
+ * @author Jakub Reszka
+ */
+public class FileCache {
+
+    private static FileCache sharedCache = null;
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final boolean offHeap;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructs cache with given params
+     * @param capacity the maximal count of cached bytes
+     * @param offHeap true if files should be kept in direct buffers
+     */
+    public FileCache(long capacity, boolean offHeap) {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(Integer.MAX_VALUE, capacity / 4);
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Gets cache shared by all users, 256 MB on heap by default
+     * @return the shared cache
+     */
+    public static synchronized FileCache shared() {
+        if (sharedCache == null) {
+            long capacity = Long.getLong("filemanager.cache.bytes", 256L * 1024 * 1024);
+            sharedCache = new FileCache(capacity, Boolean.getBoolean("filemanager.cache.offHeap"));
+        }
+        return sharedCache;
+    }
+
+    /**
+     * Checks if file is small enough to be cached
+     * @param file the file handle
+     * @return true if file can be cached
+     */
+    public boolean accepts(File file) {
+        return file.length() <= maxEntrySize;
+    }
+
+    /**
+     * Gets content of file, reading it from disk only if it isn't cached or has changed since it was cached
+     * The returned buffer is read-only and shared, so its position has to be left untouched
+     * @param file the file handle
+     * @return the buffer containing file's data
+     * @throws IOException if an I/O error occurs
+     */
+    public ByteBuffer get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long modified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified && entry.content.capacity() == length) {
+                hits.incrementAndGet();
+                return entry.content.duplicate();
+            }
+        }
+
+        CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            hits.incrementAndGet();
+            return await(running).duplicate();
+        }
+
+        misses.incrementAndGet();
+        try {
+            ByteBuffer content = read(file);
+            put(key, new Entry(modified, content));
+            load.complete(content);
+            return content.duplicate();
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    /**
+     * Removes file from cache
+     * @param file the file handle
+     */
+    public synchronized void invalidate(File file) {
+        Entry entry = entries.remove(file.getAbsolutePath());
+        if (entry != null) size -= entry.content.capacity();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) size -= old.content.capacity();
+        size += entry.content.capacity();
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == entry) continue;
+            size -= eldest.content.capacity();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private ByteBuffer read(File file) throws IOException {
+        try {
+            FileManager.waitTillFileIsReady(file);
+        } catch (InterruptedException ignored) {
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int length = (int) channel.size();
+            ByteBuffer content = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            while (content.hasRemaining() && channel.read(content) >= 0) { }
+            content.flip();
+            return content.asReadOnlyBuffer();
+        }
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> running) throws IOException {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Loading file to cache failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for cached file", e);
+        }
+    }
+
+    /**
+     * @return count of requests served without reading from disk
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return count of requests which read file from disk
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return count of files evicted from cache
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return count of cached bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return summary of cache's metrics
+     */
+    public String getStats() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions() + " bytes=" + getSize();
+    }
+
+    /**
+     * Cached content of file with its modification time at the moment of reading
+     */
+    private static class Entry {
+        private final long modified;
+        private final ByteBuffer content;
+
+        Entry(long modified, ByteBuffer content) {
+            this.modified = modified;
+            this.content = content;
+        }
+    }
+}
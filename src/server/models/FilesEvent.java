@@ -0,0 +1,46 @@
+package server.models;
+
+import common.EventBus;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * This class represents event of changed files of user, list of files is taken when event is delivered,
+ * so it's copied once per frame regardless of how many files were saved meanwhile
+ * @author Jakub Reszka
+ */
+public class FilesEvent implements EventBus.Coalesced {
+
+    private final String username;
+    private final Supplier<List<String>> files;
+
+    /**
+     * Constructs event with given params
+     * @param username the name of user
+     * @param files the supplier of copy of user's list of files
+     */
+    public FilesEvent(String username, Supplier<List<String>> files) {
+        this.username = username;
+        this.files = files;
+    }
+
+    /**
+     * @return username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the current list of user's files
+     */
+    public List<String> getFiles() {
+        return files.get();
+    }
+
+    @Override
+    public Object key() {
+        return username;
+    }
+}
@@ -0,0 +1,87 @@
+package server.models;
+
+import common.FileEntry;
+import common.ListingQuery;
+import common.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class represents files of user's directory sorted and filtered by query, pages are read from it by position
+ * Listing is built from snapshot when it's requested, and kept until files change or another query is requested,
+ * so reading following pages costs only copying of their entries
+ * @author Jakub Reszka
+ */
+public class FilesListing {
+
+    private final ListingQuery query;
+    private final int generation;
+    private final FileEntry[] entries;
+
+    private FilesListing(ListingQuery query, int generation, FileEntry[] entries) {
+        this.query = query;
+        this.generation = generation;
+        this.entries = entries;
+    }
+
+    /**
+     * Builds listing of files in snapshot, snapshot is already sorted by name, so only other orders are sorted
+     * @param query the order and filter
+     * @param generation the generation of user's files
+     * @param snapshot the snapshot of user's directory
+     * @return the listing
+     */
+    public static FilesListing build(ListingQuery query, int generation, Snapshot snapshot) {
+        List<FileEntry> matching = new ArrayList<>();
+        for (FileEntry entry : snapshot.entries()) {
+            if (query.matches(entry)) matching.add(entry);
+        }
+        FileEntry[] entries = matching.toArray(new FileEntry[0]);
+        if (query.getSort() != ListingQuery.BY_NAME) {
+            Arrays.parallelSort(entries, query.comparator());
+        } else if (query.isDescending()) {
+            for (int i = 0, j = entries.length - 1; i < j; ++i, --j) {
+                FileEntry swapped = entries[i];
+                entries[i] = entries[j];
+                entries[j] = swapped;
+            }
+        }
+        return new FilesListing(query, generation, entries);
+    }
+
+    /**
+     * @param query the order and filter
+     * @param generation the current generation of user's files
+     * @return true if listing can answer query
+     */
+    public boolean answers(ListingQuery query, int generation) {
+        return this.generation == generation && this.query.equals(query);
+    }
+
+    /**
+     * @param offset the position of the first file
+     * @param limit the maximal count of files
+     * @return the files of page
+     */
+    public List<FileEntry> page(int offset, int limit) {
+        int from = Math.min(Math.max(offset, 0), entries.length);
+        int to = (int) Math.min((long) from + Math.max(limit, 0), entries.length);
+        return Arrays.asList(entries).subList(from, to);
+    }
+
+    /**
+     * @return the count of listed files
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+}
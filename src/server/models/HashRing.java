@@ -0,0 +1,92 @@
+package server.models;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class places keys on nodes with consistent hashing
+ * Every node has many points on ring, key belongs to the node of the first point following key's hash,
+ * so adding or removing one node moves only keys of its neighbourhood and load is spread evenly
+ * Points are kept in sorted array, so lookup is binary search without allocation
+ * Hash doesn't depend on JVM, so all nodes configured with the same nodes agree on placement
+ * @author Jakub Reszka
+ */
+public class HashRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * Constructs ring with given params
+     * @param nodes the addresses of nodes
+     * @param virtualNodes the count of points of every node
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) throw new IllegalArgumentException("Ring needs nodes");
+        List<String> sorted = nodes.stream().distinct().sorted().toList();
+        long[] keys = new long[sorted.size() * virtualNodes];
+        int i = 0;
+        for (int n = 0; n < sorted.size(); ++n) {
+            for (int v = 0; v < virtualNodes; ++v) {
+                // node's index in the low bits keeps points unique and their order stable when hashes collide
+                keys[i++] = (hash(sorted.get(n) + "#" + v) & ~0xFFFFL) | n;
+            }
+        }
+        Arrays.sort(keys);
+        this.points = keys;
+        this.owners = new String[keys.length];
+        for (int p = 0; p < keys.length; ++p) {
+            owners[p] = sorted.get((int) (keys[p] & 0xFFFF));
+        }
+    }
+
+    /**
+     * Gets node which owns given key
+     * @param key the key, for example username
+     * @return the address of node
+     */
+    public String owner(String key) {
+        return owners[start(key) % points.length];
+    }
+
+    /**
+     * Gets distinct nodes following key on ring, the first one is the owner, the next ones keep replicas
+     * @param key the key, for example username
+     * @param count the maximal count of nodes
+     * @return the addresses of nodes in order of ring
+     */
+    public List<String> owners(String key, int count) {
+        List<String> found = new ArrayList<>(count);
+        int start = start(key);
+        for (int i = 0; i < points.length && found.size() < count; ++i) {
+            String owner = owners[(start + i) % points.length];
+            if (!found.contains(owner)) found.add(owner);
+        }
+        return found;
+    }
+
+    private int start(String key) {
+        int found = Arrays.binarySearch(points, hash(key));
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * 64-bit FNV-1a of UTF-8 bytes followed by finalizer of MurmurHash3, which spreads similar keys over whole ring
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
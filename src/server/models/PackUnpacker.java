@@ -0,0 +1,87 @@
+package server.models;
+
+import common.FileEntry;
+import common.Integrity;
+import common.MessageCodec;
+import common.PackWriter;
+import common.PooledBuffer;
+import common.StorageBackend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class unpacks archives written by PackWriter
+ * Entries are read by calling thread into pooled off-heap buffers and saved by DiskExecutor,
+ * so reading from network overlaps with writing to disk
+ * Writers don't wait for flush of saved file, so all entries of archive can be flushed by WritePipeline together
+ * Entries are verified while they are read, corrupted entries aren't saved but reported to caller
+ * @author Jakub Reszka
+ */
+public abstract class PackUnpacker {
+
+    /**
+     * Reads archive from stream and hands its entries over to DiskExecutor
+     * Returns when whole archive is read, reading stops only while queue of DiskExecutor is full
+     * @param codec the codec archive is read with
+     * @param storage the storage entries are saved in
+     * @param saved the list to which entries of saved files are added before returned future completes
+     * @param failed the list to which names of files which couldn't be saved are added before returned future completes
+     * @param corrupted the list to which entries of corrupted files are added, their hashes are computed by sender
+     * @return the future completed with count of entries in archive when all entries are saved
+     * @throws IOException if an error occurs when reading
+     */
+    public static CompletableFuture<Integer> unpack(MessageCodec codec, StorageBackend storage, List<FileEntry> saved,
+                                                    List<String> failed, List<FileEntry> corrupted) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<CompletableFuture<FileEntry>> pending = new ArrayList<>();
+        Integrity check = new Integrity();
+        int total = 0;
+
+        while (codec.readHeader() == 1) {
+            String name = codec.readName();
+            int length = codec.readInt();
+            if (length < 0 || length > PackWriter.MAX_ENTRY_SIZE)
+                throw new IOException("Packed entry " + name + " has invalid length " + length);
+            total++;
+            PooledBuffer body = codec.readBody(length, check);
+            if (!check.isIntact()) {
+                corrupted.add(new FileEntry(name, length, 0, check.getExpected()));
+                body.close();
+                continue;
+            }
+            byte[] hash = check.getHash();
+            names.add(name);
+            try {
+                pending.add(DiskExecutor.shared().submitAsync(storage.getLocation() + "/" + name, () -> {
+                    try (body) {
+                        return storage.put(name, body.buffer());
+                    }
+                }).thenApply(success -> success ? entry(storage, name, length, hash) : null));
+            } catch (IOException e) {
+                body.close();
+                throw e;
+            }
+        }
+
+        int count = total;
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            for (int i = 0; i < pending.size(); ++i) {
+                FileEntry entry = pending.get(i).exceptionally(e -> null).join();
+                if (entry != null) saved.add(entry);
+                else failed.add(names.get(i));
+            }
+            return count;
+        });
+    }
+
+    /**
+     * Creates entry of saved file
+     */
+    private static FileEntry entry(StorageBackend storage, String name, int length, byte[] hash) {
+        FileEntry stored = storage.stat(name);
+        return new FileEntry(name, length, stored == null ? 0 : stored.getModified(), hash);
+    }
+}
@@ -0,0 +1,46 @@
+package server.models;
+
+/**
+ * This class represents file offered by one user to another through direct connection
+ * Server keeps it until receiver reports result, so the file can be relayed if direct connection fails
+ * @author Jakub Reszka
+ */
+public class PeerOffer {
+
+    private final User sender;
+    private final String filename;
+    private final String receiver;
+
+    /**
+     * Constructs offer with given params
+     * @param sender the user offering file
+     * @param filename the name of offered file
+     * @param receiver the name of receiving user
+     */
+    public PeerOffer(User sender, String filename, String receiver) {
+        this.sender = sender;
+        this.filename = filename;
+        this.receiver = receiver;
+    }
+
+    /**
+     * @return sender
+     */
+    public User getSender() {
+        return sender;
+    }
+
+    /**
+     * @return filename
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return receiver
+     */
+    public String getReceiver() {
+        return receiver;
+    }
+}
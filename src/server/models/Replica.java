@@ -0,0 +1,180 @@
+package server.models;
+
+import common.FileEntry;
+import common.FileManager;
+import common.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class represents replica of directory of user kept by another node of cluster
+ * Files are kept as files, so they are sent to users through FileCache like files of local users,
+ * their hashes are kept in snapshot, so manifest of owner's node is compared without reading files
+ * Changes have to come in order of their sequence numbers, change out of order means that replica needs manifest
+ * @author Jakub Reszka
+ */
+public class Replica {
+
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Snapshot snapshot;
+    private long next = -1;
+    private boolean dirty = false;
+    private boolean ackScheduled = false;
+
+    /**
+     * Constructs replica with given params and loads its snapshot
+     * @param root the directory of replicas
+     * @param owner the name of user
+     */
+    Replica(Path root, String owner) {
+        String name = Long.toHexString(HashRing.hash(owner));
+        this.directory = root.resolve(name);
+        this.snapshotFile = root.resolve(name + ".snapshot");
+        Snapshot loaded = Snapshot.load(snapshotFile, owner);
+        this.snapshot = owner.equals(loaded.getOwner()) ? loaded : new Snapshot(owner);
+    }
+
+    /**
+     * Saves replicated file
+     * @param seq the sequence number of change
+     * @param name the name of file
+     * @param body the file's bytes
+     * @return false if change is out of order or file can't be saved, then replica needs manifest
+     */
+    synchronized boolean put(long seq, String name, ByteBuffer body) {
+        if (seq != next) return false;
+        if (!FileManager.saveFileFromBuffer(body, directory.toString(), name)) {
+            next = -1;
+            return false;
+        }
+        snapshot.put(new FileEntry(name, body.remaining(), System.currentTimeMillis(), FileManager.hashBuffer(body)));
+        dirty = true;
+        next++;
+        return true;
+    }
+
+    /**
+     * Removes replicated file
+     * @param seq the sequence number of change
+     * @param name the name of file
+     * @return false if change is out of order, then replica needs manifest
+     */
+    synchronized boolean remove(long seq, String name) {
+        if (seq != next) return false;
+        delete(name);
+        dirty = true;
+        next++;
+        return true;
+    }
+
+    /**
+     * Brings replica in line with manifest of owner's node, files not listed are removed
+     * @param seq the sequence number manifest is valid at
+     * @param entries the files listed in manifest
+     * @return the names of files which are missing or different and have to be sent
+     */
+    synchronized List<String> applyManifest(long seq, List<FileEntry> entries) {
+        Set<String> listed = new HashSet<>();
+        List<String> wanted = new ArrayList<>();
+        for (FileEntry entry : entries) {
+            Path file = resolve(entry.getName());
+            if (file == null) continue;
+            listed.add(entry.getName());
+            FileEntry kept = snapshot.get(entry.getName());
+            if (kept == null || !kept.sameContent(entry) || !Files.isRegularFile(file)) {
+                wanted.add(entry.getName());
+            }
+        }
+        for (String name : snapshot.names()) {
+            if (!listed.contains(name)) delete(name);
+        }
+        next = seq + 1;
+        dirty = true;
+        save();
+        return wanted;
+    }
+
+    private void delete(String name) {
+        snapshot.remove(name);
+        Path file = resolve(name);
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Resolves name of file coming from another node inside directory of replica
+     * @param name the name of file
+     * @return the path of file or null if name leads outside directory of replica
+     */
+    private Path resolve(String name) {
+        Path file = directory.resolve(name).normalize();
+        return file.startsWith(directory.normalize()) && !file.equals(directory.normalize()) ? file : null;
+    }
+
+    /**
+     * @return the replicated files with their hashes
+     */
+    synchronized List<FileEntry> entries() {
+        return new ArrayList<>(snapshot.entries());
+    }
+
+    /**
+     * Gets replicated file
+     * @param name the name of file
+     * @return the file or null if replica doesn't have it
+     */
+    synchronized File locate(String name) {
+        Path resolved = resolve(name);
+        if (resolved == null || snapshot.get(name) == null) return null;
+        File file = resolved.toFile();
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * @return the sequence number of the last applied change or -1 if replica needs manifest
+     */
+    synchronized long getApplied() {
+        return next < 0 ? -1 : next - 1;
+    }
+
+    /**
+     * Marks acknowledgement as scheduled, so changes applied meanwhile are acknowledged together
+     * @return false if acknowledgement is already scheduled
+     */
+    synchronized boolean scheduleAck() {
+        if (ackScheduled) return false;
+        ackScheduled = true;
+        return true;
+    }
+
+    /**
+     * Takes the last applied change to be acknowledged
+     * @return the sequence number of the last applied change or -1 if replica needs manifest
+     */
+    synchronized long takeAck() {
+        ackScheduled = false;
+        return getApplied();
+    }
+
+    /**
+     * Saves snapshot of replica if it has changed
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        try {
+            snapshot.save(snapshotFile);
+            dirty = false;
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,277 @@
+package server.models;
+
+import common.FileEntry;
+import common.PooledBuffer;
+import common.StorageBackend;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * This class replicates directory of user kept by this node to follower nodes of cluster
+ * Changes of files are kept in log of the last filemanager.replication.logSize changes, they are shipped to every
+ * follower in order by single daemonic thread shared by all users, so saving files never waits for followers
+ * Log keeps only names, content of changed file is read from storage when it's shipped, so shipping is idempotent
+ * Follower which is new, lagging behind the oldest kept change or whose link failed gets manifest of all files
+ * with their hashes first and answers with files it misses, which are shipped before further changes
+ * Messages to every follower are numbered in order, follower acknowledges the last message it applied,
+ * file whose last change is acknowledged can be sent to users logged on follower from its replica
+ * instead of being relayed from this node
+ * @author Jakub Reszka
+ */
+public class ReplicationLog {
+
+    private static final int LOG_SIZE = Integer.getInteger("filemanager.replication.logSize", 4096);
+    private static final long RETRY_MILLIS = Long.getLong("filemanager.replication.retryMillis", 1000);
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final ScheduledExecutorService replicator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replicator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String owner;
+    private final Cluster cluster;
+    private final StorageBackend storage;
+    private final Object monitor;
+    private final Supplier<Collection<FileEntry>> entries;
+    private final Change[] log = new Change[LOG_SIZE];
+    private final Map<String, Long> lastChange = new HashMap<>();
+    private final Map<String, Follower> followers = new LinkedHashMap<>();
+    private long seq = 0;
+    private boolean scheduled = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Change of file, changes are stored in ring array at position given by their sequence number
+     */
+    private static class Change {
+        final long seq;
+        final byte type;
+        final String name;
+
+        Change(long seq, byte type, String name) {
+            this.seq = seq;
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Progress of follower node
+     */
+    private static class Follower {
+        final String node;
+        final Queue<String> missing = new ArrayDeque<>();
+        final Map<String, Long> shipped = new HashMap<>();
+        long next = 1;
+        // numbers of every session start above numbers of previous sessions, so late acknowledgements are ignored
+        long number = System.currentTimeMillis() << 20;
+        long base = -1;
+        long acked = -1;
+        boolean catchUp = true;
+
+        Follower(String node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Constructs log with given params and starts catching up followers
+     * @param owner the name of user
+     * @param cluster the cluster
+     * @param followers the addresses of follower nodes
+     * @param storage the storage of user's files
+     * @param monitor the monitor held when changes are logged, manifest is taken under it
+     * @param entries the supplier of current files of user
+     */
+    ReplicationLog(String owner, Cluster cluster, List<String> followers, StorageBackend storage, Object monitor,
+                   Supplier<Collection<FileEntry>> entries) {
+        this.owner = owner;
+        this.cluster = cluster;
+        this.storage = storage;
+        this.monitor = monitor;
+        this.entries = entries;
+        for (String node : followers) {
+            this.followers.put(node, new Follower(node));
+        }
+        schedule();
+    }
+
+    /**
+     * Logs saved or replaced file
+     * @param name the name of file
+     */
+    public void put(String name) {
+        append(PUT, name);
+    }
+
+    /**
+     * Logs deleted file
+     * @param name the name of file
+     */
+    public void remove(String name) {
+        append(REMOVE, name);
+    }
+
+    private void append(byte type, String name) {
+        synchronized (this) {
+            ++seq;
+            log[(int) (seq % LOG_SIZE)] = new Change(seq, type, name);
+            lastChange.put(name, seq);
+        }
+        schedule();
+    }
+
+    /**
+     * Applies acknowledgement of follower, files missed by replica are queued to be shipped
+     * @param node the address of follower
+     * @param acked the number of the last applied message or -1 if follower needs manifest
+     * @param wanted the names of files missed by replica
+     */
+    void acknowledge(String node, long acked, List<String> wanted) {
+        synchronized (this) {
+            Follower follower = followers.get(node);
+            if (follower == null) return;
+            if (acked < 0) {
+                follower.catchUp = true;
+            } else {
+                for (String name : wanted) {
+                    follower.missing.add(name);
+                    follower.shipped.put(name, Long.MAX_VALUE);
+                }
+                follower.acked = Math.max(follower.acked, acked);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Checks if replica kept by follower has the latest content of file
+     * @param node the address of node
+     * @param name the name of file
+     * @return true if node is follower which applied the last change of file
+     */
+    public synchronized boolean isCurrent(String node, String name) {
+        Follower follower = followers.get(node);
+        return follower != null && !follower.catchUp && follower.base >= 0
+                && lastChange.getOrDefault(name, 0L) < follower.next
+                && follower.acked >= follower.shipped.getOrDefault(name, follower.base);
+    }
+
+    /**
+     * Stops shipping when user logs out and its storage is closed, changes not shipped yet are brought by manifest
+     * on the next login
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private synchronized void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        replicator.execute(this::ship);
+    }
+
+    /**
+     * Ships pending changes to every follower, followers which couldn't be reached are tried again later
+     */
+    private void ship() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        boolean failed = false;
+        for (Follower follower : followers.values()) {
+            try {
+                shipTo(follower);
+            } catch (IOException e) {
+                synchronized (this) {
+                    follower.catchUp = true;
+                }
+                failed = true;
+            }
+        }
+        if (failed && !closed) replicator.schedule(this::schedule, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void shipTo(Follower follower) throws IOException {
+        while (true) {
+            String name;
+            Change change = null;
+            long number;
+            synchronized (this) {
+                if (closed) return;
+                if (follower.catchUp || follower.next <= seq - LOG_SIZE) {
+                    name = null;
+                } else if (!follower.missing.isEmpty()) {
+                    name = follower.missing.poll();
+                } else if (follower.next <= seq) {
+                    change = log[(int) (follower.next % LOG_SIZE)];
+                    name = change.name;
+                } else {
+                    return;
+                }
+                number = ++follower.number;
+            }
+            if (name == null) {
+                sendManifest(follower, number);
+                continue;
+            }
+            send(follower.node, number, change == null ? PUT : change.type, name);
+            synchronized (this) {
+                follower.shipped.put(name, number);
+                if (change != null) follower.next = change.seq + 1;
+            }
+        }
+    }
+
+    /**
+     * Sends manifest taken together with sequence number of the last change, progress of follower is reset before
+     * manifest is sent, so acknowledgement of manifest can't come before it
+     */
+    private void sendManifest(Follower follower, long number) throws IOException {
+        List<FileEntry> files;
+        synchronized (monitor) {
+            synchronized (this) {
+                follower.catchUp = false;
+                follower.base = number;
+                follower.next = seq + 1;
+                follower.missing.clear();
+                follower.shipped.clear();
+            }
+            files = new ArrayList<>(entries.get());
+        }
+        cluster.send(follower.node, codec -> codec.writeReplicaManifest(owner, number, files));
+    }
+
+    private void send(String node, long number, byte type, String name) throws IOException {
+        PooledBuffer body = null;
+        if (type == PUT) {
+            try {
+                body = storage.read(name);
+            } catch (IOException e) {
+                // usually file was removed meanwhile, otherwise replica misses it until the next manifest
+            }
+        }
+        if (body == null) {
+            cluster.send(node, codec -> codec.writeReplicaRemove(owner, number, name));
+            return;
+        }
+        try (PooledBuffer content = body) {
+            cluster.send(node, codec -> codec.writeReplicaPut(owner, number, name, content.buffer()));
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package server.models;
+
+import common.FileEntry;
+import common.StorageBackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes user's files, so they can be searched without scanning directory
+ * Words of names and of text content are kept in inverted index whose lists of files are sorted by id of file,
+ * size, modification time and type of every file are kept in arrays indexed by id of file
+ * Files are also listed in buckets of size rounded to power of two and of day of modification,
+ * so "size" and "modified" conditions read only lists of buckets in range unless these cover most of files
+ * Changed files get new id, so lists only grow at their ends, ids of removed files are reclaimed
+ * when more than half of ids are dead, which changes epoch of index, so cursors of previous epoch start from the beginning
+ * Files are indexed by single daemonic thread shared by all users, text content of files recognised as text
+ * is indexed up to filemanager.search.maxTextBytes bytes
+ * Query consists of words separated by spaces, all of them have to match:
+ * "word" matches word of name or content, "word*" matches words starting with it, "type:ext" matches extension,
+ * "size>N", "size<N", "modified>N" and "modified<N" match size in bytes and modification time in milliseconds
+ * @author Jakub Reszka
+ */
+public class SearchIndex {
+
+    private static final int MAX_TEXT_BYTES = Integer.getInteger("filemanager.search.maxTextBytes", 1024 * 1024);
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final Set<String> TEXT_TYPES = Set.of("txt", "md", "csv", "log", "json", "xml", "html", "htm",
+            "css", "js", "ts", "java", "kt", "c", "h", "cpp", "hpp", "py", "go", "rs", "sh", "sql", "yml", "yaml",
+            "properties", "ini", "tex");
+
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-indexer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final StorageBackend storage;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final Map<String, Postings> types = new HashMap<>();
+    private final TreeMap<Long, Postings> sizeBuckets = new TreeMap<>();
+    private final TreeMap<Long, Postings> modifiedBuckets = new TreeMap<>();
+    private final BitSet live = new BitSet();
+    private String[] names = new String[1024];
+    private long[] sizes = new long[1024];
+    private long[] modified = new long[1024];
+    private int count = 0;
+    private int dead = 0;
+    private int epoch = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs empty index of files kept in storage
+     * @param storage the storage of user's files or null if files are indexed only with index method
+     */
+    public SearchIndex(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Sorted list of ids of files, ids are only appended in ascending order
+     */
+    private static class Postings {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        /**
+         * @return position of the first id greater than given one
+         */
+        int after(int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            return position >= 0 ? position + 1 : -position - 1;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+
+    /**
+     * Page of results of query
+     */
+    public static class Page {
+        private final List<FileEntry> entries;
+        private final long cursor;
+
+        Page(List<FileEntry> entries, long cursor) {
+            this.entries = entries;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return entries of found files without hashes
+         */
+        public List<FileEntry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return cursor of the next page or -1 if there are no more results
+         */
+        public long getCursor() {
+            return cursor;
+        }
+    }
+
+    /**
+     * Indexes file again in the background after it was saved
+     * @param name the name of file
+     */
+    public void update(String name) {
+        indexer.execute(() -> {
+            if (closed) return;
+            FileEntry entry = storage.stat(name);
+            if (entry == null) remove(name);
+            else index(entry, isText(name) ? readText(name) : null);
+        });
+    }
+
+    /**
+     * Indexes all files in the background, used when directory of user is restored
+     * @param names the names of files
+     */
+    public void updateAll(Collection<String> names) {
+        for (String name : names) {
+            update(name);
+        }
+    }
+
+    /**
+     * Removes file from index in the background after it was deleted
+     * @param name the name of file
+     */
+    public void delete(String name) {
+        indexer.execute(() -> {
+            if (!closed) remove(name);
+        });
+    }
+
+    /**
+     * Drops pending updates, index isn't used anymore
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Indexes file immediately, previous entry of file is replaced
+     * @param entry the entry of file
+     * @param text the text content of file or null
+     */
+    public void index(FileEntry entry, CharSequence text) {
+        Set<String> found = new HashSet<>();
+        tokenize(entry.getName(), found);
+        if (text != null) tokenize(text, found);
+
+        lock.writeLock().lock();
+        try {
+            Integer previous = ids.get(entry.getName());
+            if (previous != null) {
+                live.clear(previous);
+                dead++;
+            }
+            if (count == names.length) grow();
+            int id = count++;
+            names[id] = entry.getName();
+            sizes[id] = entry.getSize();
+            modified[id] = entry.getModified();
+            live.set(id);
+            ids.put(entry.getName(), id);
+            for (String word : found) {
+                words.computeIfAbsent(word, key -> new Postings()).add(id);
+            }
+            types.computeIfAbsent(typeOf(entry.getName()), key -> new Postings()).add(id);
+            sizeBuckets.computeIfAbsent(sizeBucket(entry.getSize()), key -> new Postings()).add(id);
+            modifiedBuckets.computeIfAbsent(modifiedBucket(entry.getModified()), key -> new Postings()).add(id);
+            if (dead > Math.max(1024, count / 2)) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes file from index immediately
+     * @param name the name of file
+     */
+    public void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.remove(name);
+            if (id != null) {
+                live.clear(id);
+                dead++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        modified = Arrays.copyOf(modified, capacity);
+    }
+
+    /**
+     * Renumbers live files keeping their order, so lists stay sorted, and drops empty lists, write lock has to be held
+     */
+    private void compact() {
+        int[] renumbered = new int[count];
+        int next = 0;
+        for (int id = 0; id < count; ++id) {
+            if (!live.get(id)) {
+                renumbered[id] = -1;
+                continue;
+            }
+            renumbered[id] = next;
+            names[next] = names[id];
+            sizes[next] = sizes[id];
+            modified[next] = modified[id];
+            next++;
+        }
+        Arrays.fill(names, next, count, null);
+        live.clear();
+        live.set(0, next);
+        count = next;
+        dead = 0;
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            entry.setValue(renumbered[entry.getValue()]);
+        }
+        compact(words.values(), renumbered);
+        compact(types.values(), renumbered);
+        compact(sizeBuckets.values(), renumbered);
+        compact(modifiedBuckets.values(), renumbered);
+        epoch++;
+    }
+
+    private static void compact(Collection<Postings> lists, int[] renumbered) {
+        Iterator<Postings> iterator = lists.iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; ++i) {
+                int id = renumbered[postings.ids[i]];
+                if (id >= 0) postings.ids[size++] = id;
+            }
+            postings.size = size;
+            if (size == 0) iterator.remove();
+            else if (size < postings.ids.length / 4) postings.ids = Arrays.copyOf(postings.ids, size * 2);
+        }
+    }
+
+    /**
+     * Finds files matching query
+     * @param query the query
+     * @param cursor the cursor returned with previous page or 0 for the first page
+     * @param limit the maximal count of results
+     * @return the page of results in order of indexing
+     */
+    public Page query(String query, long cursor, int limit) {
+        List<Postings> lists = new ArrayList<>();
+        long minSize = Long.MIN_VALUE, maxSize = Long.MAX_VALUE, minModified = Long.MIN_VALUE, maxModified = Long.MAX_VALUE;
+
+        lock.readLock().lock();
+        try {
+            int after = ((int) (cursor >>> 32) == epoch ? (int) cursor : 0) - 1;
+            for (String part : query.trim().toLowerCase().split("\\s+")) {
+                if (part.isEmpty()) continue;
+                if (part.startsWith("size>")) minSize = Math.max(minSize, number(part, 5) + 1);
+                else if (part.startsWith("size<")) maxSize = Math.min(maxSize, number(part, 5) - 1);
+                else if (part.startsWith("modified>")) minModified = Math.max(minModified, number(part, 9) + 1);
+                else if (part.startsWith("modified<")) maxModified = Math.min(maxModified, number(part, 9) - 1);
+                else if (part.startsWith("type:")) lists.add(types.getOrDefault(part.substring(5), new Postings()));
+                else if (part.endsWith("*")) lists.add(prefix(part.substring(0, part.length() - 1), after));
+                else {
+                    Set<String> found = new HashSet<>();
+                    tokenize(part, found);
+                    for (String word : found) {
+                        lists.add(words.getOrDefault(word, new Postings()));
+                    }
+                }
+            }
+
+            if (minSize != Long.MIN_VALUE || maxSize != Long.MAX_VALUE) {
+                addRange(lists, sizeBuckets, sizeBucket(minSize), sizeBucket(maxSize), after);
+            }
+            if (minModified != Long.MIN_VALUE || maxModified != Long.MAX_VALUE) {
+                addRange(lists, modifiedBuckets, modifiedBucket(minModified), modifiedBucket(maxModified), after);
+            }
+
+            List<FileEntry> entries = new ArrayList<>();
+            int last = -1;
+            lists.sort(Comparator.comparingInt(postings -> postings.size));
+            if (lists.isEmpty()) {
+                for (int id = live.nextSetBit(after + 1); id >= 0 && entries.size() < limit; id = live.nextSetBit(id + 1)) {
+                    if (matches(id, minSize, maxSize, minModified, maxModified)) entries.add(entry(id));
+                    last = id;
+                }
+                if (last >= 0 && live.nextSetBit(last + 1) < 0) last = -1;
+            } else {
+                Postings smallest = lists.get(0);
+                int position = smallest.after(after);
+                for (; position < smallest.size && entries.size() < limit; ++position) {
+                    int id = smallest.ids[position];
+                    last = id;
+                    if (!live.get(id) || !matches(id, minSize, maxSize, minModified, maxModified)) continue;
+                    boolean all = true;
+                    for (int i = 1; i < lists.size() && all; ++i) {
+                        all = lists.get(i).contains(id);
+                    }
+                    if (all) entries.add(entry(id));
+                }
+                if (position >= smallest.size) last = -1;
+            }
+            return new Page(entries, last < 0 ? -1 : ((long) epoch << 32) | (last + 1));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges lists of all words starting with prefix, read lock has to be held
+     */
+    private Postings prefix(String prefix, int after) {
+        return merge(words.subMap(prefix, prefix + Character.MAX_VALUE).values(), after);
+    }
+
+    /**
+     * Adds merged lists of buckets in range to lists of query, buckets at ends of range may contain files outside
+     * of it, so conditions are still checked for every file
+     * Range covering more than sixteenth of remaining files isn't added, checking conditions is cheaper
+     * than merging its lists, read lock has to be held
+     */
+    private void addRange(List<Postings> lists, TreeMap<Long, Postings> buckets, long from, long to, int after) {
+        if (from > to) {
+            lists.add(new Postings());
+            return;
+        }
+        Collection<Postings> matching = buckets.subMap(from, true, to, true).values();
+        long remaining = 0;
+        for (Postings postings : matching) {
+            remaining += postings.size - postings.after(after);
+        }
+        if (remaining <= (count - after - 1) / 16) lists.add(merge(matching, after));
+    }
+
+    /**
+     * Merges sorted lists into one sorted list, only ids greater than after are merged, read lock has to be held
+     */
+    private Postings merge(Collection<Postings> matching, int after) {
+        if (matching.size() == 1) return matching.iterator().next();
+        BitSet merged = new BitSet(count);
+        for (Postings postings : matching) {
+            for (int i = postings.after(after); i < postings.size; ++i) {
+                merged.set(postings.ids[i]);
+            }
+        }
+        Postings result = new Postings();
+        result.ids = merged.stream().toArray();
+        result.size = result.ids.length;
+        return result;
+    }
+
+    private boolean matches(int id, long minSize, long maxSize, long minModified, long maxModified) {
+        return sizes[id] >= minSize && sizes[id] <= maxSize && modified[id] >= minModified && modified[id] <= maxModified;
+    }
+
+    /**
+     * @return the bucket of size, the count of significant bits of size
+     */
+    private static long sizeBucket(long size) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(0, size));
+    }
+
+    /**
+     * @return the bucket of modification time, the day since epoch
+     */
+    private static long modifiedBucket(long modified) {
+        return Math.floorDiv(modified, DAY_MILLIS);
+    }
+
+    private FileEntry entry(int id) {
+        return new FileEntry(names[id], sizes[id], modified[id], null);
+    }
+
+    private static long number(String part, int start) {
+        try {
+            return Long.parseLong(part.substring(start));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return count of indexed files
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits
+     */
+    private static void tokenize(CharSequence text, Set<String> target) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ++i) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD_LENGTH) word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                target.add(word.toString());
+                word.setLength(0);
+            }
+        }
+    }
+
+    private static String typeOf(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash + 1 ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    private static boolean isText(String name) {
+        return TEXT_TYPES.contains(typeOf(name));
+    }
+
+    /**
+     * Reads beginning of file as UTF-8, malformed bytes are replaced
+     * @return the text or null if file can't be read or contains zero bytes
+     */
+    private CharSequence readText(String name) {
+        try (InputStream content = storage.get(name)) {
+            byte[] bytes = content.readNBytes(MAX_TEXT_BYTES);
+            for (byte b : bytes) {
+                if (b == 0) return null;
+            }
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer text = decoder.decode(ByteBuffer.wrap(bytes));
+            return text;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package server.models;
+
+import common.Durability;
+import common.FileEntry;
+import common.Snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * This class represents append-only journal of changes of user's files and striped uploads made since the last snapshot
+ * Snapshot and journal together describe user's directory, so restart replays only the journal instead of scanning
+ * and hashing the directory
+ * Journal is in the form of magic number and records of length, type, content and CRC32C, torn record at the end
+ * left by crash is ignored
+ * Checkpoint starts new journal before snapshot is saved and removes the old one when snapshot is on disk,
+ * so every change is always in the snapshot or in one of journals, uploads in progress are recorded again in new journal
+ * Records are flushed unless durability is NONE, writers waiting at the same time share one flush
+ * If journal can't be written, it's removed, so the next restart falls back to scanning the directory
+ * @author Jakub Reszka
+ */
+public class StateJournal implements Closeable {
+
+    private static final int MAGIC = 0x464D4A31;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte BEGIN = 3;
+    private static final byte END = 4;
+
+    private final Path file;
+    private final Path old;
+    private final Durability durability;
+    private final Object syncMonitor = new Object();
+    private final CRC32C checksum = new CRC32C();
+
+    private FileChannel channel;
+    private long end;
+    private volatile int generation = 0;
+    private long synced;
+    private boolean failed = false;
+    private final Map<Integer, String> active = new LinkedHashMap<>();
+
+    /**
+     * Result of replaying journal
+     */
+    public static class Recovery {
+        private final boolean found;
+        private final Map<Integer, String> unfinished = new LinkedHashMap<>();
+        private int records = 0;
+
+        Recovery(boolean found) {
+            this.found = found;
+        }
+
+        /**
+         * @return false if there was no journal, then snapshot may be outdated and directory has to be scanned
+         */
+        public boolean isFound() {
+            return found;
+        }
+
+        /**
+         * @return the ids and names of striped uploads which were interrupted
+         */
+        public Map<Integer, String> getUnfinished() {
+            return Collections.unmodifiableMap(unfinished);
+        }
+
+        /**
+         * @return the count of replayed records
+         */
+        public int getRecords() {
+            return records;
+        }
+    }
+
+    private StateJournal(Path file, Durability durability) throws IOException {
+        this.file = file;
+        this.old = oldFile(file);
+        this.durability = durability;
+        this.channel = create(file);
+        this.end = channel.size();
+        this.synced = end;
+    }
+
+    /**
+     * Starts journal of directory described by snapshot, snapshot is saved first, so previous journals can be removed
+     * @param file the path to journal file
+     * @param durability the durability of records
+     * @param snapshot the snapshot of user's directory, already updated by replay
+     * @param snapshotFile the path to snapshot file
+     * @return the journal
+     * @throws IOException if snapshot or journal can't be written
+     */
+    public static StateJournal open(Path file, Durability durability, Snapshot snapshot, Path snapshotFile) throws IOException {
+        snapshot.save(snapshotFile, durability != Durability.NONE);
+        Files.deleteIfExists(oldFile(file));
+        return new StateJournal(file, durability);
+    }
+
+    /**
+     * Applies records of old and current journal to snapshot
+     * @param file the path to journal file
+     * @param snapshot the snapshot loaded from snapshot file
+     * @return the result of replay
+     */
+    public static Recovery replay(Path file, Snapshot snapshot) {
+        Path old = oldFile(file);
+        Recovery recovery = new Recovery(Files.exists(file) || Files.exists(old));
+        replay(old, snapshot, recovery);
+        replay(file, snapshot, recovery);
+        return recovery;
+    }
+
+    private static void replay(Path path, Snapshot snapshot, Recovery recovery) {
+        if (!Files.exists(path)) return;
+        CRC32C checksum = new CRC32C();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC) return;
+            while (true) {
+                int length = input.readInt();
+                if (length <= 0 || length > MAX_RECORD) return;
+                byte[] record = new byte[length];
+                input.readFully(record);
+                checksum.reset();
+                checksum.update(record);
+                if (input.readInt() != (int) checksum.getValue()) return;
+                apply(new DataInputStream(new ByteArrayInputStream(record)), snapshot, recovery);
+                recovery.records++;
+            }
+        } catch (EOFException ignored) {
+            // torn record left by crash
+        } catch (IOException ignored) { }
+    }
+
+    private static void apply(DataInputStream record, Snapshot snapshot, Recovery recovery) throws IOException {
+        byte type = record.readByte();
+        if (type == PUT) {
+            String name = record.readUTF();
+            long size = record.readLong();
+            long modified = record.readLong();
+            byte[] hash = new byte[record.readUnsignedByte()];
+            record.readFully(hash);
+            snapshot.put(new FileEntry(name, size, modified, hash));
+        } else if (type == REMOVE) {
+            snapshot.remove(record.readUTF());
+        } else if (type == BEGIN) {
+            int transferId = record.readInt();
+            recovery.unfinished.put(transferId, record.readUTF());
+        } else if (type == END) {
+            recovery.unfinished.remove(record.readInt());
+        }
+    }
+
+    /**
+     * Records saved or replaced file
+     * @param entry the entry of file
+     */
+    public void put(FileEntry entry) {
+        append(output -> {
+            output.writeByte(PUT);
+            output.writeUTF(entry.getName());
+            output.writeLong(entry.getSize());
+            output.writeLong(entry.getModified());
+            output.writeByte(entry.getHash().length);
+            output.write(entry.getHash());
+        });
+    }
+
+    /**
+     * Records deleted file
+     * @param name the name of file
+     */
+    public void remove(String name) {
+        append(output -> {
+            output.writeByte(REMOVE);
+            output.writeUTF(name);
+        });
+    }
+
+    /**
+     * Records started striped upload, its part file is removed on restart unless upload ends before
+     * @param transferId the id of transfer
+     * @param name the name of uploaded file
+     */
+    public void beginTransfer(int transferId, String name) {
+        synchronized (this) {
+            active.put(transferId, name);
+        }
+        append(begin(transferId, name));
+    }
+
+    private static RecordWriter begin(int transferId, String name) {
+        return output -> {
+            output.writeByte(BEGIN);
+            output.writeInt(transferId);
+            output.writeUTF(name);
+        };
+    }
+
+    /**
+     * Records finished or aborted striped upload
+     * @param transferId the id of transfer
+     */
+    public void endTransfer(int transferId) {
+        synchronized (this) {
+            active.remove(transferId);
+        }
+        append(output -> {
+            output.writeByte(END);
+            output.writeInt(transferId);
+        });
+    }
+
+    /**
+     * Interface represents writing of record's content
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private void append(RecordWriter writer) {
+        int current;
+        long position;
+        synchronized (this) {
+            if (failed || !write(writer)) return;
+            position = end;
+            current = generation;
+        }
+        if (durability != Durability.NONE) sync(current, position);
+    }
+
+    /**
+     * Writes record at the end of journal, monitor of journal has to be held
+     * @return false if journal failed
+     */
+    private boolean write(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(0);
+            writer.write(output);
+            output.writeInt(0);
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.capacity() - 8;
+            checksum.reset();
+            checksum.update(record.array(), 4, length);
+            record.putInt(0, length).putInt(4 + length, (int) checksum.getValue());
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            end += record.capacity();
+            return true;
+        } catch (IOException e) {
+            fail();
+            return false;
+        }
+    }
+
+    /**
+     * Flushes journal up to given position unless another writer has flushed it or journal was rotated meanwhile
+     */
+    private void sync(int generation, long position) {
+        synchronized (syncMonitor) {
+            if (this.generation != generation || synced >= position) return;
+            FileChannel current;
+            long target;
+            synchronized (this) {
+                current = channel;
+                target = end;
+            }
+            try {
+                current.force(false);
+                synced = target;
+            } catch (ClosedChannelException e) {
+                // journal was flushed by rotation or close
+            } catch (IOException e) {
+                synchronized (this) {
+                    fail();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes journals after write failure, must be called with monitor of journal held
+     */
+    private void fail() {
+        failed = true;
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(old);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Saves snapshot and drops journal of changes contained in it
+     * If the previous snapshot wasn't saved, journal isn't rotated again, its old part is dropped after this save instead
+     * @param snapshot the snapshot of user's directory
+     * @param snapshotFile the path to snapshot file
+     * @throws IOException if snapshot can't be saved
+     */
+    public void checkpoint(Snapshot snapshot, Path snapshotFile) throws IOException {
+        synchronized (syncMonitor) {
+            synchronized (this) {
+                if (failed || !Files.exists(old)) {
+                    if (!failed) {
+                        channel.force(false);
+                        channel.close();
+                        Files.move(file, old, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    channel = create(file);
+                    end = channel.size();
+                    failed = false;
+                    for (Map.Entry<Integer, String> transfer : active.entrySet()) {
+                        write(begin(transfer.getKey(), transfer.getValue()));
+                    }
+                    if (!failed) channel.force(false);
+                    synced = end;
+                    generation++;
+                }
+            }
+        }
+        snapshot.save(snapshotFile, durability != Durability.NONE);
+        Files.deleteIfExists(old);
+    }
+
+    /**
+     * @return the length of current journal in bytes
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncMonitor) {
+            synchronized (this) {
+                if (failed) return;
+                if (durability != Durability.NONE) channel.force(false);
+                channel.close();
+            }
+        }
+    }
+
+    private static FileChannel create(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.allocate(4).putInt(MAGIC).flip());
+        channel.force(true);
+        return channel;
+    }
+
+    private static Path oldFile(Path file) {
+        return Paths.get(file.toString() + ".old");
+    }
+}
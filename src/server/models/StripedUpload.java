@@ -0,0 +1,169 @@
+package server.models;
+
+import common.FileManager;
+import common.MessageCodec;
+import common.StorageBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * This class represents large file uploaded in byte ranges over many connections at once
+ * Ranges are written at their positions into temporary part file, which is committed in place once all bytes arrived
+ * Ranges start at boundaries of chunks and received chunks are remembered, so range sent again isn't counted twice
+ * @author Jakub Reszka
+ */
+public class StripedUpload {
+
+    private final Path part;
+    private final String filename;
+    private final long length;
+    private final byte[] expected;
+    private final FileChannel channel;
+    private final BitSet chunks = new BitSet();
+    private long received = 0;
+    private boolean completed = false;
+    private byte[] hash = null;
+
+    /**
+     * Constructs upload and creates its part file
+     * @param part the path of temporary part file
+     * @param filename the name of uploaded file
+     * @param length the length of whole file
+     * @throws IOException if part file can't be created
+     */
+    public StripedUpload(Path part, String filename, long length) throws IOException {
+        this(part, filename, length, null);
+    }
+
+    /**
+     * Constructs upload of file whose hash is known in advance and creates its part file
+     * @param part the path of temporary part file
+     * @param filename the name of uploaded file
+     * @param length the length of whole file
+     * @param expected the hash of whole file computed by sender or null if it's unknown
+     * @throws IOException if part file can't be created
+     */
+    public StripedUpload(Path part, String filename, long length, byte[] expected) throws IOException {
+        this.part = part;
+        this.expected = expected;
+        this.filename = filename;
+        this.length = length;
+        Files.createDirectories(part.getParent());
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes bytes of range at given position and counts chunks which weren't received before,
+     * may be called by many threads at once
+     * @param buffer the bytes between position and limit
+     * @param position the position in file, it has to be boundary of chunk
+     * @return true if this range completed the file
+     * @throws IOException if an I/O error occurs or range doesn't fit chunks of file
+     */
+    public boolean write(ByteBuffer buffer, long position) throws IOException {
+        int count = buffer.remaining();
+        if (position < 0 || position % MessageCodec.CHUNK_SIZE != 0 || position + count > length
+                || (count % MessageCodec.CHUNK_SIZE != 0 && position + count != length))
+            throw new IOException("Range at " + position + " doesn't fit chunks of " + filename);
+        ByteBuffer source = buffer.duplicate();
+        long offset = position;
+        while (source.hasRemaining()) {
+            offset += channel.write(source, offset);
+        }
+        return addReceived(position, count);
+    }
+
+    /**
+     * Counts chunks of written range which weren't received before
+     * @return true if this range completed the file, it's returned once
+     */
+    private synchronized boolean addReceived(long position, int count) {
+        for (long offset = position; offset < position + count; offset += MessageCodec.CHUNK_SIZE) {
+            int chunk = (int) (offset / MessageCodec.CHUNK_SIZE);
+            if (chunks.get(chunk)) continue;
+            chunks.set(chunk);
+            received += Math.min(MessageCodec.CHUNK_SIZE, length - offset);
+        }
+        if (completed || received != length) return false;
+        completed = true;
+        return true;
+    }
+
+    /**
+     * Closes part file, verifies its hash if it's known and stores it over file in user's storage
+     * @param storage the storage of user
+     * @return false if file is corrupted or couldn't be stored
+     */
+    public boolean finish(StorageBackend storage) {
+        try {
+            channel.close();
+            hash = FileManager.hashFile(part.toFile());
+            if (expected != null && !Arrays.equals(hash, expected)) throw new IOException("Corrupted file " + filename);
+            if (storage.putFile(filename, part).join()) return true;
+        } catch (IOException ignored) { }
+        abort();
+        return false;
+    }
+
+    /**
+     * Removes part files left by uploads interrupted by crash
+     * @param path the path of user's directory
+     */
+    public static void removeParts(String path) {
+        File[] parts = new File(path + ".parts").listFiles();
+        if (parts == null) return;
+        for (File part : parts) {
+            part.delete();
+        }
+    }
+
+    /**
+     * Removes part files of given uploads, used when journal knows which uploads were interrupted by crash
+     * @param path the path of user's directory
+     * @param transfers the ids of interrupted transfers
+     */
+    public static void removeParts(String path, Collection<Integer> transfers) {
+        for (int transferId : transfers) {
+            new File(path + ".parts", transferId + ".part").delete();
+        }
+    }
+
+    /**
+     * Closes and removes part file
+     */
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(part);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * @return hash of committed file
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * @return hash of whole file computed by sender or null if it's unknown
+     */
+    public byte[] getExpected() {
+        return expected;
+    }
+
+    /**
+     * @return filename
+     */
+    public String getFilename() {
+        return filename;
+    }
+}
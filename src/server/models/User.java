@@ -1,22 +1,51 @@
 package server.models;
 
 import client.StreamException;
+import common.EventBus;
+import common.FileEntry;
 import common.FileManager;
-import javafx.application.Platform;
+import common.Integrity;
+import common.ListingQuery;
+import common.MessageCodec;
+import common.PooledBuffer;
+import common.Snapshot;
+import common.StatusEvent;
+import common.TransportConfig;
+import common.Version;
+import common.WritePipeline;
+import common.StorageBackend;
 import server.Server;
-import server.gui.Controller;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  *  The class User represents a user model used to handle communication with certain user
@@ -24,51 +53,81 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class User {
 
-    private final Controller controller;
+    private static final Map<String, User> LOGINS = new HashMap<>();
+
+    private final EventBus events = EventBus.shared();
     private final Socket socket;
     private final String cloudPath;
     private final Server server;
 
     private int id = 0;
 
-    private String username = null;
+    private volatile String username = null;
     private DataInputStream input = null;
     private DataOutputStream output = null;
+    private MessageCodec codec = null;
 
     private Thread reader = null;
+    private ActivityInputStream activity = null;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final AtomicInteger diskOperations = new AtomicInteger(1);
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+    private volatile long roundTrip = -1;
+    private volatile String closeReason = "DISCONNECTED";
     private List<String> filesList = new ArrayList<>();
     private String path = null;
+    private Snapshot snapshot = null;
+    private Path snapshotFile = null;
+    private volatile boolean snapshotDirty = false;
+    private StateJournal journal = null;
+    private ReplicationLog replication = null;
+    private String session = null;
+    private Map<Integer, StripedUpload> uploads = new ConcurrentHashMap<>();
+    private AtomicInteger repairCounter = new AtomicInteger();
+    private Integrity integrity = new Integrity();
+    private VersionedStorage storage = null;
+    private SearchIndex search = null;
+    private volatile int filesGeneration = 0;
+    private volatile FilesListing listing = null;
+    private volatile boolean pagedListing = false;
 
     private ReentrantLock lock = new ReentrantLock();
+    private final ExecutorService replies = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "user-replies");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Constructs user instance with given params
-     * @param controller the controller responsible for server GUI
      * @param cloudPath the path to server's directory
      * @param socket the socket connecting server with client
      * @param server the server instance
      */
-    public User(Controller controller, String cloudPath, Socket socket, Server server) {
-        this.controller = controller;
+    public User(String cloudPath, Socket socket, Server server) {
         this.cloudPath = cloudPath;
         this.socket = socket;
         this.server = server;
-        this.createDirectory();
         this.createStreams();
         this.runReader();
     }
 
     /**
      * Starts reader thread responsible for reading DataInputStream
+     * Thread ends when connection is closed or broken, resources of user are released then
      * The reader thread is daemonic thread
      */
     private void runReader() {
         reader = new Thread(() -> {
-            while(true) {
-                try {
+            try {
+                while(!socket.isClosed()) {
                     readStream();
-                } catch (IOException ignored) {
                 }
+            } catch (IOException ignored) {
+                // client disconnected without goodbye or connection was closed by reaper
+            } finally {
+                release(closeReason);
             }
         });
         reader.setDaemon(true);
@@ -81,30 +140,656 @@ public class User {
      * @throws IOException
      */
     private byte readHeader() throws IOException {
-        return input.readByte();
+        return codec.readHeader();
     }
 
     /**
      * Reads whole message from DataInputStream by executing read* methods for certain header
+     * Connection which isn't logged in may send only greeting, ranges of striped transfer and link of cluster,
+     * any other message closes it
      * @param header the type of message to be read
      * @throws IOException
      */
     private void readMessage(byte header) throws IOException {
+        if (username == null && header != 1 && header != 18 && header != 30)
+            throw new IOException("Message " + header + " before login");
         if (header == 1) {
             readGreeting();
         } else if (header == 2) {
             readGoodbye();
         } else if (header == 3) {
             readFile();
-            sendFilesList();
-            Platform.runLater(() -> controller.updateFilesList(username, filesList));
         } else if (header == 5) {
             readDeleted();
-            sendFilesList();
-            Platform.runLater(() -> controller.updateFilesList(username, filesList));
         } else if (header == 7) {
             readFileToClient();
+        } else if (header == 8) {
+            readBatch();
+        } else if (header == 11) {
+            readPack();
+        } else if (header == 12) {
+            readMulticast();
+        } else if (header == 14) {
+            readPeerOffer();
+        } else if (header == 16) {
+            readPeerResult();
+        } else if (header == 18) {
+            if (username == null) serveStripes();
+            else readStripe();
+        } else if (header == 21) {
+            readVersionsRequest();
+        } else if (header == 23) {
+            readRestoreRequest();
+        } else if (header == 24) {
+            readSearch();
+        } else if (header == 38) {
+            readFetch();
+        } else if (header == 40) {
+            readRecentRequest();
+        } else if (header == 42) {
+            readPing();
+        } else if (header == 43) {
+            roundTrip = System.currentTimeMillis() - codec.readLong();
+        } else if (header == 30) {
+            serveLink();
+        } else if (header == 26) {
+            readListingRequest();
+        }
+    }
+
+    /**
+     * Serves additional connection of striped transfer, which sends only ranges of files until it's closed by client
+     * Connection is removed from list of users afterwards
+     * @throws IOException if an error occurs when reading
+     */
+    private void serveStripes() throws IOException {
+        try {
+            do {
+                readStripe();
+            } while (readHeader() == 18);
+        } catch (EOFException ignored) {
+        } finally {
+            socket.close();
+            server.removeConnection(this);
+        }
+    }
+
+    /**
+     * Serves link opened by another node of cluster, which sends only messages of cluster until it's closed
+     * Link has to be authenticated first, see Cluster.accept
+     * Connection is removed from list of users afterwards
+     * @throws IOException if an error occurs when reading or clustering isn't configured
+     */
+    private void serveLink() throws IOException {
+        String node = codec.readName();
+        try {
+            Cluster cluster = server.getCluster();
+            if (cluster == null) throw new IOException("Link from " + node + " but clustering isn't configured");
+            cluster.accept(node, codec);
+            while (true) {
+                cluster.readMessage(node, codec);
+            }
+        } catch (EOFException ignored) {
+        } finally {
+            socket.close();
+            server.removeConnection(this);
+        }
+    }
+
+    /**
+     * Reads range of file in the form of session token, transfer's id, file's name, file's length, range's offset,
+     * range's length and range's bytes, writes it into upload of session's owner and acknowledges it with header=19
+     * Only chunks which match their checksums are written, the others are listed in acknowledgement to be sent again
+     * @throws IOException if an error occurs when reading or session is unknown
+     */
+    private void readStripe() throws IOException {
+        String token = codec.readName();
+        int transferId = codec.readInt();
+        String fileName = codec.readName();
+        long length = codec.readLong();
+        long offset = codec.readLong();
+        int rangeLength = codec.readInt();
+
+        User owner = server.getUserBySession(token);
+        if (owner == null) throw new IOException("Unknown session");
+        StripedUpload upload = owner.getUpload(transferId, fileName, length);
+
+        List<Long> corrupted = new ArrayList<>();
+        boolean completed;
+        try (PooledBuffer body = codec.readBody(rangeLength, integrity)) {
+            for (long chunk : integrity.getCorrupted()) {
+                corrupted.add(offset + chunk);
+            }
+            completed = writeIntactChunks(upload, body.buffer(), offset, integrity.getCorrupted());
+        }
+
+        lock.lock();
+        try {
+            codec.writeStripeAck(transferId, offset, corrupted);
+        } finally {
+            lock.unlock();
+        }
+        if (completed) owner.finishUpload(transferId);
+    }
+
+    /**
+     * Writes chunks of body which arrived intact into upload
+     * @param upload the upload
+     * @param body the body
+     * @param offset the position of body in file
+     * @param corrupted the positions of corrupted chunks in body
+     * @return true if written chunks completed the file
+     * @throws IOException if an error occurs when writing
+     */
+    private static boolean writeIntactChunks(StripedUpload upload, ByteBuffer body, long offset, List<Long> corrupted) throws IOException {
+        if (corrupted.isEmpty()) return upload.write(body, offset);
+        boolean completed = false;
+        for (int chunk = 0; chunk < body.remaining(); chunk += MessageCodec.CHUNK_SIZE) {
+            if (corrupted.contains((long) chunk)) continue;
+            int length = Math.min(MessageCodec.CHUNK_SIZE, body.remaining() - chunk);
+            completed |= upload.write(body.duplicate().position(body.position() + chunk).limit(body.position() + chunk + length), offset + chunk);
+        }
+        return completed;
+    }
+
+    /**
+     * Keeps intact chunks of corrupted file in new upload and asks user to send the other chunks again
+     * Request is sent in the form of header=20, transfer's id, file's name, file's length, count of chunks and their offsets,
+     * file is registered when all chunks arrive and its hash matches hash computed by user
+     * @param expected the entry of file with hash computed by user
+     * @param body the intact chunks or null if none of them should be kept
+     * @param corrupted the positions of corrupted chunks
+     * @return true if chunks were requested, false if there's nothing to repair and file has to be sent again
+     * @throws IOException if an error occurs when writing
+     */
+    private boolean requestRepair(FileEntry expected, ByteBuffer body, List<Long> corrupted) throws IOException {
+        if (corrupted.isEmpty()) {
+            events.publish(new StatusEvent("ERROR WHEN SAVING: " + expected.getName()));
+            return false;
+        }
+        int transferId = repairCounter.decrementAndGet();
+        StripedUpload upload = new StripedUpload(Paths.get(path + ".parts", transferId + ".part"),
+                expected.getName(), expected.getSize(), expected.getHash());
+        if (body != null) writeIntactChunks(upload, body, 0, corrupted);
+        uploads.put(transferId, upload);
+        journal.beginTransfer(transferId, expected.getName());
+
+        lock.lock();
+        try {
+            codec.writeRepairRequest(transferId, expected.getName(), expected.getSize(), corrupted);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("CORRUPTED: " + expected.getName() + ", requested "
+                + corrupted.size() + " chunks again"));
+        return true;
+    }
+
+    /**
+     * Gets upload of striped transfer, upload is created by the first range which arrives
+     * @param transferId the id of transfer
+     * @param fileName the name of file
+     * @param length the length of whole file
+     * @return the upload
+     * @throws IOException if part file can't be created
+     */
+    private StripedUpload getUpload(int transferId, String fileName, long length) throws IOException {
+        try {
+            return uploads.computeIfAbsent(transferId, id -> {
+                try {
+                    StripedUpload upload = new StripedUpload(Paths.get(path + ".parts", id + ".part"), fileName, length);
+                    journal.beginTransfer(id, fileName);
+                    return upload;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Moves completed upload into user's directory, registers it and sends changes of list of files to user
+     * @param transferId the id of transfer
+     */
+    private void finishUpload(int transferId) {
+        StripedUpload upload = uploads.remove(transferId);
+        String fileName = upload.getFilename();
+        boolean finished = upload.finish(storage);
+        journal.endTransfer(transferId);
+        if (!finished) {
+            events.publish(new StatusEvent("ERROR WHEN SAVING: " + fileName));
+            return;
+        }
+        try {
+            registerStored(new FileEntry(fileName, 0, 0, upload.getHash()));
+            sendFilesDelta(List.of(fileName), List.of());
+        } catch (IOException ignored) {
         }
+        events.publish(new StatusEvent("SAVED: " + fileName));
+        events.publish(new FilesEvent(username, this::getFilesList));
+    }
+
+    /**
+     * Reads offer of direct transfer and passes sender's address, port and token to receiver
+     * Server only brokers the connection, the file is relayed only if receiver reports failure
+     * @throws IOException if an error occurs when reading
+     */
+    private void readPeerOffer() throws IOException {
+        String filename = codec.readName();
+        String receiver = codec.readName();
+        int port = codec.readInt();
+        String token = codec.readName();
+
+        User user = server.getUserByName(receiver);
+        if (user == null) {
+            // receiver logged on another node of cluster can't be brokered, the file is relayed instead
+            if (server.isReachable(receiver)) sendFileTo(filename, receiver);
+            return;
+        }
+        server.registerPeerOffer(token, new PeerOffer(this, filename, receiver));
+        user.sendPeerRendezvous(username, filename, socket.getInetAddress().getHostAddress(), port, token);
+        events.publish(new StatusEvent("BROKERED: " + filename + " from " + username + " to " + receiver));
+    }
+
+    /**
+     * Sends details of direct connection with another user
+     * @param sender the name of sender
+     * @param filename the name of file
+     * @param host the address of sender
+     * @param port the port of sender's PeerListener
+     * @param token the token of offer
+     * @throws IOException if an error occurs when writing
+     */
+    public void sendPeerRendezvous(String sender, String filename, String host, int port, String token) throws IOException {
+        lock.lock();
+        try {
+            codec.writePeerRendezvous(sender, filename, host, port, token);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads result of direct transfer, if it failed the file is relayed from sender's directory on server
+     * @throws IOException if an error occurs when reading or relaying
+     */
+    private void readPeerResult() throws IOException {
+        String token = codec.readName();
+        boolean transferred = codec.readBoolean();
+        PeerOffer offer = server.takePeerOffer(token);
+        if (offer == null || !offer.getReceiver().equals(username)) return;
+        if (transferred) {
+            events.publish(new StatusEvent("DIRECT: " + offer.getFilename() + " to " + username));
+        } else {
+            sendFile(offer.getSender().getStorage(), offer.getFilename());
+        }
+    }
+
+    /**
+     * Reads the name of the file and the names of clients to which the file should be sent
+     * Sending runs in the background, so reading from this user isn't blocked
+     * @throws IOException if an error occurs when reading
+     */
+    private void readMulticast() throws IOException {
+        String filename = codec.readName();
+        List<String> receivers = codec.readNames(new ArrayList<>());
+        server.getFanOut().submit(() -> multicast(filename, receivers));
+    }
+
+    /**
+     * Sends file to many users concurrently, file is read once and its buffer is shared by all receivers
+     * Receivers logged on nodes of cluster keeping the latest replica of file get it from their nodes
+     * Sends are handed over to fan-out threads and nothing waits for them, delivery status of every receiver
+     * is reported to this user when the last send ends
+     * @param filename the name of file
+     * @param receivers the names of receivers
+     */
+    private void multicast(String filename, List<String> receivers) {
+        Path located = storage.locate(filename);
+        File file = located == null ? null : located.toFile();
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+        PooledBuffer pooled = null;
+
+        if (file == null ? storage.stat(filename) != null : file.isFile()) {
+            FileCache cache = FileCache.shared();
+            boolean cached = file != null && cache.accepts(file);
+            try {
+                pooled = cached ? null : storage.read(filename);
+                ByteBuffer body = cached ? cache.get(file) : pooled.buffer();
+                String name = Paths.get(filename).getFileName().toString();
+                for (String receiver : receivers) {
+                    if (server.getUserByName(receiver) == null && sendFromReplica(filename, receiver)) {
+                        sends.add(CompletableFuture.completedFuture(true));
+                    } else if (!server.isReachable(receiver)) {
+                        sends.add(CompletableFuture.completedFuture(false));
+                    } else {
+                        sends.add(CompletableFuture.supplyAsync(() -> deliver(receiver, name, body), server.getFanOut()));
+                    }
+                }
+            } catch (IOException ignored) { }
+        }
+        while (sends.size() < receivers.size()) {
+            sends.add(CompletableFuture.completedFuture(false));
+        }
+
+        PooledBuffer read = pooled;
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> {
+            if (read != null) read.close();
+            boolean[] delivered = new boolean[receivers.size()];
+            int count = 0;
+            for (int i = 0; i < delivered.length; ++i) {
+                delivered[i] = sends.get(i).exceptionally(e -> false).join();
+                if (delivered[i]) count++;
+            }
+            String summary = "SENT: " + filename + " from " + username + " to " + count + " of " + receivers.size() + " users";
+            events.publish(new StatusEvent(summary));
+            lock.lock();
+            try {
+                codec.writeDeliveryReport(filename, receivers, delivered);
+            } catch (IOException ignored) {
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Sends file to one receiver of multicast
+     * @return true if file was sent
+     */
+    private boolean deliver(String receiver, String name, ByteBuffer body) {
+        try {
+            server.sendFile(receiver, name, body);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads packed archive of small files, saves them with pooled writers and answers like for batch
+     * @throws IOException if an error occurs when reading
+     */
+    private void readPack() throws IOException {
+        int packId = codec.readInt();
+        List<FileEntry> saved = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<FileEntry> corrupted = new ArrayList<>();
+        CompletableFuture<Integer> unpacked = PackUnpacker.unpack(codec, storage, saved, failed, corrupted);
+        List<String> repairing = new ArrayList<>();
+        List<String> unrepairable = new ArrayList<>();
+        for (FileEntry entry : corrupted) {
+            if (requestRepair(entry, null, entry.getSize() > 0 ? List.of(0L) : List.of())) repairing.add(entry.getName());
+            else unrepairable.add(entry.getName());
+        }
+
+        track(unpacked.thenAcceptAsync(total -> {
+            List<String> added = new ArrayList<>();
+            for (FileEntry entry : saved) {
+                registerFile(entry);
+                added.add(entry.getName());
+            }
+            failed.addAll(unrepairable);
+
+            try {
+                sendBatchAck(packId, added.size(), failed, repairing);
+                sendFilesDelta(added, new ArrayList<>());
+            } catch (IOException ignored) { }
+            events.publish(new FilesEvent(username, this::getFilesList));
+            events.publish(new StatusEvent("SAVED: Pack of " + added.size() + " files from " + username));
+        }, replies));
+    }
+
+    /**
+     * Reads batch of deleted and added files, applies it and answers with single acknowledgement and delta of files
+     * Files are saved by DiskExecutor, so reader continues with next message and answer is sent by replies thread of user
+     * when batch is applied, so slow connection of user never holds disk threads
+     * The GUI is updated once for the whole batch
+     * @throws IOException if an error occurs when reading
+     */
+    private void readBatch() throws IOException {
+        int batchId = codec.readInt();
+
+        int deletedCount = codec.readInt();
+        List<String> deletedNames = new ArrayList<>();
+        List<CompletableFuture<Boolean>> deletes = new ArrayList<>();
+        for(int i = 0; i < deletedCount; ++i) {
+            String fileName = codec.readName();
+            deletedNames.add(fileName);
+            deletes.add(track(DiskExecutor.shared().submit(diskKey(fileName), () -> deleteFile(fileName))));
+        }
+
+        int filesCount = codec.readInt();
+        List<String> storedNames = new ArrayList<>();
+        List<CompletableFuture<Boolean>> saves = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<String> repairing = new ArrayList<>();
+        for(int i = 0; i < filesCount; ++i) {
+            int fileLength = codec.readInt();
+            String fileName = codec.readName();
+            PooledBuffer body = codec.readBody(fileLength, integrity);
+            if (!integrity.isIntact()) {
+                try (body) {
+                    if (requestRepair(expectedEntry(fileName, fileLength), body.buffer(), integrity.getCorrupted())) repairing.add(fileName);
+                    else failed.add(fileName);
+                }
+                continue;
+            }
+            storedNames.add(fileName);
+            saves.add(storeFile(fileName, body, integrity.getHash()));
+        }
+
+        List<CompletableFuture<Boolean>> operations = new ArrayList<>(deletes);
+        operations.addAll(saves);
+        track(CompletableFuture.allOf(operations.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((result, error) -> {
+            List<String> removed = new ArrayList<>();
+            for(int i = 0; i < deletes.size(); ++i) {
+                if (succeeded(deletes.get(i))) removed.add(deletedNames.get(i));
+            }
+            List<String> added = new ArrayList<>();
+            for(int i = 0; i < saves.size(); ++i) {
+                if (succeeded(saves.get(i))) added.add(storedNames.get(i));
+                else failed.add(storedNames.get(i));
+            }
+
+            try {
+                sendBatchAck(batchId, added.size(), failed, repairing);
+                sendFilesDelta(added, removed);
+            } catch (IOException ignored) { }
+            events.publish(new FilesEvent(username, this::getFilesList));
+            events.publish(new StatusEvent("SAVED: Batch of " + added.size() + " files, deleted " + removed.size() + " from " + username));
+        }, replies));
+    }
+
+    /**
+     * Sends acknowledgement of batch in the form of header=9, batch's id, count of saved files, names of failed files
+     * and names of files being repaired, user sends again only failed files
+     * @param batchId the id of batch
+     * @param saved the count of saved files
+     * @param failed the names of files which couldn't be saved
+     * @param repairing the names of corrupted files whose chunks are requested again
+     * @throws IOException if an error occurs when writing
+     */
+    private void sendBatchAck(int batchId, int saved, List<String> failed, List<String> repairing) throws IOException {
+        lock.lock();
+        try {
+            codec.writeBatchAck(batchId, saved, failed, repairing);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends changes of list of files in the form of header=10, count of added files, their names,
+     * count of removed files and their names, user reading listing by pages gets only notice with header=28
+     * @param added the names of added files
+     * @param removed the names of removed files
+     * @throws IOException if an error occurs when writing
+     */
+    private void sendFilesDelta(List<String> added, List<String> removed) throws IOException {
+        lock.lock();
+        try {
+            if (pagedListing) codec.writeListingChanged(filesGeneration);
+            else codec.writeFilesDelta(added, removed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads name of file and answers with its versions kept in history
+     * @throws IOException if an error occurs when reading or writing
+     */
+    private void readVersionsRequest() throws IOException {
+        String filename = codec.readName();
+        List<Version> versions = storage.getVersions().list(filename);
+        lock.lock();
+        try {
+            codec.writeVersions(filename, versions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads query, cursor and maximal count of results and answers with page of files found by index
+     * Files saved or deleted just before may not be indexed yet
+     * @throws IOException if an error occurs when reading or writing
+     */
+    private void readSearch() throws IOException {
+        String query = codec.readName();
+        long cursor = codec.readLong();
+        int limit = Math.max(0, Math.min(codec.readInt(), 1000));
+        SearchIndex.Page page = search.query(query, cursor, limit);
+        lock.lock();
+        try {
+            codec.writeSearchResults(query, page.getCursor(), page.getEntries());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads name of file requested by client and sends the file in the background with header=39,
+     * so prefetching doesn't hold reading from this user
+     * @throws IOException if an error occurs when reading
+     */
+    private void readFetch() throws IOException {
+        String filename = codec.readName();
+        server.getFanOut().submit(() -> sendFetched(filename));
+    }
+
+    /**
+     * Sends requested file, files kept as files are taken from shared FileCache, missing file is reported as not found
+     * @param filename the name of file
+     */
+    private void sendFetched(String filename) {
+        FileEntry entry = snapshot.get(filename);
+        Path located = entry == null ? null : storage.locate(filename);
+        FileCache cache = FileCache.shared();
+        boolean cached = located != null && cache.accepts(located.toFile());
+        try (PooledBuffer pooled = entry == null || cached ? null : storage.read(filename)) {
+            ByteBuffer body = cached ? cache.get(located.toFile()) : pooled == null ? null : pooled.buffer();
+            lock.lock();
+            try {
+                codec.writeFetched(filename, entry == null ? 0 : entry.getModified(), body);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            events.publish(new StatusEvent("ERROR: Fetching " + filename + " for " + username));
+        }
+    }
+
+    /**
+     * Reads maximal count of files and answers with the most recently modified files in the form of header=41,
+     * client prefetches them
+     * @throws IOException if an error occurs when reading or writing
+     */
+    private void readRecentRequest() throws IOException {
+        int limit = Math.max(0, Math.min(codec.readInt(), 10_000));
+        PriorityQueue<FileEntry> newest = new PriorityQueue<>(Comparator.comparingLong(FileEntry::getModified));
+        for (FileEntry entry : snapshot.entries()) {
+            newest.add(entry);
+            if (newest.size() > limit) newest.poll();
+        }
+        List<FileEntry> recent = new ArrayList<>(newest);
+        recent.sort(Comparator.comparingLong(FileEntry::getModified).reversed());
+        lock.lock();
+        try {
+            codec.writeRecentFiles(recent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads order, filter, cursor and maximal count of files and answers with page of listing in the form of header=27
+     * Since then user gets notices of changes instead of whole lists of files
+     * @throws IOException if an error occurs when reading or writing
+     */
+    private void readListingRequest() throws IOException {
+        ListingQuery query = codec.readListingQuery();
+        long cursor = codec.readLong();
+        int limit = Math.max(0, Math.min(codec.readInt(), 10_000));
+        pagedListing = true;
+
+        int generation = filesGeneration;
+        FilesListing current = listing;
+        if (current == null || !current.answers(query, generation)) {
+            current = FilesListing.build(query, generation, snapshot);
+            listing = current;
+        }
+        int offset = (int) Math.min(Math.max(cursor, 0), current.size());
+        List<FileEntry> page = current.page(offset, limit);
+        long next = offset + page.size() < current.size() ? offset + page.size() : -1;
+        lock.lock();
+        try {
+            codec.writeListingPage(current.getGeneration(), current.size(), offset, next, page);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads name of file and id of its version, the version replaces current file by DiskExecutor,
+     * so current content is kept in history, and restored file is sent to user
+     * @throws IOException if an error occurs when reading
+     */
+    private void readRestoreRequest() throws IOException {
+        String filename = codec.readName();
+        long id = codec.readLong();
+        Version version = null;
+        for (Version candidate : storage.getVersions().list(filename)) {
+            if (candidate.getId() == id) version = candidate;
+        }
+        if (version == null) {
+            events.publish(new StatusEvent("ERROR WHEN RESTORING: " + filename));
+            return;
+        }
+
+        Version restored = version;
+        track(DiskExecutor.shared().submitAsync(diskKey(filename), () -> {
+            try (InputStream content = storage.getVersions().open(filename, id)) {
+                return storage.put(filename, content, restored.getSize());
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(false);
+            }
+        }).thenAcceptAsync(success -> {
+            if (!success) {
+                events.publish(new StatusEvent("ERROR WHEN RESTORING: " + filename));
+                return;
+            }
+            registerStored(new FileEntry(filename, restored.getSize(), 0, restored.getHash()));
+            try {
+                sendFilesDelta(List.of(filename), List.of());
+                sendOwnFile(filename);
+            } catch (IOException ignored) { }
+            events.publish(new StatusEvent("RESTORED: " + filename + " for " + username));
+            events.publish(new FilesEvent(username, this::getFilesList));
+        }, replies));
     }
 
     /**
@@ -112,30 +797,128 @@ public class User {
      * @throws IOException if an error occurs when reading
      */
     public void readFileToClient() throws IOException {
-        String filename = input.readUTF();
-        String receiver = input.readUTF();
-        server.getUserByName(receiver).sendFile(Paths.get(path, filename).toFile());
+        String filename = codec.readName();
+        String receiver = codec.readName();
+        if (!server.isReachable(receiver)) {
+            events.publish(new StatusEvent("ERROR: " + receiver + " isn't logged, " + filename + " not sent"));
+            return;
+        }
+        sendFileTo(filename, receiver);
+    }
+
+    /**
+     * Sends file of this user to another user, user logged on another node of cluster gets it relayed by that node
+     * @param filename the name of file
+     * @param receiver the name of receiver
+     * @throws IOException if file can't be read or sending fails
+     */
+    private void sendFileTo(String filename, String receiver) throws IOException {
+        User user = server.getUserByName(receiver);
+        if (user != null) {
+            user.sendFile(storage, filename);
+            return;
+        }
+        if (sendFromReplica(filename, receiver)) return;
+        try (PooledBuffer body = storage.read(filename)) {
+            server.sendFile(receiver, Paths.get(filename).getFileName().toString(), body.buffer());
+        }
+        events.publish(new StatusEvent("RELAYED: " + filename + " from " + username + " to " + receiver));
+    }
+
+    /**
+     * Asks node on which receiver is logged to send file from its replica, so file isn't read and relayed by this node
+     * @param filename the name of file
+     * @param receiver the name of receiver logged on another node
+     * @return false if the node doesn't keep the latest content of file
+     */
+    private boolean sendFromReplica(String filename, String receiver) {
+        Cluster cluster = server.getCluster();
+        String node = cluster == null ? null : cluster.locate(receiver);
+        if (replication == null || node == null || !replication.isCurrent(node, filename)) return false;
+        try {
+            cluster.send(node, link -> link.writeReplicaSend(username, filename, receiver));
+        } catch (IOException e) {
+            return false;
+        }
+        events.publish(new StatusEvent("REPLICA: " + filename + " from " + username + " to " + receiver + " by " + node));
+        return true;
+    }
+
+    /**
+     * Sends file of this user back to him under its name relative to his directory, so file lands at the same place
+     * of local folder, files kept as files are taken from shared FileCache
+     * @param filename the name of file
+     * @throws IOException if file can't be read or an error occurs when writing
+     */
+    private void sendOwnFile(String filename) throws IOException {
+        Path located = storage.locate(filename);
+        FileCache cache = FileCache.shared();
+        if (located != null && cache.accepts(located.toFile())) {
+            sendFile(filename, cache.get(located.toFile()));
+            return;
+        }
+        try (PooledBuffer body = storage.read(filename)) {
+            sendFile(filename, body.buffer());
+        }
+    }
+
+    /**
+     * Sends file stored in given storage, files kept as files are taken from shared FileCache
+     * @param source the storage of file's owner
+     * @param filename the name of file
+     * @throws IOException if file can't be read or an error occurs when writing
+     */
+    public void sendFile(StorageBackend source, String filename) throws IOException {
+        Path located = source.locate(filename);
+        if (located != null) {
+            sendFile(located.toFile());
+            return;
+        }
+        try (PooledBuffer body = source.read(filename)) {
+            sendFile(Paths.get(filename).getFileName().toString(), body.buffer());
+        }
     }
 
     /**
      * Sends file to DataOutputStream in the form of header=3, file's length, file's name and file's bytes
+     * Files are taken from shared FileCache, so sending the same file to many users reads it from disk once
      * This method is threadsafe thanks to ReentrantLock set on output stream
      * @param file the file handler
      * @throws IOException if an error occurs when writing
      */
     public void sendFile(File file) throws IOException {
-        try {
-            FileManager.waitTillFileIsReady(file);
-        } catch (InterruptedException ignored) {
+        FileCache cache = FileCache.shared();
+        if (cache.accepts(file)) {
+            sendFile(file.getName(), cache.get(file));
+        } else {
+            try {
+                FileManager.waitTillFileIsReady(file);
+            } catch (InterruptedException ignored) {
+            }
+            lock.lock();
+            try {
+                FileManager.writeFile(codec, file.getName(), file);
+            } finally {
+                lock.unlock();
+            }
+            events.publish(new StatusEvent("SENT: " + file.getName() + " to " + username));
         }
-        byte[] fileBytes = FileManager.readFileToByteArray(file);
+    }
+
+    /**
+     * Sends file given with buffer, the buffer may be shared by many users as its position isn't changed
+     * @param fileName the name of file
+     * @param body the buffer containing file's data
+     * @throws IOException if an error occurs when writing
+     */
+    public void sendFile(String fileName, ByteBuffer body) throws IOException {
         lock.lock();
-        output.writeByte(3);
-        output.writeInt(fileBytes.length);
-        output.writeUTF(file.getName());
-        output.write(fileBytes, 0, fileBytes.length);
-        lock.unlock();
-        Platform.runLater(() -> controller.changeLabel("SENT: " + file.getName() + " to " + username));
+        try {
+            codec.writeFile(fileName, body);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: " + fileName + " to " + username));
     }
 
     /**
@@ -143,50 +926,469 @@ public class User {
      * @throws IOException
      */
     private void readFile() throws IOException {
-        int fileLength = input.readInt();
-        String fileName = input.readUTF();
-        byte[] fileBytes = new byte[fileLength];
-        input.readNBytes(fileBytes, 0, fileLength);
-        boolean success = FileManager.saveFileFromByteArray(fileBytes, path, fileName);
-        if(success) {
-            Platform.runLater(() -> controller.changeLabel("SAVED: " + fileName));
-            filesList.add(fileName);
+        int fileLength = codec.readInt();
+        String fileName = codec.readName();
+        PooledBuffer body = codec.readBody(fileLength, integrity);
+        if (!integrity.isIntact()) {
+            try (body) {
+                requestRepair(expectedEntry(fileName, fileLength), body.buffer(), integrity.getCorrupted());
+            }
+            return;
         }
-        else Platform.runLater(() -> controller.changeLabel("ERROR WHEN SAVING: " + fileName));
+        track(storeFile(fileName, body, integrity.getHash()).thenAcceptAsync(success -> {
+            if(success) events.publish(new StatusEvent("SAVED: " + fileName));
+            else events.publish(new StatusEvent("ERROR WHEN SAVING: " + fileName));
+            filesChanged();
+        }, replies));
+    }
+
+    /**
+     * Hands saving of file in user's directory over to DiskExecutor, file is added to list of files and snapshot when it's saved
+     * @param fileName the name of file
+     * @param body the buffer containing file's data, it's closed when file is written
+     * @param hash the hash of file's data computed while it was read
+     * @return the future completed with success of operation
+     * @throws IOException if waiting for DiskExecutor was interrupted
+     */
+    private CompletableFuture<Boolean> storeFile(String fileName, PooledBuffer body, byte[] hash) throws IOException {
+        try {
+            return storeFile(fileName, body.buffer().remaining(), hash, () -> {
+                try (body) {
+                    return storage.put(fileName, body.buffer());
+                }
+            });
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands saving of file streamed from local file over to DiskExecutor, so file is never held in memory as a whole
+     * @param fileName the name of file
+     * @param file the file whose content is saved, it's kept
+     * @param hash the hash of file's data
+     * @return the future completed with success of operation
+     * @throws IOException if waiting for DiskExecutor was interrupted
+     */
+    private CompletableFuture<Boolean> storeFile(String fileName, File file, byte[] hash) throws IOException {
+        long length = file.length();
+        return storeFile(fileName, length, hash, () -> {
+            try (InputStream content = new FileInputStream(file)) {
+                return storage.put(fileName, content, length);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(false);
+            }
+        });
+    }
+
+    /**
+     * Hands given save over to DiskExecutor and registers file when it's saved
+     */
+    private CompletableFuture<Boolean> storeFile(String fileName, long length, byte[] hash,
+                                                 Supplier<CompletableFuture<Boolean>> save) throws IOException {
+        return track(DiskExecutor.shared().submitAsync(diskKey(fileName), save).thenApply(success -> {
+            if (success) registerStored(new FileEntry(fileName, length, 0, hash));
+            return success;
+        }));
+    }
+
+    /**
+     * Sends list of files to user and updates GUI after files were saved or deleted
+     */
+    private void filesChanged() {
+        try {
+            sendFilesList();
+        } catch (IOException ignored) { }
+        events.publish(new FilesEvent(username, this::getFilesList));
+    }
+
+    /**
+     * Checks result of disk operation without waiting
+     * @param operation the completed operation
+     * @return true if operation succeeded
+     */
+    private static boolean succeeded(CompletableFuture<Boolean> operation) {
+        return operation.exceptionally(error -> false).join();
+    }
+
+    /**
+     * Registers file saved in storage, its size and modification time are taken from storage
+     * @param stored the entry of file with hash
+     */
+    private void registerStored(FileEntry stored) {
+        FileEntry entry = storage.stat(stored.getName());
+        if (entry == null) return;
+        registerFile(new FileEntry(stored.getName(), entry.getSize(), entry.getModified(), stored.getHash()));
+    }
+
+    /**
+     * Counts disk operation of user until it's completed together with registering its result,
+     * so release waits for it before journal and storage are closed
+     * @param operation the operation
+     * @return the same operation
+     */
+    private <T> CompletableFuture<T> track(CompletableFuture<T> operation) {
+        diskOperations.incrementAndGet();
+        operation.whenComplete((result, error) -> operationEnded());
+        return operation;
+    }
+
+    /**
+     * Counts down disk operation, the count starts at one held by connection until release,
+     * so it drops to zero only when connection is released and all its operations are completed
+     */
+    private void operationEnded() {
+        if (diskOperations.decrementAndGet() == 0) drained.complete(null);
+    }
+
+    /**
+     * Gets key under which DiskExecutor orders operations on file
+     * @param fileName the name of file
+     * @return the key unique across users
+     */
+    private String diskKey(String fileName) {
+        return storage.getLocation() + "/" + fileName;
+    }
+
+    /**
+     * Creates entry of file received corrupted with hash computed by user
+     * @param fileName the name of file
+     * @param length the length of file
+     * @return the entry of file
+     */
+    private FileEntry expectedEntry(String fileName, int length) {
+        return new FileEntry(fileName, length, 0, integrity.getExpected());
+    }
+
+    /**
+     * Adds saved file to list of files and snapshot, replaced file is listed only once and its cached content is dropped
+     * @param entry the entry of saved file
+     */
+    private synchronized void registerFile(FileEntry entry) {
+        Path located = storage.locate(entry.getName());
+        if (located != null) FileCache.shared().invalidate(located.toFile());
+        if (snapshot.get(entry.getName()) == null) filesList.add(entry.getName());
+        snapshot.put(entry);
+        journal.put(entry);
+        if (replication != null) replication.put(entry.getName());
+        snapshotDirty = true;
+        filesGeneration++;
+        search.update(entry.getName());
     }
 
     /**
      * Reads greeting from client containing clients username
      */
     private void readGreeting() throws IOException {
-        this.username = input.readUTF();
-        Platform.runLater(() -> controller.addUserToUsersList(this.username));
-        Platform.runLater(() -> controller.changeLabel("JOINED: " + this.username.toUpperCase()));
+        String name = codec.readName();
+        Cluster cluster = server.getCluster();
+        String home = cluster == null ? null : cluster.homeOf(name);
+        if (home != null && !home.equals(cluster.getSelf())) {
+            redirect(home);
+            return;
+        }
+        if (!replacePrevious(name)) return;
+        Path saved = server.getSnapshotFile(username);
+        if (saved != null) {
+            restoreDirectory(saved);
+        } else {
+            createDirectory();
+            takeOverReplica();
+        }
+        openSession();
+        events.publish(new StatusEvent("JOINED: " + this.username.toUpperCase()));
         server.sendBroadcastUsersList();
+        if (saved != null) {
+            sendFilesList();
+            events.publish(new FilesEvent(username, this::getFilesList));
+        }
+    }
+
+    /**
+     * Logs user in under given name, connection logged under the same name before is closed and this waits
+     * until it's released, so directory, journal and snapshot of user are never used by two connections
+     * The name is reserved first and released connection is awaited outside of lock, so other logins don't wait
+     * @param name the name of user
+     * @return false if another connection logged in under the same name meanwhile
+     */
+    private boolean replacePrevious(String name) {
+        User previous;
+        synchronized (LOGINS) {
+            previous = LOGINS.put(name, this);
+        }
+        if (previous != null) {
+            previous.disconnect("REPLACED");
+            previous.closed.join();
+        }
+        synchronized (LOGINS) {
+            if (LOGINS.get(name) != this) return false;
+            this.username = name;
+            return true;
+        }
+    }
+
+    /**
+     * Fills new directory of user whose node failed with files of replica kept by this node
+     * Files are saved the same way as uploaded files, so they are listed, journaled and replicated further
+     */
+    private void takeOverReplica() {
+        Cluster cluster = server.getCluster();
+        Replica replica = cluster == null ? null : cluster.takeOver(username);
+        if (replica == null) return;
+        List<CompletableFuture<Boolean>> copies = new ArrayList<>();
+        for (FileEntry entry : replica.entries()) {
+            File file = replica.locate(entry.getName());
+            if (file == null) continue;
+            try {
+                copies.add(storeFile(entry.getName(), file, entry.getHash()));
+            } catch (IOException e) {
+                events.publish(new StatusEvent("ERROR: Taking " + entry.getName() + " of " + username + " from replica"));
+            }
+        }
+        if (copies.isEmpty()) return;
+        events.publish(new StatusEvent("TAKING OVER: " + copies.size() + " files of " + username + " from replica"));
+        track(CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((result, error) -> filesChanged(), replies));
+    }
+
+    /**
+     * Redirects user to node of cluster which keeps its directory in the form of header=29, node's host and node's port
+     * and closes connection
+     * @param node the address of node in the form of host:port
+     * @throws IOException if an error occurs when writing
+     */
+    private void redirect(String node) throws IOException {
+        int separator = node.lastIndexOf(':');
+        lock.lock();
+        try {
+            codec.writeRedirect(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        } finally {
+            lock.unlock();
+            socket.close();
+            server.removeConnection(this);
+        }
+    }
+
+    /**
+     * Generates random session token and sends it to user in the form of header=17 and token
+     * Additional connections of striped transfers authenticate with this token
+     * @throws IOException if an error occurs when writing
+     */
+    private void openSession() throws IOException {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        session = token.toString();
+        server.registerSession(session, this);
+        lock.lock();
+        try {
+            codec.writeSessionToken(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restores directory which belonged to user in previous session
+     * Snapshot is brought up to date by replaying journal, so restart costs only the changes since the last checkpoint
+     * Without journal, or with system property filemanager.journal.verify, snapshot is reconciled with directory,
+     * so only files changed on disk are hashed again
+     * Parts left by uploads interrupted by crash are removed
+     * @param saved the path to user's snapshot file
+     */
+    private void restoreDirectory(Path saved) {
+        String name = saved.getFileName().toString();
+        this.path = Paths.get(cloudPath, name.substring(0, name.length() - ".snapshot".length())).toString();
+        this.snapshotFile = saved;
+        Snapshot loaded = Snapshot.load(saved, username);
+        StateJournal.Recovery recovery = StateJournal.replay(journalFile(), loaded);
+        if (recovery.isFound()) StripedUpload.removeParts(path, recovery.getUnfinished().keySet());
+        else StripedUpload.removeParts(path);
+        this.storage = openStorage();
+        this.snapshot = recovery.isFound() && !Boolean.getBoolean("filemanager.journal.verify") ? loaded : storage.reconcile(loaded);
+        this.journal = openJournal();
+        this.filesList = new ArrayList<>(snapshot.names());
+        this.replication = startReplication();
+        this.search = new SearchIndex(storage);
+        search.updateAll(filesList);
+        events.publish(new StatusEvent("Restored directory for client " + username));
+    }
+
+    /**
+     * Saves snapshot of user's directory if it has changed since the last save, journal of saved changes is dropped
+     */
+    public void saveSnapshot() {
+        if (!snapshotDirty || snapshot == null) return;
+        snapshotDirty = false;
+        try {
+            journal.checkpoint(snapshot, snapshotFile);
+        } catch (IOException e) {
+            snapshotDirty = true;
+        }
+    }
+
+    /**
+     * @return the path to journal of user's directory in the form of client_N.journal
+     */
+    private Path journalFile() {
+        return Paths.get(path + ".journal");
+    }
+
+    /**
+     * Saves snapshot and starts journal of user's directory
+     * @return the journal
+     */
+    private StateJournal openJournal() {
+        try {
+            return StateJournal.open(journalFile(), WritePipeline.shared().getDurability(), snapshot, snapshotFile);
+        } catch (IOException e) {
+            throw new FolderExistsException("Journal of directory " + path + " can't be written", e);
+        }
+    }
+
+    /**
+     * Starts replication of user's directory to follower nodes if server is node of cluster
+     * @return the log of replication or null if directory isn't replicated
+     */
+    private ReplicationLog startReplication() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? null : cluster.replicate(username, storage, this, snapshot::entries);
+    }
+
+    /**
+     * @return the log of replication of user's directory or null if it isn't replicated
+     */
+    public ReplicationLog getReplication() {
+        return replication;
     }
 
     /**
      * Reads goodbye from client which stands for "client is stopping his work"
      */
     private void readGoodbye() {
-        Platform.runLater(() -> controller.removeUserFromUsersList(this.username));
-        Platform.runLater(() -> controller.changeLabel("LEFT: " + this.username.toUpperCase()));
-        server.removeFromUsersList(this.username);
-        reader.interrupt();
+        release("LEFT");
+    }
+
+    /**
+     * Reads heartbeat of client and answers it with header=43
+     * @throws IOException if an error occurs when reading or writing
+     */
+    private void readPing() throws IOException {
+        long sent = codec.readLong();
+        lock.lock();
+        try {
+            codec.writePong(sent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends heartbeat to logged user in the form of header=42 and current time, client answers with header=43
+     * Heartbeat is skipped while another message is being written, the message keeps connection busy anyway
+     */
+    public void sendPing() {
+        if (username == null || released.get() || !lock.tryLock()) return;
+        try {
+            codec.writePing(System.currentTimeMillis());
+        } catch (IOException ignored) {
+            // broken connection is released by reader
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes connection of user which stopped answering, reader thread ends and releases resources of user,
+     * so caller never waits for messages written to other users
+     * @param reason the reason shown in status
+     */
+    public void disconnect(String reason) {
+        closeReason = reason;
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Closes connection and releases everything user holds: session, unfinished uploads, replication, search index,
+     * journal and storage, disk operations of user are awaited and snapshot is saved first
+     * User is removed from list of users and the others get new list, this is done once however connection ends
+     * @param reason the reason shown in status
+     */
+    private void release(String reason) {
+        if (!released.compareAndSet(false, true)) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+        if (username == null) {
+            server.removeConnection(this);
+            releaseName();
+            closed.complete(null);
+            return;
+        }
+        if (session != null) server.removeSession(session);
+        for (Map.Entry<Integer, StripedUpload> upload : uploads.entrySet()) {
+            upload.getValue().abort();
+            journal.endTransfer(upload.getKey());
+        }
+        uploads.clear();
+        operationEnded();
+        drained.join();
+        replies.shutdown();
+        if (replication != null) replication.close();
+        saveSnapshot();
+        if (search != null) search.close();
+        try {
+            if (journal != null) journal.close();
+            if (storage != null) storage.close();
+        } catch (IOException ignored) { }
+        events.publish(new StatusEvent(reason + ": " + this.username.toUpperCase()));
+        server.removeConnection(this);
+        releaseName();
+        closed.complete(null);
         server.sendBroadcastUsersList();
     }
 
+    /**
+     * Frees name reserved by this connection, so the next login under it doesn't wait for anything
+     */
+    private void releaseName() {
+        synchronized (LOGINS) {
+            LOGINS.values().remove(this);
+        }
+    }
+
+    /**
+     * @return the count of milliseconds since client sent anything
+     */
+    public long getIdleMillis() {
+        return activity.getIdleMillis();
+    }
+
+    /**
+     * @return the round trip time of the last answered heartbeat in milliseconds or -1 if none was answered yet
+     */
+    public long getRoundTrip() {
+        return roundTrip;
+    }
+
     /**
      * Reads files to be deleted from server
      * @throws IOException
      */
     private void readDeleted() throws IOException {
-        int deletedCount = input.readInt();
+        int deletedCount = codec.readInt();
 
+        List<CompletableFuture<Boolean>> deletes = new ArrayList<>();
         for(int i=0; i<deletedCount; ++i) {
-            String fileName = input.readUTF();
-            removeFileFromServer(fileName);
+            String fileName = codec.readName();
+            deletes.add(removeFileFromServer(fileName));
         }
+        track(CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((result, error) -> filesChanged(), replies));
     }
 
     /**
@@ -199,18 +1401,31 @@ public class User {
 
     /**
      * Creates directory for user in the form of user_%POSSIBLE_ID%
-     * Sets user's path
+     * If another user has taken the same ID in the meantime, next ID is tried
+     * Sets user's path and snapshot file
      */
     private void createDirectory() {
-        generateID();
-        String postfix = "client_" + Integer.toString(id);
-        this.path = Paths.get(cloudPath, postfix).toString();
-        Path pathHandle = Paths.get(this.path);
-        try {
-            Files.createDirectory(pathHandle);
-            Platform.runLater(() -> controller.changeLabel("Created directory for client " + Integer.toString(id)));
-        } catch (IOException e) {
-            throw new FolderExistsException("Folder of given path already exists");
+        while (true) {
+            generateID();
+            String postfix = "client_" + Integer.toString(id);
+            try {
+                Files.createDirectory(Paths.get(cloudPath, postfix));
+            } catch (FileAlreadyExistsException e) {
+                id++;
+                continue;
+            } catch (IOException e) {
+                throw new FolderExistsException("Folder of given path already exists");
+            }
+            this.path = Paths.get(cloudPath, postfix).toString();
+            this.snapshotFile = Paths.get(cloudPath, postfix + ".snapshot");
+            this.snapshot = new Snapshot(username);
+            this.storage = openStorage();
+            this.journal = openJournal();
+            this.replication = startReplication();
+            this.search = new SearchIndex(storage);
+            server.registerSnapshotFile(username, snapshotFile);
+            events.publish(new StatusEvent("Created directory for client " + Integer.toString(id)));
+            return;
         }
     }
 
@@ -228,15 +1443,36 @@ public class User {
     }
 
     /**
-     * Removes file given with fileName from server
-     * @param fileName
+     * Hands removing of file given with fileName from server over to DiskExecutor
+     * @param fileName the name of file
+     * @return the future completed with success of operation
+     * @throws IOException if waiting for DiskExecutor was interrupted
+     */
+    private CompletableFuture<Boolean> removeFileFromServer(String fileName) throws IOException {
+        return track(DiskExecutor.shared().submit(diskKey(fileName), () -> {
+            boolean success = deleteFile(fileName);
+            if(success) events.publish(new StatusEvent("DELETED: " + fileName));
+            return success;
+        }));
+    }
+
+    /**
+     * Deletes file from user's directory and removes it from list of files and snapshot
+     * @param fileName the name of file
+     * @return the success of operation
      */
-    private void removeFileFromServer(String fileName) {
-        String fullPath = Paths.get(path, fileName).toString();
-        File file = new File(fullPath);
-        boolean success = file.delete();
-        if(success) Platform.runLater(() ->controller.changeLabel("DELETED: " + fileName));
+    private synchronized boolean deleteFile(String fileName) {
+        Path located = storage.locate(fileName);
+        boolean success = storage.delete(fileName);
+        if (located != null) FileCache.shared().invalidate(located.toFile());
         filesList.remove(fileName);
+        snapshot.remove(fileName);
+        journal.remove(fileName);
+        if (replication != null) replication.remove(fileName);
+        snapshotDirty = true;
+        filesGeneration++;
+        search.delete(fileName);
+        return success;
     }
 
 
@@ -246,6 +1482,7 @@ public class User {
     private void createStreams() {
         createInputStream();
         createOutputStream();
+        codec = new MessageCodec(input, output);
     }
 
 
@@ -254,7 +1491,9 @@ public class User {
      */
     private void createInputStream() {
         try {
-            input = new DataInputStream(socket.getInputStream());
+            TransportConfig.getDefault().configure(socket);
+            activity = new ActivityInputStream(socket.getInputStream());
+            input = TransportConfig.getDefault().input(activity);
         } catch (IOException e) {
             throw new StreamException("Couldn't create input stream");
         }
@@ -265,7 +1504,7 @@ public class User {
      */
     private void createOutputStream() {
         try {
-            output = new DataOutputStream(socket.getOutputStream());
+            output = TransportConfig.getDefault().output(socket);
         } catch (IOException e) {
             throw new StreamException("Couldn't create output stream");
         }
@@ -274,17 +1513,27 @@ public class User {
 
     /**
      * Sends list of files in server's directory to user
+     * User reading listing by pages gets only notice with header=28, so it fetches pages it shows
      * @throws IOException if an error occurs when writing
      */
     public void sendFilesList() throws IOException {
+        if (pagedListing) {
+            lock.lock();
+            try {
+                codec.writeListingChanged(filesGeneration);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        List<String> files = getFilesList();
         lock.lock();
-        output.writeByte(4);
-        output.writeInt(filesList.size());
-        for(String file: filesList) {
-            output.writeUTF(file);
+        try {
+            codec.writeNames(4, files);
+        } finally {
+            lock.unlock();
         }
-        lock.unlock();
-        Platform.runLater(()->controller.changeLabel("SENT: " + "list of files to " + username));
+        events.publish(new StatusEvent("SENT: " + "list of files to " + username));
     }
 
 
@@ -295,13 +1544,48 @@ public class User {
      */
     public void sendUsersList(List<String> usersList) throws IOException {
         lock.lock();
-        output.writeByte(6);
-        output.writeInt(usersList.size());
-        for(String user: usersList) {
-            output.writeUTF(user);
+        try {
+            codec.writeNames(6, usersList);
+        } finally {
+            lock.unlock();
+        }
+        events.publish(new StatusEvent("SENT: " + "list of users to " + username));
+    }
+
+    /**
+     * Opens storage of user's directory chosen with system property filemanager.storage together with its history
+     * @return the storage
+     */
+    private VersionedStorage openStorage() {
+        try {
+            return new VersionedStorage(StorageBackend.open(path), VersionStore.open(path), this::currentHash);
+        } catch (IOException e) {
+            throw new FolderExistsException("Couldn't open storage of " + path, e);
         }
-        lock.unlock();
-        Platform.runLater(()->controller.changeLabel("SENT: " + "list of users to " + username));
+    }
+
+    /**
+     * Gets hash of file's current content known from snapshot
+     * @param fileName the name of file
+     * @return the hash or null if file isn't known
+     */
+    private byte[] currentHash(String fileName) {
+        FileEntry entry = snapshot == null ? null : snapshot.get(fileName);
+        return entry == null ? null : entry.getHash();
+    }
+
+    /**
+     * @return storage in which user's files are kept
+     */
+    public StorageBackend getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return copy of list of files in user's directory
+     */
+    private synchronized List<String> getFilesList() {
+        return new ArrayList<>(filesList);
     }
 
     /**
@@ -0,0 +1,413 @@
+package server.models;
+
+import common.Durability;
+import common.FileEntry;
+import common.PooledBuffer;
+import common.SegmentLogBackend;
+import common.StorageBackend;
+import common.Version;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps history of user's files, versions are saved when file is overwritten or deleted
+ * Content of version is split by ContentChunker and only chunks which aren't stored yet are written,
+ * so versions differing by a few bytes share almost all chunks
+ * Chunks and recipes of versions are kept in segment log next to user's directory in the form of
+ * "c/chunk's hash" and "v/version's id", the recipe holds name, time, size, hash and hashes of chunks
+ * Versions beyond filemanager.versions.keep newest of each file and versions older than filemanager.versions.days
+ * are dropped by compactor thread every filemanager.versions.compactInterval seconds together with unused chunks
+ * Recently archived and restored versions up to filemanager.versions.cacheBytes are kept reconstructed in memory
+ * @author Jakub Reszka
+ */
+public class VersionStore implements Closeable {
+
+    private static final int KEEP = Integer.getInteger("filemanager.versions.keep", 20);
+    private static final long MAX_AGE = Long.getLong("filemanager.versions.days", 30L) * 24 * 3600 * 1000;
+    private static final long COMPACT_INTERVAL = Long.getLong("filemanager.versions.compactInterval", 300L) * 1000;
+    private static final long CACHE_BYTES = Long.getLong("filemanager.versions.cacheBytes", 64L * 1024 * 1024);
+    private static final int CACHE_ENTRY_LIMIT = 8 * 1024 * 1024;
+
+    private static final Set<VersionStore> stores = ConcurrentHashMap.newKeySet();
+    private static final Map<String, byte[]> hot = new LinkedHashMap<>(16, 0.75f, true);
+    private static long hotBytes = 0;
+    private static Thread compactor = null;
+
+    private final SegmentLogBackend log;
+    private final Map<String, TreeMap<Long, Version>> versions = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private long nextId = 1;
+
+    /**
+     * Opens history kept in given log, references of chunks are counted from recipes and unused chunks are removed
+     * @param log the path to log
+     * @throws IOException if log can't be opened or read
+     */
+    public VersionStore(String log) throws IOException {
+        this.log = new SegmentLogBackend(Paths.get(log), Durability.NONE);
+        List<String> chunks = new ArrayList<>();
+        for (String name : this.log.list()) {
+            if (name.startsWith("c/")) {
+                chunks.add(name.substring(2));
+                continue;
+            }
+            long id = Long.parseLong(name.substring(2));
+            Recipe recipe = readRecipe(id);
+            versions.computeIfAbsent(recipe.version.getName(), key -> new TreeMap<>()).put(id, recipe.version);
+            for (String chunk : recipe.chunks) {
+                references.merge(chunk, 1, Integer::sum);
+            }
+            nextId = Math.max(nextId, id + 1);
+        }
+        for (String chunk : chunks) {
+            if (!references.containsKey(chunk)) this.log.delete("c/" + chunk);
+        }
+        stores.add(this);
+        startCompactor();
+    }
+
+    /**
+     * Opens history of user's directory
+     * @param path the path of user's directory
+     * @return the history
+     * @throws IOException if history can't be opened
+     */
+    public static VersionStore open(String path) throws IOException {
+        return new VersionStore(path + ".versions.log");
+    }
+
+    /**
+     * Recipe of version, hashes of chunks in order of content
+     */
+    private static class Recipe {
+        final Version version;
+        final List<String> chunks;
+
+        Recipe(Version version, List<String> chunks) {
+            this.version = version;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * Saves current content of file as version before it's overwritten or deleted
+     * If the same content is already kept as version of file, that version is only moved to the front of history
+     * @param name the name of file
+     * @param hash the hash of current content or null if unknown
+     * @param storage the storage holding current content
+     * @return true if version was saved or file doesn't exist
+     */
+    public synchronized boolean archive(String name, byte[] hash, StorageBackend storage) {
+        FileEntry current = storage.stat(name);
+        if (current == null) return true;
+        try {
+            Version same = hash == null ? null : find(name, hash);
+            if (same != null) {
+                Recipe recipe = readRecipe(same.getId());
+                Version version = new Version(nextId++, name, System.currentTimeMillis(), same.getSize(), same.getHash());
+                writeRecipe(new Recipe(version, recipe.chunks));
+                for (String chunk : recipe.chunks) {
+                    references.merge(chunk, 1, Integer::sum);
+                }
+                byte[] cached = cached(same.getId());
+                dropVersion(same.getId(), name);
+                if (cached != null) cache(version.getId(), cached);
+                log.flush();
+                return true;
+            }
+
+            MessageDigest digest = createDigest();
+            MessageDigest chunkDigest = createDigest();
+            List<String> chunks = new ArrayList<>();
+            Set<String> written = new HashSet<>();
+            ByteArrayOutputStream whole = current.getSize() <= CACHE_ENTRY_LIMIT ? new ByteArrayOutputStream((int) current.getSize()) : null;
+            long size;
+            try (InputStream content = storage.get(name)) {
+                size = ContentChunker.split(content, (bytes, length) -> {
+                    digest.update(bytes, 0, length);
+                    if (whole != null) whole.write(bytes, 0, length);
+                    chunkDigest.update(bytes, 0, length);
+                    String chunk = toHex(chunkDigest.digest());
+                    if (!references.containsKey(chunk) && written.add(chunk)
+                            && !log.put("c/" + chunk, ByteBuffer.wrap(bytes, 0, length)).join())
+                        throw new IOException("Chunk of " + name + " couldn't be stored");
+                    chunks.add(chunk);
+                });
+            }
+            Version version = new Version(nextId++, name, System.currentTimeMillis(), size, digest.digest());
+            writeRecipe(new Recipe(version, chunks));
+            for (String chunk : chunks) {
+                references.merge(chunk, 1, Integer::sum);
+            }
+            log.flush();
+            if (whole != null) cache(version.getId(), whole.toByteArray());
+            applyRetention(name);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param name the name of file
+     * @return versions of file from the newest
+     */
+    public synchronized List<Version> list(String name) {
+        TreeMap<Long, Version> history = versions.get(name);
+        return history == null ? new ArrayList<>() : new ArrayList<>(history.descendingMap().values());
+    }
+
+    /**
+     * Opens content of version, recent versions are read from memory, the rest is reconstructed from chunks
+     * @param name the name of file
+     * @param id the id of version
+     * @return the content
+     * @throws IOException if version doesn't exist or can't be read
+     */
+    public synchronized InputStream open(String name, long id) throws IOException {
+        TreeMap<Long, Version> history = versions.get(name);
+        Version version = history == null ? null : history.get(id);
+        if (version == null) throw new FileNotFoundException(name + " has no version " + id);
+        byte[] cached = cached(id);
+        if (cached != null) return new ByteArrayInputStream(cached);
+
+        List<String> chunks = readRecipe(id).chunks;
+        if (version.getSize() > CACHE_ENTRY_LIMIT) return new ChunkStream(chunks);
+        try (InputStream content = new ChunkStream(chunks)) {
+            byte[] bytes = content.readAllBytes();
+            cache(id, bytes);
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * Finds version of file with given content
+     */
+    private Version find(String name, byte[] hash) {
+        TreeMap<Long, Version> history = versions.get(name);
+        if (history == null) return null;
+        for (Version version : history.values()) {
+            if (Arrays.equals(version.getHash(), hash)) return version;
+        }
+        return null;
+    }
+
+    /**
+     * Drops versions of all files which aren't retained anymore
+     * @return the count of dropped versions
+     */
+    public synchronized int applyRetention() {
+        int dropped = 0;
+        for (String name : new ArrayList<>(versions.keySet())) {
+            dropped += applyRetention(name);
+        }
+        try {
+            log.flush();
+        } catch (IOException ignored) { }
+        return dropped;
+    }
+
+    /**
+     * Drops versions of file beyond KEEP newest and older than MAX_AGE
+     */
+    private int applyRetention(String name) {
+        TreeMap<Long, Version> history = versions.get(name);
+        if (history == null) return 0;
+        long oldest = System.currentTimeMillis() - MAX_AGE;
+        List<Long> expired = new ArrayList<>();
+        int position = 0;
+        for (Version version : history.descendingMap().values()) {
+            if (position++ >= KEEP || version.getCreated() < oldest) expired.add(version.getId());
+        }
+        for (long id : expired) {
+            try {
+                dropVersion(id, name);
+            } catch (IOException ignored) { }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Removes recipe of version and chunks which aren't used by other versions
+     */
+    private void dropVersion(long id, String name) throws IOException {
+        List<String> chunks = readRecipe(id).chunks;
+        log.delete("v/" + id);
+        TreeMap<Long, Version> history = versions.get(name);
+        history.remove(id);
+        if (history.isEmpty()) versions.remove(name);
+        for (String chunk : chunks) {
+            if (references.merge(chunk, -1, Integer::sum) <= 0) {
+                references.remove(chunk);
+                log.delete("c/" + chunk);
+            }
+        }
+        uncache(id);
+    }
+
+    private void writeRecipe(Recipe recipe) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        Version version = recipe.version;
+        output.writeUTF(version.getName());
+        output.writeLong(version.getCreated());
+        output.writeLong(version.getSize());
+        output.writeByte(version.getHash().length);
+        output.write(version.getHash());
+        output.writeInt(recipe.chunks.size());
+        for (String chunk : recipe.chunks) {
+            output.writeUTF(chunk);
+        }
+        if (!log.put("v/" + version.getId(), ByteBuffer.wrap(bytes.toByteArray())).join())
+            throw new IOException("Version of " + version.getName() + " couldn't be stored");
+        versions.computeIfAbsent(version.getName(), key -> new TreeMap<>()).put(version.getId(), version);
+    }
+
+    private Recipe readRecipe(long id) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(log.get("v/" + id)))) {
+            String name = input.readUTF();
+            long created = input.readLong();
+            long size = input.readLong();
+            byte[] hash = new byte[input.readUnsignedByte()];
+            input.readFully(hash);
+            int count = input.readInt();
+            List<String> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                chunks.add(input.readUTF());
+            }
+            return new Recipe(new Version(id, name, created, size, hash), chunks);
+        }
+    }
+
+    /**
+     * Stream reading chunks of version one after another
+     */
+    private class ChunkStream extends InputStream {
+
+        private final Iterator<String> chunks;
+        private PooledBuffer current = null;
+
+        ChunkStream(List<String> chunks) {
+            this.chunks = chunks.iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            while (current == null || !current.buffer().hasRemaining()) {
+                if (current != null) current.close();
+                current = null;
+                if (!chunks.hasNext()) return -1;
+                current = log.read("c/" + chunks.next());
+            }
+            int count = Math.min(length, current.buffer().remaining());
+            current.buffer().get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) current.close();
+            current = null;
+        }
+    }
+
+    private String cacheKey(long id) {
+        return log.getLocation() + "#" + id;
+    }
+
+    private byte[] cached(long id) {
+        synchronized (hot) {
+            return hot.get(cacheKey(id));
+        }
+    }
+
+    /**
+     * Puts reconstructed version in memory, the least recently used versions are evicted
+     */
+    private void cache(long id, byte[] bytes) {
+        if (bytes.length > CACHE_ENTRY_LIMIT) return;
+        synchronized (hot) {
+            byte[] previous = hot.put(cacheKey(id), bytes);
+            hotBytes += bytes.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> eldest = hot.values().iterator();
+            while (hotBytes > CACHE_BYTES && eldest.hasNext()) {
+                hotBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private void uncache(long id) {
+        synchronized (hot) {
+            byte[] previous = hot.remove(cacheKey(id));
+            if (previous != null) hotBytes -= previous.length;
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Starts daemonic thread which applies retention policy to all open histories
+     */
+    private static synchronized void startCompactor() {
+        if (compactor != null) return;
+        compactor = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(COMPACT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (VersionStore store : stores) {
+                    store.applyRetention();
+                }
+            }
+        }, "version-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * @return statistics of history in the form of "versions=N chunks=N log statistics"
+     */
+    public synchronized String getStats() {
+        int count = 0;
+        for (TreeMap<Long, Version> history : versions.values()) {
+            count += history.size();
+        }
+        return "versions=" + count + " chunks=" + references.size() + " " + log.getStats();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        stores.remove(this);
+        log.flush();
+        log.close();
+    }
+}
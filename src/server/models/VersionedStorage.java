@@ -0,0 +1,116 @@
+package server.models;
+
+import common.FileEntry;
+import common.PooledBuffer;
+import common.Snapshot;
+import common.StorageBackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * This class saves current content of file in VersionStore before file is overwritten or deleted in wrapped storage
+ * File isn't replaced if its current content couldn't be saved in history
+ * @author Jakub Reszka
+ */
+public class VersionedStorage implements StorageBackend {
+
+    private final StorageBackend storage;
+    private final VersionStore versions;
+    private final Function<String, byte[]> hashes;
+
+    /**
+     * Constructs storage keeping history of files
+     * @param storage the wrapped storage
+     * @param versions the history of files
+     * @param hashes the function giving known hash of file's current content or null, so unchanged content isn't read
+     */
+    public VersionedStorage(StorageBackend storage, VersionStore versions, Function<String, byte[]> hashes) {
+        this.storage = storage;
+        this.versions = versions;
+        this.hashes = hashes;
+    }
+
+    private boolean archive(String name) {
+        return versions.archive(name, hashes.apply(name), storage);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String name, ByteBuffer body) {
+        if (!archive(name)) return CompletableFuture.completedFuture(false);
+        return storage.put(name, body);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String name, InputStream content, long length) {
+        if (!archive(name)) return CompletableFuture.completedFuture(false);
+        return storage.put(name, content, length);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putFile(String name, Path file) {
+        if (!archive(name)) return CompletableFuture.completedFuture(false);
+        return storage.putFile(name, file);
+    }
+
+    @Override
+    public InputStream get(String name) throws IOException {
+        return storage.get(name);
+    }
+
+    @Override
+    public PooledBuffer read(String name) throws IOException {
+        return storage.read(name);
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return archive(name) && storage.delete(name);
+    }
+
+    @Override
+    public List<String> list() {
+        return storage.list();
+    }
+
+    @Override
+    public FileEntry stat(String name) {
+        return storage.stat(name);
+    }
+
+    @Override
+    public Path locate(String name) {
+        return storage.locate(name);
+    }
+
+    @Override
+    public Snapshot reconcile(Snapshot previous) {
+        return storage.reconcile(previous);
+    }
+
+    @Override
+    public String getLocation() {
+        return storage.getLocation();
+    }
+
+    /**
+     * @return the history of files
+     */
+    public VersionStore getVersions() {
+        return versions;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            versions.close();
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of DiffEngine
+ * @author Jakub Reszka
+ */
+class DiffEngineTest {
+
+    private final DiffEngine engine = new DiffEngine();
+
+    private static FileEntry entry(String name, int content) {
+        return new FileEntry(name, 10, 1000, new byte[] { (byte) content, 1, 2, 3 });
+    }
+
+    private static Snapshot snapshot(FileEntry... entries) {
+        Snapshot snapshot = new Snapshot("owner");
+        for (FileEntry entry : entries) {
+            snapshot.put(entry);
+        }
+        return snapshot;
+    }
+
+    @Test
+    void detectsRenameOfUnchangedContent() {
+        Diff diff = engine.diff(snapshot(entry("a.txt", 1), entry("b.txt", 2)),
+                snapshot(entry("b.txt", 2), entry("c.txt", 1)), new Diff());
+
+        assertEquals(List.of("a.txt"), diff.getRenamedFrom());
+        assertEquals(List.of("c.txt"), diff.getRenamedTo());
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getDeleted().isEmpty());
+        assertEquals(List.of("b.txt"), diff.getUnchanged());
+        assertTrue(diff.hasChanges());
+    }
+
+    @Test
+    void reportsDeletedAndAddedFilesOfDifferentContent() {
+        Diff diff = engine.diff(snapshot(entry("a.txt", 1), entry("b.txt", 2)),
+                snapshot(entry("b.txt", 3), entry("c.txt", 4)), new Diff());
+
+        assertEquals(List.of("a.txt"), diff.getDeleted());
+        assertEquals(List.of("c.txt"), diff.getAdded());
+        assertEquals(List.of("b.txt"), diff.getModified());
+        assertTrue(diff.getRenamedFrom().isEmpty());
+    }
+
+    @Test
+    void pairsEveryDeletedFileWithAtMostOneRename() {
+        Diff diff = engine.diff(snapshot(entry("a.txt", 1)),
+                snapshot(entry("b.txt", 1), entry("c.txt", 1)), new Diff());
+
+        assertEquals(List.of("a.txt"), diff.getRenamedFrom());
+        assertEquals(1, diff.getRenamedTo().size());
+        assertEquals(1, diff.getAdded().size());
+        assertTrue(diff.getDeleted().isEmpty());
+    }
+
+    @Test
+    void reusedDiffIsCleared() {
+        Diff diff = engine.diff(snapshot(entry("a.txt", 1)), snapshot(), new Diff());
+        assertEquals(List.of("a.txt"), diff.getDeleted());
+
+        engine.diff(snapshot(entry("a.txt", 1)), snapshot(entry("a.txt", 1)), diff);
+        assertFalse(diff.hasChanges());
+        assertTrue(diff.getDeleted().isEmpty());
+    }
+
+    @Test
+    void comparesListsOfNames() {
+        Diff diff = engine.diff(List.of("a", "b"), List.of("b", "c"), new Diff());
+
+        assertEquals(List.of("c"), diff.getAdded());
+        assertEquals(List.of("a"), diff.getDeleted());
+        assertEquals(List.of("b"), diff.getUnchanged());
+    }
+}
@@ -0,0 +1,68 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of NameTable
+ * @author Jakub Reszka
+ */
+class NameTableTest {
+
+    private static String intern(NameTable table, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] padded = new byte[bytes.length + 8];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        return table.intern(padded, bytes.length);
+    }
+
+    @Test
+    void returnsSameInstanceForRepeatedName() throws IOException {
+        NameTable table = new NameTable(16);
+        String first = intern(table, "folder/file.txt");
+
+        assertEquals("folder/file.txt", first);
+        assertSame(first, intern(table, "folder/file.txt"));
+        assertNotSame(first, intern(table, "folder/other.txt"));
+    }
+
+    @Test
+    void decodesNonAsciiNames() throws IOException {
+        NameTable table = new NameTable(16);
+        assertEquals("\u017c\u00f3\u0142w.txt", intern(table, "\u017c\u00f3\u0142w.txt"));
+    }
+
+    @Test
+    void keepsNamesAfterGrowing() throws IOException {
+        NameTable table = new NameTable(100_000);
+        String[] names = new String[5000];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = intern(table, "file" + i);
+        }
+        for (int i = 0; i < names.length; ++i) {
+            assertSame(names[i], intern(table, "file" + i));
+        }
+    }
+
+    @Test
+    void clearsWhenFullAndStillDecodesNames() throws IOException {
+        NameTable table = new NameTable(4);
+        String first = intern(table, "name0");
+        for (int i = 1; i < 4; ++i) {
+            intern(table, "name" + i);
+        }
+
+        String overflow = intern(table, "name4");
+        assertEquals("name4", overflow);
+        assertNotSame(first, intern(table, "name0"));
+        assertNotSame(overflow, intern(table, "name4"));
+
+        String again = intern(table, "name0");
+        assertEquals("name0", again);
+        assertSame(again, intern(table, "name0"));
+    }
+}
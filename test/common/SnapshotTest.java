@@ -0,0 +1,67 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of Snapshot's binary file
+ * @author Jakub Reszka
+ */
+class SnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void savedSnapshotIsLoadedUnchanged() throws IOException {
+        Snapshot snapshot = new Snapshot("alice");
+        snapshot.put(new FileEntry("b.txt", 2, 2000, new byte[] { 4, 5 }));
+        snapshot.put(new FileEntry("a/\u017c\u00f3\u0142w.txt", 1L << 33, 1000, new byte[32]));
+        Path file = directory.resolve("snapshot");
+        snapshot.save(file);
+
+        Snapshot loaded = Snapshot.load(file, "other");
+        assertEquals("alice", loaded.getOwner());
+        assertEquals("alice", Snapshot.readOwner(file));
+        assertEquals(List.of("a/\u017c\u00f3\u0142w.txt", "b.txt"), loaded.names());
+        FileEntry entry = loaded.get("a/\u017c\u00f3\u0142w.txt");
+        assertEquals(1L << 33, entry.getSize());
+        assertEquals(1000, entry.getModified());
+        assertArrayEquals(new byte[32], entry.getHash());
+        assertArrayEquals(new byte[] { 4, 5 }, loaded.get("b.txt").getHash());
+        assertFalse(Files.exists(directory.resolve("snapshot.tmp")));
+    }
+
+    @Test
+    void missingFileGivesEmptySnapshot() {
+        Snapshot loaded = Snapshot.load(directory.resolve("missing"), "bob");
+        assertEquals("bob", loaded.getOwner());
+        assertTrue(loaded.names().isEmpty());
+    }
+
+    @Test
+    void damagedFileGivesEmptySnapshot() throws IOException {
+        Snapshot snapshot = new Snapshot("alice");
+        snapshot.put(new FileEntry("a.txt", 1, 1, new byte[] { 1 }));
+        Path file = directory.resolve("snapshot");
+        snapshot.save(file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        Snapshot loaded = Snapshot.load(file, "bob");
+        assertEquals("bob", loaded.getOwner());
+        assertTrue(loaded.names().isEmpty());
+
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5 });
+        assertNull(Snapshot.readOwner(file));
+        assertTrue(Snapshot.load(file, "bob").names().isEmpty());
+    }
+}
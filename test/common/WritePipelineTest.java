@@ -0,0 +1,73 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of WritePipeline's handling of temporary files
+ * @author Jakub Reszka
+ */
+class WritePipelineTest {
+
+    @TempDir
+    Path directory;
+
+    private long temporaryFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(file -> WritePipeline.isTemporary(file.getFileName().toString())).count();
+        }
+    }
+
+    @Test
+    void writeReplacesTargetAndLeavesNoTemporaryFile() throws IOException {
+        for (Durability durability : Durability.values()) {
+            Path target = directory.resolve(durability.name()).resolve("file.txt");
+            Files.createDirectories(target.getParent());
+            Files.write(target, new byte[] { 9 });
+            ByteBuffer body = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+            body.position(1);
+
+            assertTrue(new WritePipeline(durability).write(body, target).join());
+            assertArrayEquals(new byte[] { 2, 3, 4 }, Files.readAllBytes(target));
+            assertEquals(1, body.position());
+        }
+        assertEquals(0, temporaryFiles());
+    }
+
+    @Test
+    void failedWriteRemovesTemporaryFile() throws IOException {
+        Path target = directory.resolve("folder");
+        Files.createDirectories(target.resolve("child"));
+
+        assertFalse(new WritePipeline(Durability.DATA).write(ByteBuffer.wrap(new byte[] { 1 }), target).join());
+        assertTrue(Files.isDirectory(target));
+        assertEquals(0, temporaryFiles());
+    }
+
+    @Test
+    void removesTemporaryFilesLeftByCrash() throws IOException {
+        Path nested = Files.createDirectories(directory.resolve("a").resolve("b"));
+        Files.write(directory.resolve("x" + WritePipeline.TEMP_SUFFIX), new byte[1]);
+        Files.write(nested.resolve("y.txt" + WritePipeline.TEMP_SUFFIX), new byte[1]);
+        Files.write(nested.resolve("y.txt"), new byte[1]);
+
+        WritePipeline.removeTemporaryFiles(directory);
+        assertEquals(0, temporaryFiles());
+        assertTrue(Files.exists(nested.resolve("y.txt")));
+        WritePipeline.removeTemporaryFiles(directory.resolve("missing"));
+    }
+
+    @Test
+    void recognizesTemporaryNames() {
+        assertTrue(WritePipeline.isTemporary("file.txt" + WritePipeline.TEMP_SUFFIX));
+        assertFalse(WritePipeline.isTemporary("file.txt"));
+    }
+}
@@ -0,0 +1,76 @@
+package server.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of placement on HashRing
+ * @author Jakub Reszka
+ */
+class HashRingTest {
+
+    private static final List<String> NODES = List.of("10.0.0.1:4000", "10.0.0.2:4000", "10.0.0.3:4000", "10.0.0.4:4000");
+
+    @Test
+    void placementDoesNotDependOnOrderOfNodes() {
+        List<String> reversed = new ArrayList<>(NODES);
+        Collections.reverse(reversed);
+        HashRing ring = new HashRing(NODES, 64);
+        HashRing other = new HashRing(reversed, 64);
+
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(ring.owner("user" + i), other.owner("user" + i));
+            assertEquals(ring.owners("user" + i, 3), other.owners("user" + i, 3));
+        }
+    }
+
+    @Test
+    void ownersAreDistinctAndStartWithOwner() {
+        HashRing ring = new HashRing(NODES, 64);
+        for (int i = 0; i < 1000; ++i) {
+            List<String> owners = ring.owners("user" + i, 3);
+            assertEquals(3, owners.size());
+            assertEquals(3, new HashSet<>(owners).size());
+            assertEquals(ring.owner("user" + i), owners.get(0));
+        }
+        assertEquals(NODES.size(), ring.owners("user", 10).size());
+    }
+
+    @Test
+    void keysAreSpreadOverAllNodes() {
+        HashRing ring = new HashRing(NODES, 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; ++i) {
+            counts.merge(ring.owner("user" + i), 1, Integer::sum);
+        }
+        assertEquals(NODES.size(), counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 1500 && count < 3500, "unbalanced ring " + counts);
+        }
+    }
+
+    @Test
+    void removingNodeMovesOnlyItsKeys() {
+        HashRing ring = new HashRing(NODES, 64);
+        HashRing smaller = new HashRing(NODES.subList(0, 3), 64);
+        for (int i = 0; i < 1000; ++i) {
+            String owner = ring.owner("user" + i);
+            if (!owner.equals(NODES.get(3))) assertEquals(owner, smaller.owner("user" + i));
+        }
+    }
+
+    @Test
+    void hashIsStable() {
+        assertEquals(HashRing.hash("alice"), HashRing.hash("alice"));
+        assertNotEquals(HashRing.hash("alice"), HashRing.hash("alicf"));
+    }
+
+    @Test
+    void ringNeedsNodes() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of(), 64));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(NODES, 0));
+    }
+}
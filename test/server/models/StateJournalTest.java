@@ -0,0 +1,117 @@
+package server.models;
+
+import common.Durability;
+import common.FileEntry;
+import common.Snapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of StateJournal's replay
+ * @author Jakub Reszka
+ */
+class StateJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private Path journalFile() {
+        return directory.resolve("journal");
+    }
+
+    private Path snapshotFile() {
+        return directory.resolve("snapshot");
+    }
+
+    private static FileEntry entry(String name) {
+        return new FileEntry(name, 1, 1, new byte[] { 1 });
+    }
+
+    @Test
+    void replayAppliesAllRecords() throws IOException {
+        try (StateJournal journal = StateJournal.open(journalFile(), Durability.DATA, new Snapshot("alice"), snapshotFile())) {
+            journal.put(entry("a.txt"));
+            journal.put(entry("b.txt"));
+            journal.remove("a.txt");
+            journal.beginTransfer(1, "c.txt");
+            journal.beginTransfer(2, "d.txt");
+            journal.endTransfer(1);
+        }
+
+        Snapshot snapshot = Snapshot.load(snapshotFile(), "alice");
+        StateJournal.Recovery recovery = StateJournal.replay(journalFile(), snapshot);
+        assertTrue(recovery.isFound());
+        assertEquals(6, recovery.getRecords());
+        assertEquals(List.of("b.txt"), snapshot.names());
+        assertEquals(Map.of(2, "d.txt"), recovery.getUnfinished());
+    }
+
+    @Test
+    void replayStopsAtTruncatedTail() throws IOException {
+        long complete;
+        try (StateJournal journal = StateJournal.open(journalFile(), Durability.NONE, new Snapshot("alice"), snapshotFile())) {
+            journal.put(entry("a.txt"));
+            journal.put(entry("b.txt"));
+            complete = journal.size();
+            journal.put(entry("c.txt"));
+        }
+
+        for (long cut = complete + 1; cut < Files.size(journalFile()); ++cut) {
+            try (FileChannel channel = FileChannel.open(journalFile(), StandardOpenOption.WRITE)) {
+                channel.truncate(cut);
+            }
+            Snapshot snapshot = new Snapshot("alice");
+            StateJournal.Recovery recovery = StateJournal.replay(journalFile(), snapshot);
+            assertEquals(2, recovery.getRecords());
+            assertEquals(List.of("a.txt", "b.txt"), snapshot.names());
+        }
+    }
+
+    @Test
+    void replayStopsAtDamagedRecord() throws IOException {
+        try (StateJournal journal = StateJournal.open(journalFile(), Durability.NONE, new Snapshot("alice"), snapshotFile())) {
+            journal.put(entry("a.txt"));
+            journal.put(entry("b.txt"));
+        }
+        byte[] bytes = Files.readAllBytes(journalFile());
+        bytes[bytes.length - 6] ^= 1;
+        Files.write(journalFile(), bytes);
+
+        Snapshot snapshot = new Snapshot("alice");
+        assertEquals(1, StateJournal.replay(journalFile(), snapshot).getRecords());
+        assertEquals(List.of("a.txt"), snapshot.names());
+    }
+
+    @Test
+    void checkpointDropsReplayedRecordsButKeepsActiveTransfers() throws IOException {
+        Snapshot snapshot = new Snapshot("alice");
+        try (StateJournal journal = StateJournal.open(journalFile(), Durability.DATA, snapshot, snapshotFile())) {
+            FileEntry entry = entry("a.txt");
+            journal.put(entry);
+            snapshot.put(entry);
+            journal.beginTransfer(7, "b.txt");
+            journal.checkpoint(snapshot, snapshotFile());
+        }
+
+        Snapshot loaded = Snapshot.load(snapshotFile(), "alice");
+        StateJournal.Recovery recovery = StateJournal.replay(journalFile(), loaded);
+        assertEquals(1, recovery.getRecords());
+        assertEquals(Map.of(7, "b.txt"), recovery.getUnfinished());
+        assertEquals(List.of("a.txt"), loaded.names());
+    }
+
+    @Test
+    void missingJournalIsNotFound() {
+        assertFalse(StateJournal.replay(journalFile(), new Snapshot("alice")).isFound());
+    }
+}